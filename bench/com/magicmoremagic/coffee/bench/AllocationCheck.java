@@ -0,0 +1,107 @@
+package com.magicmoremagic.coffee.bench;
+
+import java.io.IOException;
+
+import com.magicmoremagic.coffee.BrewBuffer;
+import com.magicmoremagic.coffee.Symbol;
+import com.magicmoremagic.coffee.parser.Parser;
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.Xoshiro256StarStar;
+
+/**
+ * Checks that the steady-state brew path allocates nothing: brews into a BrewBuffer
+ * and writes each result to a Writer, for each of the benchmark grammars, and exits
+ * with status 1 if any workload allocates more than a fraction of a byte per result
+ * once warmed up.
+ *
+ * Usage (from the project root, with src, bench and bench/grammars on the classpath):
+ *    AllocationCheck [-t millisPerIteration]
+ */
+public final class AllocationCheck {
+
+	private static final long SEED = 0x5EEDC0FFEEL;
+	private static final double MAX_BYTES_PER_OP = 0.5;
+
+	public static void main(String[] args) throws Exception {
+		long millis = 500;
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-t")) {
+				millis = Long.parseLong(args[++i]);
+			}
+		}
+
+		Harness harness = new Harness(System.out, null);
+		harness.setWarmupIterations(3);
+		harness.setMeasureIterations(3);
+		harness.setIterationMillis(millis);
+		harness.printHeader();
+
+		boolean ok = true;
+		ok &= check(harness, "bench-fanout", "fanout");
+		ok &= check(harness, "bench-recursion", "recursion");
+		ok &= check(harness, "bench-recursion", "mutual");
+		ok &= check(harness, "bench-chain", "chain");
+		ok &= check(harness, "bench-chain", "linked");
+		ok &= check(harness, "examples", "maleName");
+		ok &= check(harness, "examples", null);
+
+		if (!ok) {
+			System.out.println("FAILED: steady-state brew allocates.");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * Checks sequential and indexed brewing of generator, or of a random primary
+	 * nonterminal if generator is null.
+	 */
+	private static boolean check(Harness harness, String grammar, String generator) throws Exception {
+		Parser parser = new Parser();
+		parser.parseResource(grammar);
+		final Symbol symbol = generator == null ? parser : parser.get(generator);
+		final String name = "alloc." + (generator == null ? grammar : generator);
+
+		final BrewBuffer buffer = new BrewBuffer();
+		final RandomSource rnd = new Xoshiro256StarStar(SEED);
+		final CoffeeBenchmarks.CountingWriter writer = new CoffeeBenchmarks.CountingWriter();
+		Harness.Result sequential = harness.run(name, new Workload() {
+			@Override
+			public long invoke() throws IOException {
+				buffer.brew(symbol, rnd);
+				buffer.writeTo(writer);
+				return buffer.length();
+			}
+		});
+
+		Harness.Result indexed = harness.run(name + ".indexed", new Workload() {
+			private long index;
+
+			@Override
+			public long invoke() throws IOException {
+				buffer.brew(symbol, SEED, index++);
+				buffer.writeTo(writer);
+				return buffer.length();
+			}
+		});
+
+		return passes(sequential) & passes(indexed);
+	}
+
+	private static boolean passes(Harness.Result result) {
+		double bytes = result.getBytesAllocatedPerOp();
+		if (bytes < 0) {
+			System.out.println("   allocation counters are not supported by this JVM; skipped");
+			return true;
+		}
+		if (bytes > MAX_BYTES_PER_OP) {
+			System.out.println(String.format("   %s allocates %.2f bytes per result (limit %.2f)",
+					result.getName(), bytes, MAX_BYTES_PER_OP));
+			return false;
+		}
+		return true;
+	}
+
+	private AllocationCheck() { }
+
+}
@@ -0,0 +1,390 @@
+package com.magicmoremagic.coffee.bench;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+import com.magicmoremagic.coffee.Derivation;
+import com.magicmoremagic.coffee.DerivationBrewer;
+import com.magicmoremagic.coffee.FiniteLanguage;
+import com.magicmoremagic.coffee.GrammarFork;
+import com.magicmoremagic.coffee.GrammarImage;
+import com.magicmoremagic.coffee.Nonterminal;
+import com.magicmoremagic.coffee.Mutator;
+import com.magicmoremagic.coffee.Production;
+import com.magicmoremagic.coffee.parser.DefaultLexer;
+import com.magicmoremagic.coffee.parser.GrammarSerializer;
+import com.magicmoremagic.coffee.parser.ParallelLoader;
+import com.magicmoremagic.coffee.parser.Parser;
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.RandomSources;
+import com.magicmoremagic.coffee.random.SplittableRandomSource;
+import com.magicmoremagic.coffee.random.ThreadLocalRandomSource;
+import com.magicmoremagic.coffee.random.Xoshiro256StarStar;
+
+/**
+ * Benchmarks for the brew, lexer/parser and serialization hot paths.
+ *
+ * Brew benchmarks use the grammars in bench/grammars, which cover wide fan-out,
+ * deep recursion and long terminal chains, plus the bundled examples.  Lexer,
+ * parser and serializer benchmarks use a large grammar from GrammarGenerator.
+ * All inputs are fixed, so results can be compared between versions.
+ *
+ * Usage (from the project root, with src, bench and bench/grammars on the classpath):
+ *    CoffeeBenchmarks [-w warmupIterations] [-i iterations] [-t millisPerIteration] [regex]
+ */
+public final class CoffeeBenchmarks {
+
+	private static final long SEED = 0x5EEDC0FFEEL;
+
+	public static void main(String[] args) throws Exception {
+		String filter = null;
+		int warmup = 3;
+		int iterations = 5;
+		long millis = 1000;
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-w")) {
+				warmup = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-i")) {
+				iterations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-t")) {
+				millis = Long.parseLong(args[++i]);
+			} else {
+				filter = args[i];
+			}
+		}
+
+		Harness harness = new Harness(System.out, filter);
+		harness.setWarmupIterations(warmup);
+		harness.setMeasureIterations(iterations);
+		harness.setIterationMillis(millis);
+		harness.printHeader();
+
+		brew(harness, "bench-fanout", "fanout");
+		brew(harness, "bench-recursion", "recursion");
+		brew(harness, "bench-recursion", "mutual");
+		brew(harness, "bench-chain", "chain");
+		brew(harness, "bench-chain", "linked");
+		brew(harness, "examples", "maleName");
+		brew(harness, "examples", "LoadingScreen");
+		precomputed(harness, "bench-fanout", "fanout");
+		precomputed(harness, "bench-recursion", "recursion");
+		precomputed(harness, "examples", "streetAddress");
+		precomputed(harness, "examples", "maleName");
+		image(harness, "bench-fanout", "fanout");
+		image(harness, "bench-recursion", "recursion");
+		image(harness, "bench-chain", "linked");
+		image(harness, "examples", "maleName");
+		derivation(harness, "bench-recursion", "recursion");
+		derivation(harness, "bench-chain", "linked");
+		derivation(harness, "examples", "maleName");
+
+		mutate(harness, "bench-chain", "linked");
+		mutate(harness, "examples", "maleName");
+
+		rng(harness, "bench-fanout", "fanout");
+
+		final String large = GrammarGenerator.generate(20000, 8, SEED);
+
+		harness.run("lex.generated", new Workload() {
+			@Override
+			public long invoke() throws IOException {
+				DefaultLexer lexer = new DefaultLexer(large);
+				long tokens = 0;
+				while (lexer.next() != null) {
+					++tokens;
+				}
+				return tokens;
+			}
+		});
+
+		harness.run("parse.generated", new Workload() {
+			@Override
+			public long invoke() throws IOException {
+				Parser parser = new Parser();
+				parser.parse(large);
+				return parser.size();
+			}
+		});
+
+		final ParallelLoader loader = new ParallelLoader(Runtime.getRuntime().availableProcessors(), 1 << 16);
+		harness.run("parse.parallel", new Workload() {
+			@Override
+			public long invoke() throws IOException {
+				return loader.load(large).size();
+			}
+		});
+
+		final String reversed = GrammarGenerator.reverseDefinitions(large);
+		harness.run("parse.reversed", new Workload() {
+			@Override
+			public long invoke() throws IOException {
+				Parser parser = new Parser();
+				parser.parse(reversed);
+				return parser.size();
+			}
+		});
+
+		final Parser parser = new Parser();
+		parser.parse(large);
+		final CountingWriter writer = new CountingWriter();
+
+		harness.run("serialize.generated", new Workload() {
+			@Override
+			public long invoke() {
+				writer.reset();
+				parser.serialize(writer);
+				return writer.getCount();
+			}
+		});
+
+		harness.run("copy.generated", new Workload() {
+			@Override
+			public long invoke() {
+				return parser.deepCopy().size();
+			}
+		});
+
+		harness.run("fork.generated", new Workload() {
+			@Override
+			public long invoke() {
+				GrammarFork fork = parser.fork();
+				Nonterminal nt = parser.get("nt19992");
+				Production production = nt.iterator().next();
+				fork.setWeight(production, production.getWeight() * 2);
+				return fork.getOverrideCount();
+			}
+		});
+
+		final GrammarSerializer streaming = new GrammarSerializer();
+		harness.run("serialize.streaming", new Workload() {
+			@Override
+			public long invoke() throws IOException {
+				writer.reset();
+				streaming.serialize(parser, writer);
+				return writer.getCount();
+			}
+		});
+
+		final GrammarSerializer parallel = new GrammarSerializer(GrammarSerializer.DEFAULT_BUFFER_SIZE,
+				Runtime.getRuntime().availableProcessors());
+		harness.run("serialize.parallel", new Workload() {
+			@Override
+			public long invoke() throws IOException {
+				writer.reset();
+				parallel.serialize(parser, writer);
+				return writer.getCount();
+			}
+		});
+
+		final Nonterminal root = parser.get("nt19992");
+		harness.run("serializeAll.generated", new Workload() {
+			@Override
+			public long invoke() {
+				writer.reset();
+				root.serializeAll(writer);
+				return writer.getCount();
+			}
+		});
+	}
+
+	private static void brew(Harness harness, String grammar, String generator) throws Exception {
+		String name = "brew." + generator;
+		if (!harness.accepts(name))
+			return;
+
+		Parser parser = new Parser();
+		parser.parseResource(grammar);
+		final Nonterminal nt = parser.get(generator);
+		if (nt == null) {
+			throw new IllegalStateException("Generator not found: " + generator);
+		}
+
+		final Random rnd = new Random(SEED);
+		harness.run(name, new Workload() {
+			@Override
+			public long invoke() {
+				return nt.brew(rnd).length();
+			}
+		});
+	}
+
+	/**
+	 * Brews with FiniteLanguage outcome tables in place.
+	 */
+	private static void precomputed(Harness harness, String grammar, String generator) throws Exception {
+		String name = "precomputed." + generator;
+		if (!harness.accepts(name))
+			return;
+
+		Parser parser = new Parser();
+		parser.parseResource(grammar);
+		parser.precompute(FiniteLanguage.DEFAULT_MAX_OUTCOMES);
+		final Nonterminal nt = parser.get(generator);
+		final RandomSource rnd = new Xoshiro256StarStar(SEED);
+		final StringBuilder sb = new StringBuilder();
+		harness.run(name, new Workload() {
+			@Override
+			public long invoke() {
+				sb.setLength(0);
+				nt.brew(rnd, sb);
+				return sb.length();
+			}
+		});
+	}
+
+	/**
+	 * Brews from an off-heap GrammarImage instead of Nonterminal objects.
+	 */
+	private static void image(Harness harness, String grammar, String generator) throws Exception {
+		String name = "image." + generator;
+		if (!harness.accepts(name))
+			return;
+
+		Parser parser = new Parser();
+		parser.parseResource(grammar);
+		final GrammarImage image = GrammarImage.encode(parser);
+		final int nt = image.indexOf(generator);
+		final RandomSource rnd = new Xoshiro256StarStar(SEED);
+		final StringBuilder sb = new StringBuilder();
+		harness.run(name, new Workload() {
+			@Override
+			public long invoke() {
+				sb.setLength(0);
+				image.brew(nt, rnd, sb);
+				return sb.length();
+			}
+		});
+	}
+
+	/**
+	 * Brews while recording each result's derivation tree.
+	 */
+	private static void derivation(Harness harness, String grammar, String generator) throws Exception {
+		String name = "derivation." + generator;
+		if (!harness.accepts(name))
+			return;
+
+		Parser parser = new Parser();
+		parser.parseResource(grammar);
+		final DerivationBrewer brewer = new DerivationBrewer(parser);
+		final int nt = brewer.indexOf(parser.get(generator));
+		final RandomSource rnd = new Xoshiro256StarStar(SEED);
+		final Derivation derivation = new Derivation();
+		harness.run(name, new Workload() {
+			@Override
+			public long invoke() {
+				brewer.brew(nt, rnd, derivation);
+				return derivation.length();
+			}
+		});
+	}
+
+	/**
+	 * Mutates one derivation over and over, rebrewing it whenever it grows too long.
+	 */
+	private static void mutate(Harness harness, String grammar, String generator) throws Exception {
+		String name = "mutate." + generator;
+		if (!harness.accepts(name))
+			return;
+
+		Parser parser = new Parser();
+		parser.parseResource(grammar);
+		final DerivationBrewer brewer = new DerivationBrewer(parser);
+		final int nt = brewer.indexOf(parser.get(generator));
+		final Mutator mutator = new Mutator(brewer);
+		final RandomSource rnd = new Xoshiro256StarStar(SEED);
+		final Derivation derivation = brewer.brew(nt, rnd, new Derivation());
+		harness.run(name, new Workload() {
+			@Override
+			public long invoke() {
+				if (derivation.length() > 4096) {
+					brewer.brew(nt, rnd, derivation);
+				}
+				mutator.mutate(derivation, rnd);
+				return derivation.length();
+			}
+		});
+	}
+
+	/**
+	 * Compares RandomSource implementations on the brew hot path.  rng.newRandom
+	 * is what the no-argument brew() used to do; rng.brew() is what it does now.
+	 */
+	private static void rng(Harness harness, String grammar, String generator) throws Exception {
+		Parser parser = new Parser();
+		parser.parseResource(grammar);
+		final Nonterminal nt = parser.get(generator);
+		final StringBuilder sb = new StringBuilder();
+
+		harness.run("rng.newRandom", new Workload() {
+			@Override
+			public long invoke() {
+				return nt.brew(new Random()).length();
+			}
+		});
+
+		harness.run("rng.brew()", new Workload() {
+			@Override
+			public long invoke() {
+				return nt.brew().length();
+			}
+		});
+
+		rng(harness, "rng.random", nt, sb, RandomSources.wrap(new Random(SEED)));
+		rng(harness, "rng.splittable", nt, sb, new SplittableRandomSource(SEED));
+		rng(harness, "rng.xoshiro256**", nt, sb, new Xoshiro256StarStar(SEED));
+		rng(harness, "rng.threadLocal", nt, sb, ThreadLocalRandomSource.INSTANCE);
+	}
+
+	private static void rng(Harness harness, String name, final Nonterminal nt, final StringBuilder sb,
+			final RandomSource rnd) throws Exception {
+		harness.run(name, new Workload() {
+			@Override
+			public long invoke() {
+				sb.setLength(0);
+				nt.brew(rnd, sb);
+				return sb.length();
+			}
+		});
+	}
+
+	static class CountingWriter extends Writer {
+
+		private long count;
+
+		public long getCount() {
+			return count;
+		}
+
+		public void reset() {
+			count = 0;
+		}
+
+		@Override
+		public void write(int c) {
+			++count;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private CoffeeBenchmarks() { }
+
+}
@@ -0,0 +1,81 @@
+package com.magicmoremagic.coffee.bench;
+
+import java.util.Random;
+
+/**
+ * Generates large synthetic grammar files for lexer and parser benchmarks.  The
+ * output depends only on the arguments, so results are comparable across versions.
+ * Generated grammars use every token type, comments, escapes, and a mix of
+ * backward and forward references.
+ */
+public final class GrammarGenerator {
+
+	private static final String[] SYLLABLES = {
+		"ka", "lo", "mi", "ne", "ru", "sa", "ti", "vo", "zen", "dar", "bel", "qua", "shi", "tor", "gra", "fel"
+	};
+
+	public static String generate(int nonterminals, int productionsPerNonterminal, long seed) {
+		Random rnd = new Random(seed);
+		StringBuilder sb = new StringBuilder(nonterminals * productionsPerNonterminal * 24);
+
+		for (int i = 0; i < nonterminals; ++i) {
+			if (i % 16 == 0) {
+				sb.append("# section ").append(i / 16).append('\n');
+			}
+
+			sb.append(i % 8 == 0 ? ":::" : "::").append("nt").append(i).append('\n');
+			for (int j = 0; j < productionsPerNonterminal; ++j) {
+				int weight = rnd.nextInt(12);
+				if (weight > 1) {
+					sb.append(weight);
+				} else if (weight == 1) {
+					sb.append("0.5");
+				}
+				sb.append(']');
+
+				int symbols = 1 + rnd.nextInt(4);
+				for (int k = 0; k < symbols; ++k) {
+					sb.append(' ');
+					if (k > 0 && rnd.nextInt(4) == 0) {
+						// mostly backward references, with some forward references
+						int target = rnd.nextInt(8) == 0 ? i + 1 + rnd.nextInt(nonterminals) : rnd.nextInt(i + 1);
+						sb.append("nt").append(target % nonterminals);
+					} else {
+						sb.append('"');
+						word(rnd, sb);
+						if (rnd.nextInt(16) == 0) {
+							sb.append("\\t\\\"");
+						}
+						sb.append('"');
+					}
+				}
+				sb.append('\n');
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a grammar from generate() with its definitions in reverse order, so
+	 * that most references are forward references.
+	 */
+	public static String reverseDefinitions(String grammar) {
+		String[] definitions = grammar.split("\n\n");
+		StringBuilder sb = new StringBuilder(grammar.length());
+		for (int i = definitions.length - 1; i >= 0; --i) {
+			sb.append(definitions[i]).append("\n\n");
+		}
+		return sb.toString();
+	}
+
+	private static void word(Random rnd, StringBuilder sb) {
+		int n = 1 + rnd.nextInt(3);
+		for (int i = 0; i < n; ++i) {
+			sb.append(SYLLABLES[rnd.nextInt(SYLLABLES.length)]);
+		}
+	}
+
+	private GrammarGenerator() { }
+
+}
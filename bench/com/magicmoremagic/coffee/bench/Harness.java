@@ -0,0 +1,173 @@
+package com.magicmoremagic.coffee.bench;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal timed-iteration benchmark runner.  Each workload is warmed up for a
+ * number of iterations, then measured for more; every iteration runs the workload
+ * repeatedly until its time slice is used up.  Reports operations per second,
+ * units per second and bytes allocated per operation (when the JVM supports
+ * per-thread allocation counters).
+ */
+public class Harness {
+
+	private final PrintStream out;
+	private final Pattern filter;
+	private long iterationNanos = 1000000000L;
+	private int warmupIterations = 3;
+	private int measureIterations = 5;
+
+	private volatile long sink;
+
+	public Harness(PrintStream out, String filter) {
+		this.out = out;
+		this.filter = filter == null ? null : Pattern.compile(filter);
+	}
+
+	public void setIterationMillis(long millis) {
+		iterationNanos = millis * 1000000L;
+	}
+
+	public void setWarmupIterations(int iterations) {
+		warmupIterations = iterations;
+	}
+
+	public void setMeasureIterations(int iterations) {
+		measureIterations = iterations;
+	}
+
+	public void printHeader() {
+		out.println(String.format("%-32s %14s %9s %16s %14s", "Benchmark", "ops/s", "error", "units/s", "B alloc/op"));
+	}
+
+	public boolean accepts(String name) {
+		return filter == null || filter.matcher(name).find();
+	}
+
+	public Result run(String name, Workload workload) throws Exception {
+		if (!accepts(name))
+			return null;
+
+		for (int i = 0; i < warmupIterations; ++i) {
+			iteration(workload);
+		}
+
+		double[] rates = new double[measureIterations];
+		long ops = 0;
+		long units = 0;
+		long nanos = 0;
+		long allocated = 0;
+		for (int i = 0; i < measureIterations; ++i) {
+			long allocBefore = allocatedBytes();
+			long[] it = iteration(workload);
+			long allocAfter = allocatedBytes();
+
+			rates[i] = it[0] * 1e9 / it[2];
+			ops += it[0];
+			units += it[1];
+			nanos += it[2];
+			allocated += allocAfter - allocBefore;
+		}
+
+		Result result = new Result(name, ops, units, nanos, allocated, rates);
+		out.println(result);
+		return result;
+	}
+
+	private long[] iteration(Workload workload) throws Exception {
+		long ops = 0;
+		long units = 0;
+		long start = System.nanoTime();
+		long deadline = start + iterationNanos;
+		long now;
+		do {
+			units += workload.invoke();
+			++ops;
+			now = System.nanoTime();
+		} while (now < deadline);
+
+		sink += units;
+		return new long[] { ops, units, now - start };
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	public static class Result {
+
+		private final String name;
+		private final long ops;
+		private final long units;
+		private final long nanos;
+		private final long allocated;
+		private final double[] rates;
+
+		Result(String name, long ops, long units, long nanos, long allocated, double[] rates) {
+			this.name = name;
+			this.ops = ops;
+			this.units = units;
+			this.nanos = nanos;
+			this.allocated = allocated;
+			this.rates = rates;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public double getOpsPerSecond() {
+			return ops * 1e9 / nanos;
+		}
+
+		public double getUnitsPerSecond() {
+			return units * 1e9 / nanos;
+		}
+
+		/**
+		 * Returns the number of bytes allocated per operation, or a negative number if
+		 * the JVM doesn't support per-thread allocation counters.
+		 */
+		public double getBytesAllocatedPerOp() {
+			if (allocated < 0)
+				return -1;
+
+			return (double)allocated / ops;
+		}
+
+		/**
+		 * Returns the half-width of a 99.9% confidence interval around the mean
+		 * iteration rate, using a normal approximation.
+		 */
+		public double getError() {
+			if (rates.length < 2)
+				return Double.NaN;
+
+			double mean = 0;
+			for (double r : rates) {
+				mean += r;
+			}
+			mean /= rates.length;
+
+			double variance = 0;
+			for (double r : rates) {
+				variance += (r - mean) * (r - mean);
+			}
+			variance /= rates.length - 1;
+
+			return 3.29 * Math.sqrt(variance / rates.length);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-32s %14.1f %9.1f %16.1f %14.1f", name, getOpsPerSecond(), getError(),
+					getUnitsPerSecond(), getBytesAllocatedPerOp());
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.magicmoremagic.coffee.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.magicmoremagic.coffee.parser.Parser;
+import com.magicmoremagic.coffee.server.BrewServer;
+import com.magicmoremagic.coffee.stats.Histogram;
+
+/**
+ * Load test for BrewServer.  Starts a server in-process, then for each level of
+ * concurrency runs that many clients, each sending /brew requests back to back over
+ * a keep-alive connection, and reports requests/s, results/s and latency
+ * percentiles so that scaling can be compared across levels.
+ *
+ * Usage (from the project root, with src, bench and bench/grammars on the classpath):
+ *    ServerLoadTest [-g grammar] [-n generator] [-c resultsPerRequest] [-t millisPerLevel] [maxConcurrency]
+ */
+public final class ServerLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		String grammar = "examples";
+		String generator = "maleName";
+		int count = 10;
+		long millis = 3000;
+		int maxConcurrency = 64;
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-g")) {
+				grammar = args[++i];
+			} else if (args[i].equals("-n")) {
+				generator = args[++i];
+			} else if (args[i].equals("-c")) {
+				count = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-t")) {
+				millis = Long.parseLong(args[++i]);
+			} else {
+				maxConcurrency = Integer.parseInt(args[i]);
+			}
+		}
+
+		Parser parser = new Parser();
+		parser.parseResource(grammar);
+		System.setProperty(BrewServer.NODELAY_PROPERTY, "true");
+		BrewServer server = new BrewServer(parser, new InetSocketAddress("localhost", 0));
+		server.start();
+
+		URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/brew/" + generator + "?count=" + count);
+		System.out.println("Target: " + url);
+
+		// warm up
+		level(url, Math.min(4, maxConcurrency), millis);
+
+		System.out.println(String.format("%11s %12s %14s %10s %10s %10s %10s",
+				"concurrency", "requests/s", "results/s", "p50 us", "p90 us", "p99 us", "p99.9 us"));
+		for (int concurrency = 1; concurrency <= maxConcurrency; concurrency *= 2) {
+			Histogram latencies = level(url, concurrency, millis);
+			Histogram.Snapshot snapshot = latencies.snapshot();
+			double rps = snapshot.getCount() * 1000.0 / millis;
+			System.out.println(String.format("%11d %12.1f %14.1f %10d %10d %10d %10d",
+					concurrency, rps, rps * count,
+					snapshot.getValueAtPercentile(50),
+					snapshot.getValueAtPercentile(90),
+					snapshot.getValueAtPercentile(99),
+					snapshot.getValueAtPercentile(99.9)));
+		}
+
+		server.stop(0);
+	}
+
+	/**
+	 * Runs concurrency clients for millis milliseconds and returns their request
+	 * latencies in microseconds.
+	 */
+	private static Histogram level(final URL url, int concurrency, long millis) throws Exception {
+		final Histogram latencies = new Histogram();
+		final AtomicLong failures = new AtomicLong();
+		final long deadline = System.nanoTime() + millis * 1000000L;
+		final CountDownLatch done = new CountDownLatch(concurrency);
+		for (int i = 0; i < concurrency; ++i) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] buf = new byte[8192];
+					try {
+						while (System.nanoTime() < deadline) {
+							long start = System.nanoTime();
+							try {
+								request(url, buf);
+								latencies.record((System.nanoTime() - start) / 1000);
+							} catch (IOException e) {
+								failures.incrementAndGet();
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "ServerLoadTest-" + i);
+			t.start();
+		}
+		done.await();
+
+		if (failures.get() > 0) {
+			System.out.println("   " + failures.get() + " requests failed");
+		}
+		return latencies;
+	}
+
+	private static void request(URL url, byte[] buf) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		if (connection.getResponseCode() != 200)
+			throw new IOException("HTTP " + connection.getResponseCode());
+
+		try (InputStream is = connection.getInputStream()) {
+			while (is.read(buf) >= 0) {
+				// discard
+			}
+		}
+	}
+
+	private ServerLoadTest() { }
+
+}
@@ -0,0 +1,11 @@
+package com.magicmoremagic.coffee.bench;
+
+public interface Workload {
+
+	/**
+	 * Performs one operation and returns the number of units (usually characters)
+	 * it produced or consumed, which the harness uses to report a unit rate and to
+	 * keep the JIT from discarding the work.
+	 */
+	long invoke() throws Exception;
+}
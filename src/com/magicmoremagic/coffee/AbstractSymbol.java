@@ -10,6 +10,9 @@ import java.util.Random;
 
 import com.magicmoremagic.coffee.parser.DefaultLexer;
 import com.magicmoremagic.coffee.parser.Lexer;
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.RandomSources;
+import com.magicmoremagic.coffee.random.ThreadLocalRandomSource;
 
 public abstract class AbstractSymbol implements SerializableSymbol {
 
@@ -26,17 +29,31 @@ public abstract class AbstractSymbol implements SerializableSymbol {
 	@Override
 	public String brew() {
 		StringBuilder sb = new StringBuilder();
-		brew(new Random(), sb);
+		brew(ThreadLocalRandomSource.INSTANCE, sb);
 		return sb.toString();
 	}
 	
 	@Override
 	public String brew(Random rnd) {
+		StringBuilder sb = new StringBuilder();
+		brew(RandomSources.wrap(rnd), sb);
+		return sb.toString();
+	}
+	
+	@Override
+	public String brew(RandomSource rnd) {
 		StringBuilder sb = new StringBuilder();
 		brew(rnd, sb);
 		return sb.toString();
 	}
 	
+	@Override
+	public String brew(long seed, long index) {
+		StringBuilder sb = new StringBuilder();
+		brew(RandomSources.indexed(seed, index), sb);
+		return sb.toString();
+	}
+	
 	@Override
 	public String serialize() {
 		StringWriter sw = new StringWriter();
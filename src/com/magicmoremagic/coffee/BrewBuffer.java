@@ -0,0 +1,97 @@
+package com.magicmoremagic.coffee;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.Xoshiro256StarStar;
+
+/**
+ * A reusable buffer for brewing results without creating a String for each one.
+ * Each call to brew() replaces the contents of the buffer and returns the buffer
+ * itself as a CharSequence, which is only valid until the next call.  Once the
+ * buffer has grown to fit the longest result, brewing and writing results does not
+ * allocate.
+ *
+ * A BrewBuffer is not thread-safe; use one per thread.
+ */
+public class BrewBuffer implements CharSequence {
+
+	private final StringBuilder sb;
+	private char[] scratch;
+	private Xoshiro256StarStar indexed;
+
+	public BrewBuffer() {
+		this(256);
+	}
+
+	public BrewBuffer(int capacity) {
+		sb = new StringBuilder(capacity);
+		scratch = new char[0];
+	}
+
+	/**
+	 * Replaces the contents of this buffer with a result from symbol.
+	 */
+	public CharSequence brew(Symbol symbol, RandomSource rnd) {
+		sb.setLength(0);
+		symbol.brew(rnd, sb);
+		return this;
+	}
+
+	/**
+	 * Replaces the contents of this buffer with result number index of the sequence
+	 * identified by seed; the same result as SerializableSymbol.brew(seed, index).
+	 */
+	public CharSequence brew(Symbol symbol, long seed, long index) {
+		if (indexed == null) {
+			indexed = new Xoshiro256StarStar();
+		}
+		indexed.setSeed(seed, index);
+		return brew(symbol, indexed);
+	}
+
+	/**
+	 * Writes the contents of this buffer to w.  Unlike Writer.append(), this does
+	 * not create a String.
+	 */
+	public void writeTo(Writer w) throws IOException {
+		final int len = sb.length();
+		if (scratch.length < len) {
+			scratch = new char[Math.max(len, sb.capacity())];
+		}
+		sb.getChars(0, len, scratch, 0);
+		w.write(scratch, 0, len);
+	}
+
+	/**
+	 * Appends the contents of this buffer to dest.
+	 */
+	public void appendTo(StringBuilder dest) {
+		dest.append(sb);
+	}
+
+	public void clear() {
+		sb.setLength(0);
+	}
+
+	@Override
+	public int length() {
+		return sb.length();
+	}
+
+	@Override
+	public char charAt(int index) {
+		return sb.charAt(index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return sb.subSequence(start, end);
+	}
+
+	@Override
+	public String toString() {
+		return sb.toString();
+	}
+}
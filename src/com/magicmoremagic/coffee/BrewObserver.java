@@ -0,0 +1,20 @@
+package com.magicmoremagic.coffee;
+
+/**
+ * Receives a callback around every Nonterminal expansion while installed with
+ * Nonterminal.setBrewObserver().  Calls are made on the brewing thread and are
+ * properly nested; an implementation shared between threads must be thread-safe.
+ */
+public interface BrewObserver {
+
+	/**
+	 * Called after nt has selected production, before any of its symbols are brewed.
+	 * dest is the builder that the production's output will be appended to.
+	 */
+	void enter(Nonterminal nt, Production production, StringBuilder dest);
+
+	/**
+	 * Called after production has been brewed (or has thrown).
+	 */
+	void exit(Nonterminal nt, Production production, StringBuilder dest);
+}
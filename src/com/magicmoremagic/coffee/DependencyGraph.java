@@ -0,0 +1,388 @@
+package com.magicmoremagic.coffee;
+
+import java.util.*;
+
+/**
+ * Maintains the forward and reverse dependency edges between a group of Nonterminals.
+ *
+ * Nonterminals enter the graph either as roots (see addRoot()) or because they are
+ * reachable from a root.  Each node is reference counted by the number of times it has
+ * been added as a root plus the number of nodes which depend on it directly.  When a
+ * count drops to zero the node is removed, and nodes which may now only be kept alive
+ * by a cycle are checked by trial deletion over the affected subgraph, so removals
+ * never need to revisit the rest of the graph.
+ *
+ * Edges are captured when a node is first added; if the productions of a Nonterminal
+ * in the graph are changed afterwards, call update() to re-read its edges.
+ *
+ * Nonterminals are compared by identity, not equals().
+ */
+public class DependencyGraph {
+
+	private Map<Nonterminal, Node> nodes;
+
+	public DependencyGraph() {
+		nodes = new IdentityHashMap<>();
+	}
+
+	public DependencyGraph(DependencyGraph other) {
+		nodes = new IdentityHashMap<>();
+		for (Node node : other.nodes.values()) {
+			nodes.put(node.nt, new Node(node));
+		}
+	}
+
+	public int size() {
+		return nodes.size();
+	}
+
+	public boolean contains(Nonterminal nt) {
+		return nodes.containsKey(nt);
+	}
+
+	public boolean isRoot(Nonterminal nt) {
+		Node node = nodes.get(nt);
+		return node != null && node.roots > 0;
+	}
+
+	/**
+	 * Returns all the Nonterminals currently in the graph.
+	 */
+	public Set<Nonterminal> getNodes() {
+		return Collections.unmodifiableSet(nodes.keySet());
+	}
+
+	/**
+	 * Returns the Nonterminals which are referenced directly by the productions of nt, or
+	 * an empty set if nt is not in the graph.
+	 */
+	public Set<Nonterminal> getDirectDependencies(Nonterminal nt) {
+		Node node = nodes.get(nt);
+		if (node == null)
+			return Collections.emptySet();
+
+		return Collections.unmodifiableSet(node.dependencies);
+	}
+
+	/**
+	 * Returns the Nonterminals in the graph whose productions reference nt directly, or
+	 * an empty set if nt is not in the graph.
+	 */
+	public Set<Nonterminal> getDependents(Nonterminal nt) {
+		Node node = nodes.get(nt);
+		if (node == null)
+			return Collections.emptySet();
+
+		return Collections.unmodifiableSet(node.dependents);
+	}
+
+	/**
+	 * Returns nt and every Nonterminal reachable from it through the graph's edges, in
+	 * depth-first discovery order.
+	 */
+	public List<Nonterminal> getDependencies(Nonterminal nt) {
+		List<Nonterminal> list = new ArrayList<>();
+		Node node = nodes.get(nt);
+		if (node == null)
+			return list;
+
+		Set<Nonterminal> visited = newIdentitySet();
+		Deque<Node> pending = new ArrayDeque<>();
+		visited.add(nt);
+		pending.push(node);
+		while (!pending.isEmpty()) {
+			Node n = pending.pop();
+			list.add(n.nt);
+			for (Nonterminal d : n.dependencies) {
+				if (visited.add(d)) {
+					pending.push(nodes.get(d));
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Adds a root reference to nt, adding it and any of its dependencies which are not
+	 * yet in the graph.
+	 *
+	 * @return true if nt was not already a root.
+	 */
+	public boolean addRoot(Nonterminal nt) {
+		if (nt == null)
+			throw new NullPointerException();
+
+		Node node = ensure(nt);
+		return ++node.roots == 1;
+	}
+
+	/**
+	 * Removes one root reference from nt.  If nothing else references it, nt is removed
+	 * along with any dependencies that are no longer reachable from a root.
+	 *
+	 * @return true if nt was a root.
+	 */
+	public boolean removeRoot(Nonterminal nt) {
+		Node node = nodes.get(nt);
+		if (node == null || node.roots == 0)
+			return false;
+
+		--node.roots;
+		List<Node> released = new ArrayList<>();
+		released.add(node);
+		release(released);
+		return true;
+	}
+
+	/**
+	 * Re-reads the direct dependencies of nt from its productions, adding or removing
+	 * only the edges which have changed.
+	 *
+	 * @return false if nt is not in the graph.
+	 */
+	public boolean update(Nonterminal nt) {
+		Node node = nodes.get(nt);
+		if (node == null)
+			return false;
+
+		Set<Nonterminal> current = nt.getDirectDependencies();
+		List<Node> released = new ArrayList<>();
+
+		Iterator<Nonterminal> it = node.dependencies.iterator();
+		while (it.hasNext()) {
+			Nonterminal d = it.next();
+			if (!current.contains(d)) {
+				it.remove();
+				Node dn = nodes.get(d);
+				dn.dependents.remove(nt);
+				released.add(dn);
+			}
+		}
+
+		for (Nonterminal d : current) {
+			if (!node.dependencies.contains(d)) {
+				Node dn = ensure(d);
+				node.dependencies.add(d);
+				dn.dependents.add(nt);
+			}
+		}
+
+		release(released);
+		return true;
+	}
+
+	/**
+	 * Discards all edges and re-reads them from the current productions of every root,
+	 * keeping each root's reference count.
+	 */
+	public void rebuild() {
+		Map<Nonterminal, Integer> roots = new IdentityHashMap<>();
+		for (Node node : nodes.values()) {
+			if (node.roots > 0) {
+				roots.put(node.nt, node.roots);
+			}
+		}
+
+		for (Node node : nodes.values()) {
+			onNodeRemoved(node.nt);
+		}
+		nodes.clear();
+
+		for (Map.Entry<Nonterminal, Integer> entry : roots.entrySet()) {
+			ensure(entry.getKey()).roots = entry.getValue();
+		}
+	}
+
+	/**
+	 * Removes every node from the graph.  onNodeRemoved() is not called.
+	 */
+	public void clear() {
+		nodes.clear();
+	}
+
+	/**
+	 * Called after nt has been added to the graph, but possibly before its own
+	 * dependencies have been added.
+	 */
+	protected void onNodeAdded(Nonterminal nt) {
+	}
+
+	/**
+	 * Called after nt has been removed from the graph.
+	 */
+	protected void onNodeRemoved(Nonterminal nt) {
+	}
+
+	static <T> Set<T> newIdentitySet() {
+		return Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+	}
+
+	private Node ensure(Nonterminal nt) {
+		Node node = nodes.get(nt);
+		if (node != null)
+			return node;
+
+		node = new Node(nt);
+		nodes.put(nt, node);
+		onNodeAdded(nt);
+
+		Deque<Node> pending = new ArrayDeque<>();
+		pending.push(node);
+		while (!pending.isEmpty()) {
+			Node n = pending.pop();
+			for (Nonterminal d : n.nt.getDirectDependencies()) {
+				Node dn = nodes.get(d);
+				if (dn == null) {
+					dn = new Node(d);
+					nodes.put(d, dn);
+					onNodeAdded(d);
+					pending.push(dn);
+				}
+				n.dependencies.add(d);
+				dn.dependents.add(n.nt);
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Removes any of the given nodes (which have just lost a reference) that are no
+	 * longer reachable from a root, cascading to their dependencies.
+	 */
+	private void release(List<Node> released) {
+		List<Node> suspects = new ArrayList<>();
+		Deque<Node> dead = new ArrayDeque<>();
+		for (Node node : released) {
+			if (node.refCount() == 0) {
+				dead.push(node);
+			} else {
+				suspects.add(node);
+			}
+		}
+
+		while (!dead.isEmpty()) {
+			Node node = dead.pop();
+			nodes.remove(node.nt);
+			onNodeRemoved(node.nt);
+			for (Nonterminal d : node.dependencies) {
+				Node dn = nodes.get(d);
+				if (dn == null)
+					continue;
+
+				dn.dependents.remove(node.nt);
+				if (dn.refCount() == 0) {
+					dead.push(dn);
+				} else {
+					suspects.add(dn);
+				}
+			}
+		}
+
+		collectCycles(suspects);
+	}
+
+	/**
+	 * Trial deletion: within the subgraph reachable from the suspects, subtract the
+	 * references that come from inside the subgraph.  Nodes left with a positive count
+	 * are referenced from outside (or are roots), and so is everything they reach;
+	 * whatever remains is only referenced by garbage and is removed.
+	 */
+	private void collectCycles(List<Node> suspects) {
+		List<Node> region = new ArrayList<>();
+		Deque<Node> pending = new ArrayDeque<>();
+		for (Node node : suspects) {
+			if (nodes.get(node.nt) == node && !node.marked) {
+				node.marked = true;
+				node.trialCount = node.refCount();
+				region.add(node);
+				pending.push(node);
+			}
+		}
+
+		while (!pending.isEmpty()) {
+			Node node = pending.pop();
+			for (Nonterminal d : node.dependencies) {
+				Node dn = nodes.get(d);
+				if (!dn.marked) {
+					dn.marked = true;
+					dn.trialCount = dn.refCount();
+					region.add(dn);
+					pending.push(dn);
+				}
+			}
+		}
+
+		for (Node node : region) {
+			for (Nonterminal d : node.dependencies) {
+				--nodes.get(d).trialCount;
+			}
+		}
+
+		for (Node node : region) {
+			if (node.trialCount > 0) {
+				pending.push(node);
+			}
+		}
+
+		while (!pending.isEmpty()) {
+			Node node = pending.pop();
+			if (!node.marked)
+				continue;
+
+			node.marked = false;
+			for (Nonterminal d : node.dependencies) {
+				Node dn = nodes.get(d);
+				if (dn.marked) {
+					pending.push(dn);
+				}
+			}
+		}
+
+		for (Node node : region) {
+			if (node.marked) {
+				nodes.remove(node.nt);
+			}
+		}
+
+		for (Node node : region) {
+			if (node.marked) {
+				node.marked = false;
+				onNodeRemoved(node.nt);
+				for (Nonterminal d : node.dependencies) {
+					Node dn = nodes.get(d);
+					if (dn != null) {
+						dn.dependents.remove(node.nt);
+					}
+				}
+			}
+		}
+	}
+
+	private static class Node {
+
+		private final Nonterminal nt;
+		private final Set<Nonterminal> dependencies;
+		private final Set<Nonterminal> dependents;
+		private int roots;
+
+		private boolean marked;
+		private int trialCount;
+
+		public Node(Nonterminal nt) {
+			this.nt = nt;
+			dependencies = newIdentitySet();
+			dependents = newIdentitySet();
+		}
+
+		public Node(Node other) {
+			this(other.nt);
+			dependencies.addAll(other.dependencies);
+			dependents.addAll(other.dependents);
+			roots = other.roots;
+		}
+
+		public int refCount() {
+			return roots + dependents.size();
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package com.magicmoremagic.coffee;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A brewed result together with the derivation tree which produced it, as recorded
+ * by DerivationBrewer.
+ *
+ * The tree is stored in a single int array rather than as node objects.  Nodes are
+ * numbered in pre-order, starting with the root at 0, and each has five fields:
+ * the nonterminal and production IDs assigned by the DerivationBrewer, the start
+ * and end of the span of the text it produced, and the size of its subtree
+ * (including itself).  The first child of node n, if it has any, is n + 1, and its
+ * next sibling is n + getSubtreeSize(n).  Terminals don't have nodes.  The
+ * production is -1 for a nonterminal which produced nothing, or whose expansion
+ * wasn't recorded, like a word list.
+ *
+ * A Derivation can be reused; DerivationBrewer clears it before each result.
+ */
+public class Derivation implements CharSequence {
+
+	static final int NODE_SIZE = 5;
+	static final int NONTERMINAL = 0;
+	static final int PRODUCTION = 1;
+	static final int START = 2;
+	static final int END = 3;
+	static final int SUBTREE_SIZE = 4;
+
+	private static final int MAGIC = 0x44524556; // "DREV"
+
+	final StringBuilder text;
+	int[] nodes;
+	int nodeCount;
+
+	public Derivation() {
+		text = new StringBuilder(256);
+		nodes = new int[NODE_SIZE * 64];
+	}
+
+	public Derivation(Derivation other) {
+		text = new StringBuilder(other.text);
+		nodes = Arrays.copyOf(other.nodes, Math.max(NODE_SIZE, NODE_SIZE * other.nodeCount));
+		nodeCount = other.nodeCount;
+	}
+
+	public void clear() {
+		text.setLength(0);
+		nodeCount = 0;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public int getNonterminal(int node) {
+		return field(node, NONTERMINAL);
+	}
+
+	public int getProduction(int node) {
+		return field(node, PRODUCTION);
+	}
+
+	public int getStart(int node) {
+		return field(node, START);
+	}
+
+	public int getEnd(int node) {
+		return field(node, END);
+	}
+
+	public int getSubtreeSize(int node) {
+		return field(node, SUBTREE_SIZE);
+	}
+
+	/**
+	 * Returns the parent of node, or -1 for the root.  Takes time proportional to the
+	 * depth of node times the number of siblings along the way.
+	 */
+	public int getParent(int node) {
+		checkNode(node);
+		int parent = -1;
+		int n = 0;
+		while (n != node) {
+			parent = n;
+			n = n + 1;
+			while (n + nodes[n * NODE_SIZE + SUBTREE_SIZE] <= node) {
+				n += nodes[n * NODE_SIZE + SUBTREE_SIZE];
+			}
+		}
+		return parent;
+	}
+
+	/**
+	 * Returns the text produced by node.
+	 */
+	public String getText(int node) {
+		return text.substring(getStart(node), getEnd(node));
+	}
+
+	/**
+	 * Returns the deepest node whose span contains the character at index, or -1 if
+	 * there is none.
+	 */
+	public int findNode(int index) {
+		if (nodeCount == 0 || index < nodes[START] || index >= nodes[END])
+			return -1;
+
+		int found = 0;
+		int n = 1;
+		int end = nodes[SUBTREE_SIZE];
+		while (n < end) {
+			int base = n * NODE_SIZE;
+			if (index >= nodes[base + START] && index < nodes[base + END]) {
+				found = n;
+				end = n + nodes[base + SUBTREE_SIZE];
+				++n;
+			} else {
+				n += nodes[base + SUBTREE_SIZE];
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public int length() {
+		return text.length();
+	}
+
+	@Override
+	public char charAt(int index) {
+		return text.charAt(index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return text.subSequence(start, end);
+	}
+
+	@Override
+	public String toString() {
+		return text.toString();
+	}
+
+	/**
+	 * Writes this derivation in a compact binary form: the text as UTF-8, then for
+	 * each node its fields as variable-length integers, with each start stored
+	 * relative to the previous node's start and each end relative to its start.
+	 */
+	public void write(DataOutput out) throws IOException {
+		byte[] utf8 = text.toString().getBytes(StandardCharsets.UTF_8);
+		out.writeInt(MAGIC);
+		writeVarInt(out, utf8.length);
+		out.write(utf8);
+		writeVarInt(out, nodeCount);
+		int previousStart = 0;
+		for (int n = 0; n < nodeCount; ++n) {
+			int base = n * NODE_SIZE;
+			writeVarInt(out, nodes[base + NONTERMINAL]);
+			writeVarInt(out, nodes[base + PRODUCTION] + 1);
+			writeVarInt(out, nodes[base + START] - previousStart);
+			writeVarInt(out, nodes[base + END] - nodes[base + START]);
+			writeVarInt(out, nodes[base + SUBTREE_SIZE]);
+			previousStart = nodes[base + START];
+		}
+	}
+
+	/**
+	 * Replaces the contents of this derivation with one written by write().
+	 */
+	public void read(DataInput in) throws IOException {
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a derivation.");
+
+		byte[] utf8 = new byte[readVarInt(in)];
+		in.readFully(utf8);
+		clear();
+		text.append(new String(utf8, StandardCharsets.UTF_8));
+
+		int count = readVarInt(in);
+		ensureCapacity(count);
+		int previousStart = 0;
+		for (int n = 0; n < count; ++n) {
+			int base = n * NODE_SIZE;
+			nodes[base + NONTERMINAL] = readVarInt(in);
+			nodes[base + PRODUCTION] = readVarInt(in) - 1;
+			nodes[base + START] = previousStart + readVarInt(in);
+			nodes[base + END] = nodes[base + START] + readVarInt(in);
+			nodes[base + SUBTREE_SIZE] = readVarInt(in);
+			previousStart = nodes[base + START];
+		}
+		nodeCount = count;
+	}
+
+	public byte[] toByteArray() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(text.length() + nodeCount * 6 + 16);
+		try {
+			write(new DataOutputStream(baos));
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return baos.toByteArray();
+	}
+
+	public static Derivation fromByteArray(byte[] data) throws IOException {
+		Derivation d = new Derivation();
+		d.read(new DataInputStream(new ByteArrayInputStream(data)));
+		return d;
+	}
+
+	/**
+	 * Appends a node with the given nonterminal starting at the current end of the
+	 * text, and returns its number.  The rest of its fields are set by the brewer.
+	 */
+	int addNode(int nonterminal) {
+		ensureCapacity(nodeCount + 1);
+		int base = nodeCount * NODE_SIZE;
+		nodes[base + NONTERMINAL] = nonterminal;
+		nodes[base + PRODUCTION] = -1;
+		nodes[base + START] = text.length();
+		return nodeCount++;
+	}
+
+	void finishNode(int node) {
+		int base = node * NODE_SIZE;
+		nodes[base + END] = text.length();
+		nodes[base + SUBTREE_SIZE] = nodeCount - node;
+	}
+
+	void ensureCapacity(int count) {
+		if (nodes.length < count * NODE_SIZE) {
+			nodes = Arrays.copyOf(nodes, Math.max(count, nodes.length / NODE_SIZE * 2) * NODE_SIZE);
+		}
+	}
+
+	private int field(int node, int field) {
+		checkNode(node);
+		return nodes[node * NODE_SIZE + field];
+	}
+
+	private void checkNode(int node) {
+		if (node < 0 || node >= nodeCount)
+			throw new IndexOutOfBoundsException("Node out of range: " + node);
+	}
+
+	private static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInput in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed variable-length integer.");
+	}
+}
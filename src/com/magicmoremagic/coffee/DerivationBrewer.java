@@ -0,0 +1,325 @@
+package com.magicmoremagic.coffee;
+
+import java.util.*;
+
+import com.magicmoremagic.coffee.random.RandomSource;
+
+/**
+ * Brews results while recording their derivation trees into a Derivation.
+ *
+ * The grammar is compiled into arrays when the DerivationBrewer is created, and
+ * each Nonterminal and Production is given an integer ID.  Nonterminals are
+ * numbered as in GrammarImage: the primaries of a NonterminalSet come first, in the
+ * order NonterminalSet.brew() chooses between them, followed by their dependencies.
+ * Productions are numbered consecutively, those of each nonterminal in order.
+ * Nested productions are flattened into the production which contains them.
+ *
+ * For a given RandomSource, the text of each result is the same as the
+ * corresponding Nonterminal or NonterminalSet would brew.  Word lists, and
+ * nonterminals with an OutcomeTable, are brewed by the Nonterminal itself and
+ * recorded as a single node with no production.  Later changes to the grammar are
+ * not seen, and the BrewObserver is not notified.
+ *
+ * A DerivationBrewer is immutable, and may be shared between threads.
+ */
+public class DerivationBrewer {
+
+	private final Nonterminal[] nonterminals;
+	private final Map<Nonterminal, Integer> nonterminalIndex;
+	private final int primaryCount;
+	private final boolean[] opaque;
+	private final int[] firstProduction;
+	private final Production[] productions;
+	private final double[] upperBounds;
+	private final int[] firstSymbol;
+	private final int[] symbols;
+	private final Symbol[] leaves;
+
+	/**
+	 * Compiles the primary nonterminals of set and everything they depend on.
+	 */
+	public DerivationBrewer(NonterminalSet set) {
+		this(set.iterator());
+	}
+
+	/**
+	 * Compiles root and everything it depends on; root has ID 0, and is the only
+	 * primary nonterminal.
+	 */
+	public DerivationBrewer(Nonterminal root) {
+		this(Collections.singletonList(root).iterator());
+	}
+
+	private DerivationBrewer(Iterator<Nonterminal> primaries) {
+		List<Nonterminal> list = new ArrayList<>();
+		nonterminalIndex = new IdentityHashMap<>();
+		while (primaries.hasNext()) {
+			index(primaries.next(), list);
+		}
+		primaryCount = list.size();
+		for (int i = 0; i < primaryCount; ++i) {
+			for (Nonterminal d : list.get(i).collectDependencies()) {
+				index(d, list);
+			}
+		}
+
+		nonterminals = list.toArray(new Nonterminal[list.size()]);
+		opaque = new boolean[nonterminals.length];
+		firstProduction = new int[nonterminals.length + 1];
+		List<Production> productionList = new ArrayList<>();
+		List<Symbol> leafList = new ArrayList<>();
+		Map<Symbol, Integer> leafIndex = new IdentityHashMap<>();
+		int[] symbolArray = new int[64];
+		int symbolCount = 0;
+		List<Integer> firstSymbolList = new ArrayList<>();
+		List<Integer> refs = new ArrayList<>();
+
+		for (int i = 0; i < nonterminals.length; ++i) {
+			Nonterminal nt = nonterminals[i];
+			firstProduction[i] = productionList.size();
+			if (nt instanceof WordList || nt.getOutcomeTable() != null) {
+				opaque[i] = true;
+				continue;
+			}
+
+			for (Production p : nt) {
+				productionList.add(p);
+				firstSymbolList.add(symbolCount);
+				refs.clear();
+				flatten(p, refs, leafList, leafIndex);
+				for (int ref : refs) {
+					if (symbolCount == symbolArray.length) {
+						symbolArray = Arrays.copyOf(symbolArray, symbolCount * 2);
+					}
+					symbolArray[symbolCount++] = ref;
+				}
+			}
+		}
+		firstProduction[nonterminals.length] = productionList.size();
+		firstSymbolList.add(symbolCount);
+
+		productions = productionList.toArray(new Production[productionList.size()]);
+		upperBounds = new double[productions.length];
+		for (int p = 0; p < productions.length; ++p) {
+			upperBounds[p] = productions[p].getUpperBound();
+		}
+		firstSymbol = new int[firstSymbolList.size()];
+		for (int p = 0; p < firstSymbol.length; ++p) {
+			firstSymbol[p] = firstSymbolList.get(p);
+		}
+		symbols = Arrays.copyOf(symbolArray, symbolCount);
+		leaves = leafList.toArray(new Symbol[leafList.size()]);
+	}
+
+	private void index(Nonterminal nt, List<Nonterminal> list) {
+		if (!nonterminalIndex.containsKey(nt)) {
+			nonterminalIndex.put(nt, list.size());
+			list.add(nt);
+		}
+	}
+
+	private void flatten(Production p, List<Integer> refs, List<Symbol> leafList, Map<Symbol, Integer> leafIndex) {
+		for (int i = 0; i < p.size(); ++i) {
+			Symbol s = p.get(i);
+			if (s instanceof Production) {
+				flatten((Production)s, refs, leafList, leafIndex);
+			} else if (s instanceof Nonterminal) {
+				refs.add(nonterminalIndex.get(s));
+			} else {
+				Integer index = leafIndex.get(s);
+				if (index == null) {
+					index = leafList.size();
+					leafList.add(s);
+					leafIndex.put(s, index);
+				}
+				refs.add(~index);
+			}
+		}
+	}
+
+	public int getNonterminalCount() {
+		return nonterminals.length;
+	}
+
+	public int getPrimaryCount() {
+		return primaryCount;
+	}
+
+	public int getProductionCount() {
+		return productions.length;
+	}
+
+	public Nonterminal getNonterminal(int id) {
+		return nonterminals[id];
+	}
+
+	/**
+	 * Returns the ID of nt, or -1 if it isn't part of the compiled grammar.
+	 */
+	public int indexOf(Nonterminal nt) {
+		Integer id = nonterminalIndex.get(nt);
+		return id == null ? -1 : id;
+	}
+
+	public Production getProduction(int id) {
+		return productions[id];
+	}
+
+	/**
+	 * Returns the ID of the first production of a nonterminal.  Its productions are
+	 * those from this ID up to the first production of the next nonterminal; for the
+	 * last nonterminal, getFirstProduction(getNonterminalCount()) is the production
+	 * count.
+	 */
+	public int getFirstProduction(int nonterminal) {
+		return firstProduction[nonterminal];
+	}
+
+	/**
+	 * Returns the ID of the nonterminal which production belongs to.
+	 */
+	public int getOwner(int production) {
+		if (production < 0 || production >= productions.length)
+			throw new IndexOutOfBoundsException("Production out of range: " + production);
+
+		int begin = 0;
+		int end = nonterminals.length;
+		while (end - begin > 1) {
+			int pivot = (begin + end) >>> 1;
+			if (firstProduction[pivot] <= production) {
+				begin = pivot;
+			} else {
+				end = pivot;
+			}
+		}
+		return begin;
+	}
+
+	/**
+	 * Replaces the contents of dest with a result from a nonterminal and its
+	 * derivation.
+	 */
+	public Derivation brew(int nonterminal, RandomSource rnd, Derivation dest) {
+		return brew(nonterminal, rnd, dest, null);
+	}
+
+	/**
+	 * Like brew(int, RandomSource, Derivation), but lets selector choose or observe
+	 * each production used.  selector may be null, and must have been created for
+	 * this DerivationBrewer.
+	 */
+	public Derivation brew(int nonterminal, RandomSource rnd, Derivation dest, ProductionSelector selector) {
+		if (nonterminal < 0 || nonterminal >= nonterminals.length)
+			throw new IndexOutOfBoundsException("Nonterminal out of range: " + nonterminal);
+
+		dest.clear();
+		expand(nonterminal, rnd, dest, selector);
+		return dest;
+	}
+
+	/**
+	 * Brews a randomly selected primary nonterminal, as NonterminalSet.brew() does.
+	 */
+	public Derivation brewRandom(RandomSource rnd, Derivation dest) {
+		return brewRandom(rnd, dest, null);
+	}
+
+	public Derivation brewRandom(RandomSource rnd, Derivation dest, ProductionSelector selector) {
+		dest.clear();
+		if (primaryCount > 0) {
+			expand(rnd.nextInt(primaryCount), rnd, dest, selector);
+		}
+		return dest;
+	}
+
+	/**
+	 * Appends a derivation of nonterminal to the end of dest, with its node as the
+	 * last node so far, and returns that node's number.
+	 */
+	int expand(int nonterminal, RandomSource rnd, Derivation dest) {
+		return expand(nonterminal, rnd, dest, null);
+	}
+
+	private int expand(int nonterminal, RandomSource rnd, Derivation dest, ProductionSelector selector) {
+		int node = dest.addNode(nonterminal);
+		if (opaque[nonterminal]) {
+			nonterminals[nonterminal].brew(rnd, dest.text);
+			dest.finishNode(node);
+			return node;
+		}
+
+		int first = firstProduction[nonterminal];
+		int end = firstProduction[nonterminal + 1];
+		if (first < end) {
+			int production = selector == null ? -1 : selector.select(nonterminal, rnd);
+			if (production < 0) {
+				double roll = rnd.nextDouble() * upperBounds[end - 1];
+				production = findProduction(first, end, roll);
+			}
+			if (production >= 0) {
+				if (selector != null) {
+					selector.selected(nonterminal, production);
+				}
+				dest.nodes[node * Derivation.NODE_SIZE + Derivation.PRODUCTION] = production;
+				expandProduction(production, rnd, dest, selector);
+			}
+		}
+		dest.finishNode(node);
+		return node;
+	}
+
+	/**
+	 * Like expand(), but uses the given production instead of choosing one.
+	 */
+	int expand(int nonterminal, int production, RandomSource rnd, Derivation dest) {
+		int node = dest.addNode(nonterminal);
+		dest.nodes[node * Derivation.NODE_SIZE + Derivation.PRODUCTION] = production;
+		expandProduction(production, rnd, dest, null);
+		dest.finishNode(node);
+		return node;
+	}
+
+	/**
+	 * Returns the upper bound of production's range of cumulative weight; its lower
+	 * bound is the upper bound of the previous production of the same nonterminal.
+	 */
+	double getUpperBound(int production) {
+		return upperBounds[production];
+	}
+
+	private void expandProduction(int production, RandomSource rnd, Derivation dest, ProductionSelector selector) {
+		final int symbolEnd = firstSymbol[production + 1];
+		for (int s = firstSymbol[production]; s < symbolEnd; ++s) {
+			int ref = symbols[s];
+			if (ref >= 0) {
+				expand(ref, rnd, dest, selector);
+			} else {
+				leaves[~ref].brew(rnd, dest.text);
+			}
+		}
+	}
+
+	boolean isOpaque(int nonterminal) {
+		return opaque[nonterminal];
+	}
+
+	/**
+	 * The same search as Nonterminal.findProduction(): each production covers the
+	 * range from the previous one's upper bound (or 0) to its own.
+	 */
+	private int findProduction(int begin, int end, double roll) {
+		final int first = begin;
+		while (begin < end) {
+			int pivot = begin + (end - begin) / 2;
+			double lower = pivot == first ? 0.0 : upperBounds[pivot - 1];
+			if (roll < lower) {
+				end = pivot;
+			} else if (roll >= upperBounds[pivot]) {
+				begin = pivot + 1;
+			} else {
+				return pivot;
+			}
+		}
+		return -1;
+	}
+}
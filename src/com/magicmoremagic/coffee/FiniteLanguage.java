@@ -0,0 +1,212 @@
+package com.magicmoremagic.coffee;
+
+import java.util.*;
+
+/**
+ * Finds Nonterminals which are not recursive and whose complete output distribution
+ * has no more than a given number of distinct strings, and gives each of them an
+ * OutcomeTable.  A Nonterminal with an OutcomeTable brews by sampling the table once
+ * instead of expanding its productions, which collapses whole subtrees into a single
+ * lookup.
+ *
+ * Sampling a table consumes the random source differently than expanding, so a
+ * seed produces different (but identically distributed) results once tables are in
+ * place.  Expansions resolved from a table are not reported to a BrewObserver.
+ *
+ * WordLists are never tabulated, so neither is anything which depends on one.
+ *
+ * A table is discarded when its own Nonterminal or one of its productions is
+ * modified, but not when one of its dependencies is; precompute() should be run
+ * again after changing a grammar.
+ */
+public final class FiniteLanguage {
+
+	public static final int DEFAULT_MAX_OUTCOMES = 4096;
+
+	private static final long MAX_CHARS = 1 << 22;
+
+	private static final Map<String, Double> INFINITE = Collections.emptyMap();
+
+	private final int maxOutcomes;
+	private final Map<Nonterminal, Map<String, Double>> results;
+
+	/**
+	 * Analyzes the given Nonterminals and everything they depend on, and installs an
+	 * OutcomeTable on each one whose language has at most maxOutcomes strings.
+	 *
+	 * @return the number of Nonterminals that now have an OutcomeTable.
+	 */
+	public static int precompute(Iterable<Nonterminal> nonterminals, int maxOutcomes) {
+		if (maxOutcomes < 1)
+			throw new IllegalArgumentException("maxOutcomes must be positive.");
+
+		FiniteLanguage analysis = new FiniteLanguage(maxOutcomes);
+		for (Nonterminal nt : nonterminals) {
+			analysis.analyze(nt);
+		}
+
+		int count = 0;
+		for (Map.Entry<Nonterminal, Map<String, Double>> entry : analysis.results.entrySet()) {
+			if (entry.getValue() != INFINITE) {
+				entry.getKey().setOutcomeTable(new OutcomeTable(entry.getValue()));
+				++count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Removes the OutcomeTables from the given Nonterminals and everything they
+	 * depend on.
+	 */
+	public static void clear(Iterable<Nonterminal> nonterminals) {
+		for (Nonterminal nt : nonterminals) {
+			for (Nonterminal dnt : nt.collectDependencies()) {
+				dnt.setOutcomeTable(null);
+			}
+		}
+	}
+
+	private FiniteLanguage(int maxOutcomes) {
+		this.maxOutcomes = maxOutcomes;
+		results = new IdentityHashMap<>();
+	}
+
+	/**
+	 * Depth-first, post-order walk of the dependencies of root.  A Nonterminal whose
+	 * dependency is still on the stack is part of a cycle; it and everything that
+	 * depends on it are infinite.
+	 */
+	private void analyze(Nonterminal root) {
+		if (results.containsKey(root))
+			return;
+
+		Set<Nonterminal> onStack = DependencyGraph.newIdentitySet();
+		Deque<Frame> stack = new ArrayDeque<>();
+		onStack.add(root);
+		stack.push(new Frame(root));
+
+		while (!stack.isEmpty()) {
+			Frame frame = stack.peek();
+			if (frame.pending.hasNext()) {
+				Nonterminal d = frame.pending.next();
+				Map<String, Double> result = results.get(d);
+				if (result != null) {
+					if (result == INFINITE) {
+						frame.finite = false;
+					}
+				} else if (onStack.contains(d)) {
+					frame.finite = false;
+				} else {
+					onStack.add(d);
+					stack.push(new Frame(d));
+				}
+				continue;
+			}
+
+			stack.pop();
+			onStack.remove(frame.nt);
+
+			Map<String, Double> dist = frame.finite ? distribution(frame.nt) : null;
+			results.put(frame.nt, dist == null ? INFINITE : dist);
+			if (dist == null && !stack.isEmpty()) {
+				stack.peek().finite = false;
+			}
+		}
+	}
+
+	private Map<String, Double> distribution(Nonterminal nt) {
+		if (nt instanceof WordList)
+			return null;
+
+		double total = 0;
+		for (Production p : nt) {
+			total += p.getWeight();
+		}
+
+		Map<String, Double> dist = new LinkedHashMap<>();
+		if (total <= 0) {
+			dist.put("", 1.0);
+			return dist;
+		}
+
+		for (Production p : nt) {
+			double weight = p.getWeight();
+			if (weight <= 0)
+				continue;
+
+			Map<String, Double> pdist = new LinkedHashMap<>();
+			pdist.put("", weight / total);
+			pdist = sequence(pdist, p);
+			if (pdist == null)
+				return null;
+
+			for (Map.Entry<String, Double> entry : pdist.entrySet()) {
+				merge(dist, entry.getKey(), entry.getValue());
+			}
+			if (dist.size() > maxOutcomes)
+				return null;
+		}
+
+		long chars = 0;
+		for (String s : dist.keySet()) {
+			chars += s.length();
+		}
+		return chars > MAX_CHARS ? null : dist;
+	}
+
+	private Map<String, Double> sequence(Map<String, Double> prefixes, Production p) {
+		for (Symbol s : p) {
+			if (s instanceof Terminal) {
+				String content = String.valueOf(((Terminal)s).get());
+				Map<String, Double> next = new LinkedHashMap<>();
+				for (Map.Entry<String, Double> entry : prefixes.entrySet()) {
+					merge(next, entry.getKey() + content, entry.getValue());
+				}
+				prefixes = next;
+
+			} else if (s instanceof Nonterminal) {
+				Map<String, Double> suffixes = results.get(s);
+				if (suffixes == null || suffixes == INFINITE)
+					return null;
+
+				Map<String, Double> next = new LinkedHashMap<>();
+				for (Map.Entry<String, Double> prefix : prefixes.entrySet()) {
+					for (Map.Entry<String, Double> suffix : suffixes.entrySet()) {
+						merge(next, prefix.getKey() + suffix.getKey(), prefix.getValue() * suffix.getValue());
+					}
+				}
+				prefixes = next;
+
+			} else if (s instanceof Production) {
+				prefixes = sequence(prefixes, (Production)s);
+				if (prefixes == null)
+					return null;
+
+			} else {
+				return null;
+			}
+
+			if (prefixes.size() > maxOutcomes)
+				return null;
+		}
+		return prefixes;
+	}
+
+	private static void merge(Map<String, Double> dist, String outcome, double probability) {
+		Double existing = dist.get(outcome);
+		dist.put(outcome, existing == null ? probability : existing + probability);
+	}
+
+	private static class Frame {
+
+		private final Nonterminal nt;
+		private final Iterator<Nonterminal> pending;
+		private boolean finite = true;
+
+		public Frame(Nonterminal nt) {
+			this.nt = nt;
+			pending = nt.getDirectDependencies().iterator();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.magicmoremagic.coffee;
+
+import java.util.*;
+
+/**
+ * Deep copies grammars in a single pass.  Every Symbol copied through the same
+ * GrammarCopier is copied at most once, and later references to it (including
+ * recursive ones) resolve to that copy, so the result has exactly the sharing and
+ * cycles of the original.  Several calls on one GrammarCopier may be used to copy
+ * related grammars so that they keep sharing whatever they shared before.
+ *
+ * Copied Nonterminals keep their names.  A WordList's copy shares its mapping, and
+ * a Nonterminal's OutcomeTable is shared by its copy; neither is ever modified.
+ *
+ * Nonterminals are copied from an explicit work list, so deep chains of them can't
+ * overflow the call stack.  A GrammarCopier is not thread-safe.
+ */
+public class GrammarCopier {
+
+	private final Map<Symbol, Symbol> copies;
+	private final Deque<Nonterminal> pending;
+
+	public GrammarCopier() {
+		copies = new IdentityHashMap<>();
+		pending = new ArrayDeque<>();
+	}
+
+	/**
+	 * Returns a NonterminalSet containing copies of the primary nonterminals of set
+	 * and everything they depend on.
+	 */
+	public NonterminalSet copy(NonterminalSet set) {
+		NonterminalSet result = new NonterminalSet();
+		result.setDefaultLexer(set.getDefaultLexer());
+		for (Nonterminal nt : set) {
+			result.add(copy(nt));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the copy of nt, copying it and everything it depends on if that hasn't
+	 * been done already.
+	 */
+	public Nonterminal copy(Nonterminal nt) {
+		Nonterminal result = shell(nt);
+		drain();
+		return result;
+	}
+
+	public Production copy(Production production) {
+		Production result = copyProduction(production);
+		drain();
+		return result;
+	}
+
+	public Symbol copy(Symbol symbol) {
+		Symbol result = copySymbol(symbol);
+		drain();
+		return result;
+	}
+
+	/**
+	 * Returns the copy made of original so far, or null if it hasn't been copied.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Symbol> T getCopy(T original) {
+		return (T)copies.get(original);
+	}
+
+	/**
+	 * Fills dest, which must be empty, with copies of the productions of original,
+	 * and copies everything they depend on.  References to original resolve to dest.
+	 */
+	void copyInto(Nonterminal original, Nonterminal dest) {
+		if (copies.containsKey(original))
+			throw new IllegalStateException("Nonterminal has already been copied.");
+
+		copies.put(original, dest);
+		pending.add(original);
+		drain();
+	}
+
+	/**
+	 * Returns the copy of nt, creating it without productions and queueing nt to have
+	 * them copied if necessary.
+	 */
+	private Nonterminal shell(Nonterminal nt) {
+		Nonterminal result = (Nonterminal)copies.get(nt);
+		if (result == null) {
+			if (nt instanceof WordList) {
+				result = new WordList((WordList)nt);
+				result.setName(nt.getName());
+			} else {
+				result = new Nonterminal(nt.getName());
+				pending.add(nt);
+			}
+			copies.put(nt, result);
+		}
+		return result;
+	}
+
+	private void drain() {
+		while (!pending.isEmpty()) {
+			Nonterminal nt = pending.poll();
+			Nonterminal result = (Nonterminal)copies.get(nt);
+			for (Production p : nt) {
+				result.add(copyProduction(p));
+			}
+
+			// adding productions discards the table, so it goes back afterwards
+			result.setOutcomeTable(nt.getOutcomeTable());
+		}
+	}
+
+	private Production copyProduction(Production production) {
+		Production result = (Production)copies.get(production);
+		if (result == null) {
+			result = new Production(production.getWeight());
+			copies.put(production, result);
+			for (Symbol s : production) {
+				result.add(copySymbol(s));
+			}
+		}
+		return result;
+	}
+
+	private Symbol copySymbol(Symbol symbol) {
+		if (symbol instanceof Nonterminal) {
+			return shell((Nonterminal)symbol);
+		} else if (symbol instanceof Production) {
+			return copyProduction((Production)symbol);
+		}
+
+		Symbol result = copies.get(symbol);
+		if (result == null) {
+			result = symbol.clone();
+			copies.put(symbol, result);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,510 @@
+package com.magicmoremagic.coffee;
+
+import java.util.*;
+
+/**
+ * Computes structural fingerprints of Nonterminals, and compares them structurally,
+ * without recursion, so cyclic and very deep grammars are handled safely.
+ *
+ * The fingerprint of a Nonterminal depends on its name, the weights of its
+ * productions, their symbols, and (recursively) everything it depends on.  It is
+ * computed Merkle-style over the strongly connected components of the dependency
+ * graph: each component is hashed from the content of its members and the
+ * fingerprints of the components it depends on, in dependency order.
+ *
+ * Results are cached on each Nonterminal, along with the reverse edges of the graph:
+ * each cache knows the caches of the Nonterminals which refer to it.  When a
+ * Nonterminal or one of its Productions changes, its fingerprint and those of
+ * everything which depends on it are invalidated through those edges, and only
+ * they are recomputed by the next query; renaming a Nonterminal also invalidates
+ * the content of those which refer to it by name.  Changes to nested Productions,
+ * which have no owner, invalidate everything which reached a nested Production
+ * when it was last hashed.  Changing the content of a Terminal in place with
+ * Terminal.set() is not detected.
+ *
+ * The reverse edges are only kept while a cached content hash is current, but they
+ * do keep the (small) caches of the Nonterminals which refer to a fingerprinted
+ * Nonterminal reachable from it.
+ *
+ * Two Nonterminals are equivalent if there is a one-to-one mapping between the
+ * Nonterminals reachable from each which preserves names, exact production weights
+ * and symbols.  Equivalent Nonterminals always have the same fingerprint.
+ */
+public final class GrammarFingerprint {
+
+	private static final long C1 = 0x87C37B91114253D5L;
+	private static final long C2 = 0x4CF5AD432745937FL;
+	private static final long SEED = 0x436F66666565L;
+
+	private static final int TERMINAL = 1;
+	private static final int NONTERMINAL = 2;
+	private static final int PRODUCTION = 3;
+	private static final int OTHER = 4;
+
+	// guards the caches while they are computed or invalidated
+	private static final Object LOCK = new Object();
+
+	/**
+	 * Returns the fingerprint of nt.
+	 */
+	public static long of(Nonterminal nt) {
+		Cache cache = nt.fingerprintCache;
+		if (cache != null && cache.isCurrent())
+			return cache.fingerprint;
+
+		synchronized (LOCK) {
+			compute(nt);
+			return nt.fingerprintCache.fingerprint;
+		}
+	}
+
+	/**
+	 * Returns a fingerprint of every Nonterminal in a NonterminalSet, which also
+	 * depends on which of them are primary.
+	 */
+	public static long of(NonterminalSet set) {
+		Collection<Nonterminal> all = set.getAll();
+		long[] fingerprints = new long[all.size()];
+		int i = 0;
+		for (Nonterminal nt : all) {
+			long fp = of(nt);
+			if (set.get(nt.getName()) == nt) {
+				fp = mix(fp, C2);
+			}
+			fingerprints[i++] = fp;
+		}
+
+		Arrays.sort(fingerprints);
+		Hasher h = new Hasher();
+		h.add(fingerprints.length);
+		for (long fp : fingerprints) {
+			h.add(fp);
+		}
+		return h.finish();
+	}
+
+	/**
+	 * Returns true if a and b are structurally identical.
+	 */
+	public static boolean equivalent(Nonterminal a, Nonterminal b) {
+		if (a == b)
+			return true;
+
+		Cache ca = a.fingerprintCache;
+		Cache cb = b.fingerprintCache;
+		if (ca != null && cb != null && ca.isCurrent() && cb.isCurrent() && ca.fingerprint != cb.fingerprint)
+			return false;
+
+		return new Matcher().match(a, b);
+	}
+
+	/**
+	 * Invalidates the fingerprint of nt and of everything which depends on it, after
+	 * nt or one of its owned Productions has changed.
+	 */
+	static void invalidate(Nonterminal nt, boolean renamed) {
+		synchronized (LOCK) {
+			Cache cache = nt.fingerprintCache;
+			if (cache == null)
+				return;
+
+			List<Cache> referrers = Collections.emptyList();
+			if (renamed && cache.dependents != null) {
+				referrers = new ArrayList<>(cache.dependents);
+			}
+
+			Deque<Cache> pending = new ArrayDeque<>();
+			cache.valid = false;
+			pending.push(cache);
+			while (!pending.isEmpty()) {
+				Cache c = pending.pop();
+				if (c.dependents == null)
+					continue;
+
+				for (Cache d : c.dependents) {
+					if (d.valid) {
+						d.valid = false;
+						pending.push(d);
+					}
+				}
+			}
+
+			discardContent(cache);
+			for (Cache c : referrers) {
+				discardContent(c);
+			}
+		}
+	}
+
+	/**
+	 * Walks everything reachable from root whose fingerprint isn't current, finding
+	 * strongly connected components with Tarjan's algorithm.  Components are
+	 * completed in dependency order, so the fingerprints of everything outside a
+	 * component are known by the time it is hashed.
+	 */
+	private static void compute(Nonterminal root) {
+		Cache rootCache = root.fingerprintCache;
+		if (rootCache != null && rootCache.isCurrent())
+			return;
+
+		long nestedStamp = Production.getNestedModificationCount();
+		Map<Nonterminal, Vertex> vertices = new IdentityHashMap<>();
+		Deque<Vertex> path = new ArrayDeque<>();
+		Deque<Vertex> stack = new ArrayDeque<>();
+		List<Vertex> component = new ArrayList<>();
+		int nextIndex = 0;
+
+		Vertex start = new Vertex(root, nextIndex++);
+		vertices.put(root, start);
+		stack.push(start);
+		path.push(start);
+		while (!path.isEmpty()) {
+			Vertex v = path.peek();
+			if (v.next < v.dependencies.size()) {
+				Nonterminal d = v.dependencies.get(v.next++);
+				Cache cache = d.fingerprintCache;
+				if (cache != null && cache.isCurrent())
+					continue;
+
+				Vertex w = vertices.get(d);
+				if (w == null) {
+					w = new Vertex(d, nextIndex++);
+					vertices.put(d, w);
+					stack.push(w);
+					path.push(w);
+				} else if (w.onStack) {
+					v.lowLink = Math.min(v.lowLink, w.index);
+				}
+				continue;
+			}
+
+			path.pop();
+			if (!path.isEmpty()) {
+				Vertex parent = path.peek();
+				parent.lowLink = Math.min(parent.lowLink, v.lowLink);
+			}
+
+			if (v.lowLink == v.index) {
+				Vertex member;
+				do {
+					member = stack.pop();
+					member.onStack = false;
+					component.add(member);
+				} while (member != v);
+
+				finish(component, nestedStamp);
+				component.clear();
+			}
+		}
+	}
+
+	/**
+	 * Hashes one strongly connected component from the content hashes of its members
+	 * and the fingerprints of its other dependencies, then caches the fingerprint of
+	 * each member.
+	 */
+	private static void finish(List<Vertex> component, long nestedStamp) {
+		long[] contents = new long[component.size()];
+		int externalCount = 0;
+		boolean nested = false;
+		for (int i = 0; i < contents.length; ++i) {
+			Vertex v = component.get(i);
+			contents[i] = v.contentHash;
+			externalCount += v.dependencies.size();
+			nested |= v.nt.fingerprintCache.contentNested;
+		}
+
+		long[] externals = new long[externalCount];
+		externalCount = 0;
+		for (Vertex v : component) {
+			for (Nonterminal d : v.dependencies) {
+				Cache cache = d.fingerprintCache;
+				if (cache.valid) {
+					// dependencies within this component aren't finished yet
+					externals[externalCount++] = cache.fingerprint;
+					nested |= cache.nested;
+				}
+			}
+		}
+
+		Arrays.sort(contents);
+		Arrays.sort(externals, 0, externalCount);
+		Hasher h = new Hasher();
+		h.add(contents.length);
+		for (long c : contents) {
+			h.add(c);
+		}
+		h.add(externalCount);
+		long previous = 0;
+		for (int i = 0; i < externalCount; ++i) {
+			if (i == 0 || externals[i] != previous) {
+				h.add(externals[i]);
+			}
+			previous = externals[i];
+		}
+		long componentHash = h.finish();
+
+		for (Vertex v : component) {
+			Cache cache = v.nt.fingerprintCache;
+			cache.fingerprint = mix(componentHash, v.contentHash);
+			cache.nested = nested;
+			cache.nestedStamp = nestedStamp;
+			cache.valid = true;
+		}
+	}
+
+	/**
+	 * Returns the hash of the content of nt alone, referring to other Nonterminals
+	 * only by name, and registers nt's cache as a dependent of theirs.  Cached until
+	 * nt, or the name of one of its dependencies, changes.
+	 */
+	private static long contentHash(Nonterminal nt, List<Nonterminal> dependencies) {
+		Cache cache = cacheOf(nt);
+		if (cache.contentValid && (!cache.contentNested || cache.contentNestedStamp == Production.getNestedModificationCount()))
+			return cache.contentHash;
+
+		discardContent(cache);
+		cache.contentNestedStamp = Production.getNestedModificationCount();
+		cache.contentNested = false;
+
+		Hasher h = new Hasher();
+		h.add(nt.getName());
+		if (nt instanceof WordList) {
+			WordList list = (WordList)nt;
+			h.add(list.getFile().toString());
+			h.add(list.isWeighted() ? 1 : 0);
+			h.add(list.getWordCount());
+		}
+		h.add(nt.size());
+		for (Production p : nt) {
+			h.add(Double.doubleToLongBits(p.getWeight()));
+			addSymbols(h, p, cache);
+		}
+		cache.contentHash = h.finish();
+
+		cache.dependencies = new Cache[dependencies.size()];
+		for (int i = 0; i < cache.dependencies.length; ++i) {
+			Cache d = cacheOf(dependencies.get(i));
+			if (d.dependents == null) {
+				d.dependents = DependencyGraph.newIdentitySet();
+			}
+			d.dependents.add(cache);
+			cache.dependencies[i] = d;
+		}
+		cache.contentValid = true;
+		return cache.contentHash;
+	}
+
+	/**
+	 * Forgets the content hash of cache, and with it the edges to its dependencies.
+	 */
+	private static void discardContent(Cache cache) {
+		cache.contentValid = false;
+		if (cache.dependencies != null) {
+			for (Cache d : cache.dependencies) {
+				d.dependents.remove(cache);
+			}
+			cache.dependencies = null;
+		}
+	}
+
+	private static Cache cacheOf(Nonterminal nt) {
+		Cache cache = nt.fingerprintCache;
+		if (cache == null) {
+			cache = new Cache();
+			nt.fingerprintCache = cache;
+		}
+		return cache;
+	}
+
+	private static void addSymbols(Hasher h, Production p, Cache cache) {
+		h.add(p.size());
+		for (int i = 0; i < p.size(); ++i) {
+			Symbol s = p.get(i);
+			if (s instanceof Terminal) {
+				h.add(TERMINAL);
+				h.add(((Terminal)s).get());
+			} else if (s instanceof Nonterminal) {
+				h.add(NONTERMINAL);
+				h.add(((Nonterminal)s).getName());
+			} else if (s instanceof Production) {
+				Production nested = (Production)s;
+				nested.markNested();
+				cache.contentNested = true;
+				h.add(PRODUCTION);
+				addSymbols(h, nested, cache);
+			} else {
+				h.add(OTHER);
+				h.add(s.hashCode());
+			}
+		}
+	}
+
+	private static long mix(long a, long b) {
+		Hasher h = new Hasher();
+		h.add(a);
+		h.add(b);
+		return h.finish();
+	}
+
+	/**
+	 * Fingerprint state stored on each Nonterminal.
+	 */
+	static final class Cache {
+		long contentHash;
+		boolean contentValid;
+		boolean contentNested;
+		long contentNestedStamp;
+		Cache[] dependencies;
+		Set<Cache> dependents;
+
+		long fingerprint;
+		boolean nested;
+		long nestedStamp;
+		volatile boolean valid;
+
+		boolean isCurrent() {
+			return valid && (!nested || nestedStamp == Production.getNestedModificationCount());
+		}
+	}
+
+	private static final class Vertex {
+		final Nonterminal nt;
+		final int index;
+		final long contentHash;
+		final List<Nonterminal> dependencies;
+		int lowLink;
+		int next;
+		boolean onStack = true;
+
+		Vertex(Nonterminal nt, int index) {
+			this.nt = nt;
+			this.index = index;
+			lowLink = index;
+			dependencies = new ArrayList<>(nt.getDirectDependencies());
+			contentHash = contentHash(nt, dependencies);
+			// may be stale rather than invalid; either way it's recomputed now
+			nt.fingerprintCache.valid = false;
+		}
+	}
+
+	/**
+	 * Checks two graphs for equivalence by pairing up Nonterminals as they are
+	 * reached, using an explicit work list.
+	 */
+	private static final class Matcher {
+		private final Map<Nonterminal, Nonterminal> forward = new IdentityHashMap<>();
+		private final Map<Nonterminal, Nonterminal> backward = new IdentityHashMap<>();
+		private final Deque<Nonterminal> pending = new ArrayDeque<>();
+
+		boolean match(Nonterminal a, Nonterminal b) {
+			pair(a, b);
+			while (!pending.isEmpty()) {
+				Nonterminal x = pending.pop();
+				Nonterminal y = pending.pop();
+				if (!matchContent(x, y))
+					return false;
+			}
+			return true;
+		}
+
+		private boolean pair(Nonterminal a, Nonterminal b) {
+			Nonterminal existing = forward.get(a);
+			if (existing != null)
+				return existing == b;
+			if (backward.containsKey(b))
+				return false;
+
+			forward.put(a, b);
+			backward.put(b, a);
+			pending.push(b);
+			pending.push(a);
+			return true;
+		}
+
+		private boolean matchContent(Nonterminal a, Nonterminal b) {
+			if (a.getClass() != b.getClass() || !a.getName().equals(b.getName()) || a.size() != b.size())
+				return false;
+
+			if (a instanceof WordList) {
+				WordList la = (WordList)a;
+				WordList lb = (WordList)b;
+				if (!la.getFile().equals(lb.getFile()) || la.isWeighted() != lb.isWeighted())
+					return false;
+			}
+
+			Iterator<Production> ib = b.iterator();
+			for (Production pa : a) {
+				Production pb = ib.next();
+				if (Double.doubleToLongBits(pa.getWeight()) != Double.doubleToLongBits(pb.getWeight()))
+					return false;
+				if (!matchSymbols(pa, pb))
+					return false;
+			}
+			return true;
+		}
+
+		private boolean matchSymbols(Production a, Production b) {
+			if (a.size() != b.size())
+				return false;
+
+			for (int i = 0; i < a.size(); ++i) {
+				Symbol sa = a.get(i);
+				Symbol sb = b.get(i);
+				if (sa instanceof Nonterminal) {
+					if (!(sb instanceof Nonterminal) || !pair((Nonterminal)sa, (Nonterminal)sb))
+						return false;
+				} else if (sa instanceof Production) {
+					if (!(sb instanceof Production) || !matchSymbols((Production)sa, (Production)sb))
+						return false;
+				} else if (!sa.equals(sb)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * A simple 64-bit streaming hash with a final avalanche step.
+	 */
+	private static final class Hasher {
+		private long h = SEED;
+
+		void add(long x) {
+			h = Long.rotateLeft(h ^ (x * C1), 31) * C2 + 0x52DCE729L;
+		}
+
+		void add(String s) {
+			if (s == null) {
+				add(-1);
+				return;
+			}
+
+			int len = s.length();
+			add(len);
+			int i = 0;
+			for (; i + 4 <= len; i += 4) {
+				add((long)s.charAt(i) | (long)s.charAt(i + 1) << 16 | (long)s.charAt(i + 2) << 32 | (long)s.charAt(i + 3) << 48);
+			}
+			long tail = 0;
+			for (int shift = 0; i < len; ++i, shift += 16) {
+				tail |= (long)s.charAt(i) << shift;
+			}
+			add(tail);
+		}
+
+		long finish() {
+			long x = h;
+			x ^= x >>> 33;
+			x *= 0xFF51AFD7ED558CCDL;
+			x ^= x >>> 33;
+			x *= 0xC4CEB9FE1A85EC53L;
+			x ^= x >>> 33;
+			return x;
+		}
+	}
+
+	private GrammarFingerprint() { }
+
+}
@@ -0,0 +1,358 @@
+package com.magicmoremagic.coffee;
+
+import java.util.*;
+
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.RandomSources;
+import com.magicmoremagic.coffee.random.ThreadLocalRandomSource;
+
+/**
+ * Brews a NonterminalSet with some of its production weights overridden, without
+ * copying it, so that many tenants can each have their own weights for one large
+ * grammar.  A fork holds only its overrides and the cumulative weights of the
+ * nonterminals which own them, so its memory is proportional to those, not to the
+ * size of the grammar.
+ *
+ * With no overrides in effect a fork brews exactly what the NonterminalSet would.
+ * Otherwise the fork expands every Nonterminal itself, ignoring OutcomeTables,
+ * which don't reflect the overrides; WordLists are still brewed as usual.
+ *
+ * A fork sees later changes to the grammar.  The weights of a nonterminal which owns
+ * overrides are recomputed the next time it is brewed after it changes, and
+ * overrides of productions which have since been removed are ignored.
+ *
+ * Forks may be brewed by any number of threads while their overrides are changed;
+ * each brew sees a consistent set of overrides.  fork() is cheap, since forks share
+ * their overrides until one of them changes.
+ */
+public class GrammarFork implements Symbol {
+
+	private final NonterminalSet base;
+	private Map<Production, Double> weights;
+	private volatile State state;
+
+	public GrammarFork(NonterminalSet base) {
+		if (base == null)
+			throw new NullPointerException();
+
+		this.base = base;
+		weights = Collections.emptyMap();
+	}
+
+	/**
+	 * Creates a fork of the same grammar with the same overrides as other.
+	 */
+	public GrammarFork(GrammarFork other) {
+		base = other.base;
+		synchronized (other) {
+			weights = other.weights;
+		}
+	}
+
+	@Override
+	public GrammarFork clone() {
+		return new GrammarFork(this);
+	}
+
+	public GrammarFork fork() {
+		return new GrammarFork(this);
+	}
+
+	public NonterminalSet getBase() {
+		return base;
+	}
+
+	/**
+	 * Overrides the weight of production, which must belong to a Nonterminal in the
+	 * base grammar, for this fork only.
+	 */
+	public void setWeight(Production production, double weight) {
+		setWeights(Collections.singletonMap(production, weight));
+	}
+
+	/**
+	 * Overrides several weights at once, which is cheaper than setting them one at a
+	 * time, and is seen all at once by concurrent brews.
+	 */
+	public synchronized void setWeights(Map<Production, Double> weights) {
+		for (Map.Entry<Production, Double> entry : weights.entrySet()) {
+			if (!entry.getKey().hasOwner())
+				throw new IllegalArgumentException("Production doesn't belong to a Nonterminal.");
+
+			double weight = entry.getValue();
+			if (weight < 0 || Double.isNaN(weight) || Double.isInfinite(weight))
+				throw new IllegalArgumentException("Weight must be a finite non-negative number.");
+		}
+
+		Map<Production, Double> next = new IdentityHashMap<>(this.weights);
+		next.putAll(weights);
+		this.weights = next;
+		state = null;
+	}
+
+	/**
+	 * Returns the weight of production in this fork: its override if it has one, or
+	 * its weight in the grammar.
+	 */
+	public synchronized double getWeight(Production production) {
+		Double weight = weights.get(production);
+		return weight == null ? production.getWeight() : weight;
+	}
+
+	public synchronized boolean isOverridden(Production production) {
+		return weights.containsKey(production);
+	}
+
+	public synchronized int getOverrideCount() {
+		return weights.size();
+	}
+
+	/**
+	 * Removes the override of production, if it has one.
+	 */
+	public synchronized void clearWeight(Production production) {
+		if (weights.containsKey(production)) {
+			Map<Production, Double> next = new IdentityHashMap<>(weights);
+			next.remove(production);
+			weights = next;
+			state = null;
+		}
+	}
+
+	public synchronized void clear() {
+		weights = Collections.emptyMap();
+		state = null;
+	}
+
+	/**
+	 * Returns an independent deep copy of the grammar with this fork's overrides
+	 * applied to it.
+	 */
+	public NonterminalSet materialize() {
+		Map<Production, Double> weights;
+		synchronized (this) {
+			weights = this.weights;
+		}
+
+		GrammarCopier copier = new GrammarCopier();
+		NonterminalSet result = copier.copy(base);
+		Deque<Nonterminal> pending = new ArrayDeque<>();
+		for (Map.Entry<Production, Double> entry : weights.entrySet()) {
+			Production copy = copier.getCopy(entry.getKey());
+			if (copy != null && copy.hasOwner()) {
+				copy.setWeight(entry.getValue());
+				pending.push(copy.getOwner());
+			}
+		}
+
+		// OutcomeTables shared with the base grammar don't reflect the overrides
+		Set<Nonterminal> visited = DependencyGraph.newIdentitySet();
+		while (!pending.isEmpty()) {
+			Nonterminal nt = pending.pop();
+			if (visited.add(nt)) {
+				nt.setOutcomeTable(null);
+				pending.addAll(result.getDependents(nt));
+			}
+		}
+		return result;
+	}
+
+	public String brew() {
+		StringBuilder sb = new StringBuilder();
+		brew(ThreadLocalRandomSource.INSTANCE, sb);
+		return sb.toString();
+	}
+
+	public String brew(Random rnd) {
+		StringBuilder sb = new StringBuilder();
+		brew(RandomSources.wrap(rnd), sb);
+		return sb.toString();
+	}
+
+	public String brew(RandomSource rnd) {
+		StringBuilder sb = new StringBuilder();
+		brew(rnd, sb);
+		return sb.toString();
+	}
+
+	public String brew(long seed, long index) {
+		StringBuilder sb = new StringBuilder();
+		brew(RandomSources.indexed(seed, index), sb);
+		return sb.toString();
+	}
+
+	@Override
+	public void brew(Random rnd, StringBuilder dest) {
+		brew(RandomSources.wrap(rnd), dest);
+	}
+
+	/**
+	 * Brews a randomly selected primary nonterminal, as NonterminalSet.brew() does.
+	 */
+	@Override
+	public void brew(RandomSource rnd, StringBuilder dest) {
+		Nonterminal[] primaries = base.getPrimaryArray();
+		if (primaries.length > 0) {
+			brew(currentState(), primaries[rnd.nextInt(primaries.length)], rnd, dest);
+		}
+	}
+
+	/**
+	 * Brews nt, which should be part of the base grammar, with this fork's weights.
+	 */
+	public void brew(Nonterminal nt, RandomSource rnd, StringBuilder dest) {
+		brew(currentState(), nt, rnd, dest);
+	}
+
+	public String brew(Nonterminal nt, RandomSource rnd) {
+		StringBuilder sb = new StringBuilder();
+		brew(nt, rnd, sb);
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "GrammarFork[" + getOverrideCount() + " overrides]";
+	}
+
+	private void brew(State state, Nonterminal nt, RandomSource rnd, StringBuilder dest) {
+		if (state.overrides.isEmpty() || nt.getClass() != Nonterminal.class) {
+			nt.brew(rnd, dest);
+			return;
+		}
+
+		Production production;
+		Weights override = state.overrides.get(nt);
+		if (override == null) {
+			production = nt.findProduction(rnd.nextDouble() * nt.getTotalWeight());
+		} else {
+			if (override.version != nt.getVersion()) {
+				override = update(nt);
+			}
+			production = override.find(rnd.nextDouble() * override.getTotalWeight());
+		}
+		if (production == null)
+			return;
+
+		BrewObserver obs = Nonterminal.getBrewObserver();
+		if (obs == null) {
+			expand(state, production, rnd, dest);
+		} else {
+			obs.enter(nt, production, dest);
+			try {
+				expand(state, production, rnd, dest);
+			} finally {
+				obs.exit(nt, production, dest);
+			}
+		}
+	}
+
+	private void expand(State state, Production production, RandomSource rnd, StringBuilder dest) {
+		final int size = production.size();
+		for (int i = 0; i < size; ++i) {
+			Symbol s = production.get(i);
+			if (s instanceof Nonterminal) {
+				brew(state, (Nonterminal)s, rnd, dest);
+			} else if (s instanceof Production) {
+				expand(state, (Production)s, rnd, dest);
+			} else {
+				s.brew(rnd, dest);
+			}
+		}
+	}
+
+	/**
+	 * Returns the compiled overrides, compiling them if they have changed.
+	 */
+	private State currentState() {
+		State s = state;
+		if (s != null)
+			return s;
+
+		synchronized (this) {
+			s = state;
+			if (s == null) {
+				s = new State(weights, new IdentityHashMap<Nonterminal, Weights>());
+				for (Production p : weights.keySet()) {
+					Nonterminal owner = p.getOwner();
+					if (!s.overrides.containsKey(owner)) {
+						s.overrides.put(owner, new Weights(owner, weights));
+					}
+				}
+				state = s;
+			}
+			return s;
+		}
+	}
+
+	/**
+	 * Recompiles the weights of nt, which has changed since they were compiled.
+	 */
+	private synchronized Weights update(Nonterminal nt) {
+		State s = currentState();
+		Weights w = s.overrides.get(nt);
+		if (w != null && w.version == nt.getVersion())
+			return w;
+
+		w = new Weights(nt, s.weights);
+		Map<Nonterminal, Weights> overrides = new IdentityHashMap<>(s.overrides);
+		overrides.put(nt, w);
+		state = new State(s.weights, overrides);
+		return w;
+	}
+
+	private static final class State {
+
+		final Map<Production, Double> weights;
+		final Map<Nonterminal, Weights> overrides;
+
+		State(Map<Production, Double> weights, Map<Nonterminal, Weights> overrides) {
+			this.weights = weights;
+			this.overrides = overrides;
+		}
+	}
+
+	/**
+	 * The productions of one nonterminal with their cumulative weights in this fork,
+	 * as of the nonterminal's version.
+	 */
+	private static final class Weights {
+
+		final long version;
+		final Production[] productions;
+		final double[] upperBounds;
+
+		Weights(Nonterminal nt, Map<Production, Double> weights) {
+			version = nt.getVersion();
+			productions = nt.toArray(new Production[nt.size()]);
+			upperBounds = new double[productions.length];
+			double total = 0.0;
+			for (int i = 0; i < productions.length; ++i) {
+				Double weight = weights.get(productions[i]);
+				total += weight == null ? productions[i].getWeight() : weight;
+				upperBounds[i] = total;
+			}
+		}
+
+		double getTotalWeight() {
+			return upperBounds.length == 0 ? 0.0 : upperBounds[upperBounds.length - 1];
+		}
+
+		Production find(double roll) {
+			int begin = 0;
+			int end = upperBounds.length;
+			while (begin < end) {
+				int pivot = begin + (end - begin) / 2;
+				double lower = pivot == 0 ? 0.0 : upperBounds[pivot - 1];
+				if (roll < lower) {
+					end = pivot;
+				} else if (roll >= upperBounds[pivot]) {
+					begin = pivot + 1;
+				} else {
+					return productions[pivot];
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,434 @@
+package com.magicmoremagic.coffee;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import com.magicmoremagic.coffee.random.RandomSource;
+
+/**
+ * A whole grammar encoded into a single ByteBuffer, which may be direct or
+ * memory-mapped from a file, so that it can be sampled without any Nonterminal,
+ * Production or Terminal objects on the heap.  Several processes which map the same
+ * image file share one copy of it in the page cache.
+ *
+ * Nonterminals are identified by index.  The primary nonterminals of the encoded
+ * set come first, in the order that NonterminalSet.brew() chooses between them, so
+ * for a given RandomSource, brew(index, ...) produces the same result as the
+ * corresponding Nonterminal, and brewRandom() the same as the NonterminalSet.
+ * Nested productions are flattened.  OutcomeTables are not encoded.
+ *
+ * Layout (little-endian; each section begins on an 8 byte boundary):
+ *    header          magic, version, then the counts of nonterminals, primaries,
+ *                    productions, symbols, strings and string pool bytes (ints)
+ *    nonterminals    index of first production, for each nonterminal plus one more (int)
+ *    names           string index of the name of each nonterminal (int)
+ *    bounds          cumulative weight upper bound of each production (double)
+ *    productions     index of first symbol, for each production plus one more (int)
+ *    symbols         nonterminal index, or ~string index for terminals (int)
+ *    strings         offset of each string in the pool, plus one more (int)
+ *    pool            UTF-8 bytes of the terminals and names
+ */
+public class GrammarImage {
+
+	public static final int MAGIC = 0x49464F43; // "COFI"
+	public static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 32;
+
+	private final ByteBuffer buf;
+	private final int nonterminalCount;
+	private final int primaryCount;
+	private final int productionCount;
+	private final int symbolCount;
+	private final int stringCount;
+	private final int poolSize;
+
+	private final int nonterminalsOffset;
+	private final int namesOffset;
+	private final int boundsOffset;
+	private final int productionsOffset;
+	private final int symbolsOffset;
+	private final int stringsOffset;
+	private final int poolOffset;
+
+	private volatile Map<String, Integer> primaryIndex;
+
+	/**
+	 * Wraps an existing image.  The buffer's position and limit are ignored; the
+	 * image must begin at index 0.
+	 *
+	 * @throws IllegalArgumentException if buf does not contain a valid image header.
+	 */
+	public static GrammarImage wrap(ByteBuffer buf) {
+		return new GrammarImage(buf.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+	}
+
+	/**
+	 * Maps an image file written by write() into memory.
+	 */
+	public static GrammarImage map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Encodes the primary nonterminals of set and everything they depend on into a
+	 * new direct buffer.
+	 */
+	public static GrammarImage encode(NonterminalSet set) {
+		return new Encoder(set).encode();
+	}
+
+	private GrammarImage(ByteBuffer buf) {
+		if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC)
+			throw new IllegalArgumentException("Not a grammar image.");
+		if (buf.getInt(4) != VERSION)
+			throw new IllegalArgumentException("Unsupported grammar image version: " + buf.getInt(4));
+
+		this.buf = buf;
+		nonterminalCount = buf.getInt(8);
+		primaryCount = buf.getInt(12);
+		productionCount = buf.getInt(16);
+		symbolCount = buf.getInt(20);
+		stringCount = buf.getInt(24);
+		poolSize = buf.getInt(28);
+
+		long[] offsets = layout(nonterminalCount, productionCount, symbolCount, stringCount, poolSize);
+		if (offsets[7] > buf.capacity())
+			throw new IllegalArgumentException("Grammar image is truncated.");
+
+		nonterminalsOffset = (int)offsets[0];
+		namesOffset = (int)offsets[1];
+		boundsOffset = (int)offsets[2];
+		productionsOffset = (int)offsets[3];
+		symbolsOffset = (int)offsets[4];
+		stringsOffset = (int)offsets[5];
+		poolOffset = (int)offsets[6];
+	}
+
+	/**
+	 * Returns the offsets of each section, and the total size, of an image with the
+	 * given counts.
+	 */
+	private static long[] layout(int nonterminals, int productions, int symbols, int strings, int poolSize) {
+		long[] offsets = new long[8];
+		long offset = HEADER_SIZE;
+		offsets[0] = offset;
+		offset = align(offset + 4L * (nonterminals + 1));
+		offsets[1] = offset;
+		offset = align(offset + 4L * nonterminals);
+		offsets[2] = offset;
+		offset = align(offset + 8L * productions);
+		offsets[3] = offset;
+		offset = align(offset + 4L * (productions + 1));
+		offsets[4] = offset;
+		offset = align(offset + 4L * symbols);
+		offsets[5] = offset;
+		offset = align(offset + 4L * (strings + 1));
+		offsets[6] = offset;
+		offsets[7] = offset + poolSize;
+		if (offsets[7] > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Grammar is too large for an image.");
+		return offsets;
+	}
+
+	private static long align(long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	/**
+	 * Writes the image to a file, which can later be loaded with map().
+	 */
+	public void write(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer src = getBuffer();
+			while (src.hasRemaining()) {
+				channel.write(src);
+			}
+		}
+	}
+
+	/**
+	 * Returns a read-only view of the whole image.
+	 */
+	public ByteBuffer getBuffer() {
+		ByteBuffer view = buf.asReadOnlyBuffer();
+		view.clear();
+		view.limit(poolOffset + poolSize);
+		return view;
+	}
+
+	public int getNonterminalCount() {
+		return nonterminalCount;
+	}
+
+	public int getPrimaryCount() {
+		return primaryCount;
+	}
+
+	public int getProductionCount() {
+		return productionCount;
+	}
+
+	public int getSymbolCount() {
+		return symbolCount;
+	}
+
+	public String getName(int nonterminal) {
+		checkIndex(nonterminal);
+		return getString(buf.getInt(namesOffset + 4 * nonterminal));
+	}
+
+	/**
+	 * Returns the index of the primary nonterminal with the given name, or -1.
+	 */
+	public int indexOf(String name) {
+		Map<String, Integer> index = primaryIndex;
+		if (index == null) {
+			index = new HashMap<>();
+			for (int i = 0; i < primaryCount; ++i) {
+				index.put(getName(i), i);
+			}
+			primaryIndex = index;
+		}
+
+		Integer i = index.get(name);
+		return i == null ? -1 : i;
+	}
+
+	public String brew(int nonterminal, RandomSource rnd) {
+		StringBuilder sb = new StringBuilder();
+		brew(nonterminal, rnd, sb);
+		return sb.toString();
+	}
+
+	public void brew(int nonterminal, RandomSource rnd, StringBuilder dest) {
+		checkIndex(nonterminal);
+		expand(nonterminal, rnd, dest, null);
+	}
+
+	/**
+	 * Appends the UTF-8 encoding of a result to dest.
+	 *
+	 * @throws java.nio.BufferOverflowException if dest fills up; its position is then
+	 *         somewhere within the partial result.
+	 */
+	public void brew(int nonterminal, RandomSource rnd, ByteBuffer dest) {
+		checkIndex(nonterminal);
+		expand(nonterminal, rnd, null, dest);
+	}
+
+	/**
+	 * Brews a randomly selected primary nonterminal, as NonterminalSet.brew() does.
+	 */
+	public void brewRandom(RandomSource rnd, StringBuilder dest) {
+		if (primaryCount > 0) {
+			expand(rnd.nextInt(primaryCount), rnd, dest, null);
+		}
+	}
+
+	private void expand(int nonterminal, RandomSource rnd, StringBuilder chars, ByteBuffer bytes) {
+		int first = buf.getInt(nonterminalsOffset + 4 * nonterminal);
+		int end = buf.getInt(nonterminalsOffset + 4 * nonterminal + 4);
+		if (first == end)
+			return;
+
+		double roll = rnd.nextDouble() * buf.getDouble(boundsOffset + 8 * (end - 1));
+		int production = findProduction(first, end, roll);
+		if (production < 0)
+			return;
+
+		int symbol = buf.getInt(productionsOffset + 4 * production);
+		int symbolEnd = buf.getInt(productionsOffset + 4 * production + 4);
+		for (; symbol < symbolEnd; ++symbol) {
+			int ref = buf.getInt(symbolsOffset + 4 * symbol);
+			if (ref >= 0) {
+				expand(ref, rnd, chars, bytes);
+			} else if (chars != null) {
+				appendString(~ref, chars);
+			} else {
+				putString(~ref, bytes);
+			}
+		}
+	}
+
+	/**
+	 * The same search as Nonterminal.findProduction(): each production covers the
+	 * range from the previous one's upper bound (or 0) to its own.
+	 */
+	private int findProduction(int begin, int end, double roll) {
+		final int first = begin;
+		while (begin < end) {
+			int pivot = begin + (end - begin) / 2;
+			double lower = pivot == first ? 0.0 : buf.getDouble(boundsOffset + 8 * (pivot - 1));
+			double upper = buf.getDouble(boundsOffset + 8 * pivot);
+			if (roll < lower) {
+				end = pivot;
+			} else if (roll >= upper) {
+				begin = pivot + 1;
+			} else {
+				return pivot;
+			}
+		}
+		return -1;
+	}
+
+	private void appendString(int string, StringBuilder dest) {
+		int start = poolOffset + buf.getInt(stringsOffset + 4 * string);
+		int end = poolOffset + buf.getInt(stringsOffset + 4 * string + 4);
+		Utf8.append(buf, start, end, dest);
+	}
+
+	private void putString(int string, ByteBuffer dest) {
+		int offset = poolOffset + buf.getInt(stringsOffset + 4 * string);
+		int length = poolOffset + buf.getInt(stringsOffset + 4 * string + 4) - offset;
+		if (dest.remaining() < length)
+			throw new java.nio.BufferOverflowException();
+
+		dest.put(dest.position(), buf, offset, length);
+		dest.position(dest.position() + length);
+	}
+
+	private String getString(int string) {
+		StringBuilder sb = new StringBuilder();
+		appendString(string, sb);
+		return sb.toString();
+	}
+
+	private void checkIndex(int nonterminal) {
+		if (nonterminal < 0 || nonterminal >= nonterminalCount)
+			throw new IndexOutOfBoundsException("Nonterminal index out of range: " + nonterminal);
+	}
+
+	private static class Encoder {
+
+		private final NonterminalSet set;
+		private final Map<Nonterminal, Integer> nonterminalIndex = new IdentityHashMap<>();
+		private final List<Nonterminal> nonterminals = new ArrayList<>();
+		private final Map<String, Integer> stringIndex = new HashMap<>();
+		private final List<byte[]> strings = new ArrayList<>();
+		private int primaryCount;
+		private int poolSize;
+
+		public Encoder(NonterminalSet set) {
+			this.set = set;
+		}
+
+		public GrammarImage encode() {
+			for (Nonterminal nt : set) {
+				index(nt);
+			}
+			primaryCount = nonterminals.size();
+			for (int i = 0; i < primaryCount; ++i) {
+				for (Nonterminal dnt : nonterminals.get(i).collectDependencies()) {
+					index(dnt);
+				}
+			}
+
+			int productionCount = 0;
+			int symbolCount = 0;
+			int[] names = new int[nonterminals.size()];
+			List<int[]> productionSymbols = new ArrayList<>();
+			for (int i = 0; i < nonterminals.size(); ++i) {
+				Nonterminal nt = nonterminals.get(i);
+				names[i] = string(nt.getName());
+				for (Production p : nt) {
+					List<Integer> refs = new ArrayList<>();
+					flatten(p, refs);
+					int[] symbols = new int[refs.size()];
+					for (int s = 0; s < symbols.length; ++s) {
+						symbols[s] = refs.get(s);
+					}
+					productionSymbols.add(symbols);
+					++productionCount;
+					symbolCount += symbols.length;
+				}
+			}
+
+			long[] offsets = layout(nonterminals.size(), productionCount, symbolCount, strings.size(), poolSize);
+			ByteBuffer buf = ByteBuffer.allocateDirect((int)offsets[7]).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(0, MAGIC);
+			buf.putInt(4, VERSION);
+			buf.putInt(8, nonterminals.size());
+			buf.putInt(12, primaryCount);
+			buf.putInt(16, productionCount);
+			buf.putInt(20, symbolCount);
+			buf.putInt(24, strings.size());
+			buf.putInt(28, poolSize);
+
+			int production = 0;
+			int symbol = 0;
+			for (int i = 0; i < nonterminals.size(); ++i) {
+				buf.putInt((int)offsets[0] + 4 * i, production);
+				buf.putInt((int)offsets[1] + 4 * i, names[i]);
+				for (Production p : nonterminals.get(i)) {
+					buf.putDouble((int)offsets[2] + 8 * production, p.getUpperBound());
+					buf.putInt((int)offsets[3] + 4 * production, symbol);
+					for (int ref : productionSymbols.get(production)) {
+						buf.putInt((int)offsets[4] + 4 * symbol, ref);
+						++symbol;
+					}
+					++production;
+				}
+			}
+			buf.putInt((int)offsets[0] + 4 * nonterminals.size(), production);
+			buf.putInt((int)offsets[3] + 4 * production, symbol);
+
+			int poolOffset = 0;
+			for (int i = 0; i < strings.size(); ++i) {
+				byte[] bytes = strings.get(i);
+				buf.putInt((int)offsets[5] + 4 * i, poolOffset);
+				buf.put((int)offsets[6] + poolOffset, bytes);
+				poolOffset += bytes.length;
+			}
+			buf.putInt((int)offsets[5] + 4 * strings.size(), poolOffset);
+
+			return new GrammarImage(buf);
+		}
+
+		private void index(Nonterminal nt) {
+			if (nt instanceof WordList)
+				throw new IllegalArgumentException("Word lists can't be encoded in a grammar image: " + nt);
+
+			if (!nonterminalIndex.containsKey(nt)) {
+				nonterminalIndex.put(nt, nonterminals.size());
+				nonterminals.add(nt);
+			}
+		}
+
+		private void flatten(Production p, List<Integer> refs) {
+			for (Symbol s : p) {
+				if (s instanceof Production) {
+					flatten((Production)s, refs);
+				} else if (s instanceof Nonterminal) {
+					refs.add(nonterminalIndex.get(s));
+				} else if (s instanceof Terminal) {
+					refs.add(~string(String.valueOf(((Terminal)s).get())));
+				} else {
+					throw new IllegalArgumentException("Symbols of type " + s.getClass().getName()
+							+ " can't be encoded in a grammar image.");
+				}
+			}
+		}
+
+		private int string(String s) {
+			Integer index = stringIndex.get(s);
+			if (index == null) {
+				index = strings.size();
+				byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+				strings.add(bytes);
+				stringIndex.put(s, index);
+				poolSize += bytes.length;
+			}
+			return index;
+		}
+	}
+}
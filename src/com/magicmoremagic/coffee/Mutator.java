@@ -0,0 +1,227 @@
+package com.magicmoremagic.coffee;
+
+import com.magicmoremagic.coffee.random.RandomSource;
+
+/**
+ * Makes small, structure-preserving changes to Derivations recorded by a
+ * DerivationBrewer, for grammar-aware fuzzing.  Every mutation replaces the subtree
+ * of one node with another derivation of the same nonterminal, so the result is
+ * always a valid derivation of the original root.  Only the replaced subtree is
+ * regenerated; the rest of the text and the node arena are shifted in place.
+ *
+ * The mutations are:
+ *    reroll     brew a new subtree for the node's nonterminal
+ *    swap       brew a new subtree using a different production of the node's
+ *               nonterminal, chosen by weight
+ *    splice     copy a subtree of the same nonterminal from another derivation
+ *
+ * A Mutator reuses a scratch Derivation, so it is not thread-safe; use one per
+ * thread.  Several Mutators may share a DerivationBrewer.
+ */
+public class Mutator {
+
+	private static final int N = Derivation.NODE_SIZE;
+
+	private final DerivationBrewer brewer;
+	private final Derivation scratch = new Derivation();
+
+	public Mutator(DerivationBrewer brewer) {
+		if (brewer == null)
+			throw new NullPointerException();
+
+		this.brewer = brewer;
+	}
+
+	public DerivationBrewer getBrewer() {
+		return brewer;
+	}
+
+	/**
+	 * Applies a reroll or a swap to a node chosen uniformly at random.
+	 *
+	 * @return the node which was replaced, or -1 if d is empty.
+	 */
+	public int mutate(Derivation d, RandomSource rnd) {
+		if (d.nodeCount == 0)
+			return -1;
+
+		int node = rnd.nextInt(d.nodeCount);
+		if (rnd.nextInt(2) == 0 || !swap(d, node, rnd)) {
+			reroll(d, node, rnd);
+		}
+		return node;
+	}
+
+	/**
+	 * Splices a subtree from donor into a node of d chosen uniformly at random, if
+	 * donor has a node with the same nonterminal; otherwise acts like mutate(d, rnd).
+	 *
+	 * @return the node which was replaced, or -1 if d is empty.
+	 */
+	public int mutate(Derivation d, Derivation donor, RandomSource rnd) {
+		if (d.nodeCount == 0)
+			return -1;
+
+		int node = rnd.nextInt(d.nodeCount);
+		int nonterminal = d.nodes[node * N + Derivation.NONTERMINAL];
+
+		// reservoir sampling picks uniformly among the matching donor nodes in one pass
+		int chosen = -1;
+		int matches = 0;
+		for (int n = 0; n < donor.nodeCount; ++n) {
+			if (donor.nodes[n * N + Derivation.NONTERMINAL] == nonterminal && rnd.nextInt(++matches) == 0) {
+				chosen = n;
+			}
+		}
+
+		if (chosen < 0)
+			return mutate(d, rnd);
+
+		splice(d, node, donor, chosen);
+		return node;
+	}
+
+	/**
+	 * Replaces the subtree of node with a newly brewed derivation of its nonterminal.
+	 */
+	public void reroll(Derivation d, int node, RandomSource rnd) {
+		checkNode(d, node);
+		scratch.clear();
+		brewer.expand(d.nodes[node * N + Derivation.NONTERMINAL], rnd, scratch);
+		replace(d, node, scratch, 0);
+	}
+
+	/**
+	 * Replaces the subtree of node with a new derivation which starts with a
+	 * different production of the same nonterminal, chosen by weight.
+	 *
+	 * @return false, leaving d unchanged, if there is no other production to choose.
+	 */
+	public boolean swap(Derivation d, int node, RandomSource rnd) {
+		checkNode(d, node);
+		int nonterminal = d.nodes[node * N + Derivation.NONTERMINAL];
+		int current = d.nodes[node * N + Derivation.PRODUCTION];
+		int first = brewer.getFirstProduction(nonterminal);
+		int end = nonterminal + 1 < brewer.getNonterminalCount()
+				? brewer.getFirstProduction(nonterminal + 1) : brewer.getProductionCount();
+		if (current < 0 || end - first < 2)
+			return false;
+
+		double currentLower = current == first ? 0.0 : brewer.getUpperBound(current - 1);
+		double currentWeight = brewer.getUpperBound(current) - currentLower;
+		double total = brewer.getUpperBound(end - 1) - currentWeight;
+		if (total <= 0.0)
+			return false;
+
+		// roll over the other productions' weight by skipping the current one's range
+		double roll = rnd.nextDouble() * total;
+		if (roll >= currentLower) {
+			roll += currentWeight;
+		}
+		int production = first;
+		while (production < end - 1 && roll >= brewer.getUpperBound(production)) {
+			++production;
+		}
+		if (production == current) {
+			// only possible through rounding at the edges of the current range
+			production = current + 1 < end ? current + 1 : current - 1;
+		}
+
+		scratch.clear();
+		brewer.expand(nonterminal, production, rnd, scratch);
+		replace(d, node, scratch, 0);
+		return true;
+	}
+
+	/**
+	 * Replaces the subtree of node with a copy of the subtree of donorNode in donor,
+	 * which may be d itself.
+	 *
+	 * @throws IllegalArgumentException if the nodes have different nonterminals.
+	 */
+	public void splice(Derivation d, int node, Derivation donor, int donorNode) {
+		checkNode(d, node);
+		checkNode(donor, donorNode);
+		if (d.nodes[node * N + Derivation.NONTERMINAL] != donor.nodes[donorNode * N + Derivation.NONTERMINAL])
+			throw new IllegalArgumentException("Nodes derive different nonterminals.");
+
+		if (donor == d) {
+			copySubtree(d, donorNode, scratch);
+			replace(d, node, scratch, 0);
+		} else {
+			replace(d, node, donor, donorNode);
+		}
+	}
+
+	private static void copySubtree(Derivation src, int node, Derivation dest) {
+		dest.clear();
+		int size = src.nodes[node * N + Derivation.SUBTREE_SIZE];
+		int start = src.nodes[node * N + Derivation.START];
+		dest.text.append(src.text, start, src.nodes[node * N + Derivation.END]);
+		dest.ensureCapacity(size);
+		System.arraycopy(src.nodes, node * N, dest.nodes, 0, size * N);
+		for (int n = 0; n < size; ++n) {
+			dest.nodes[n * N + Derivation.START] -= start;
+			dest.nodes[n * N + Derivation.END] -= start;
+		}
+		dest.nodeCount = size;
+	}
+
+	/**
+	 * Replaces the subtree of node in d with the subtree of srcNode in src, shifting
+	 * the nodes and text that follow it, and adjusting the spans and sizes of its
+	 * ancestors.  src must not be d.
+	 */
+	private static void replace(Derivation d, int node, Derivation src, int srcNode) {
+		final int base = node * N;
+		final int oldSize = d.nodes[base + Derivation.SUBTREE_SIZE];
+		final int oldStart = d.nodes[base + Derivation.START];
+		final int oldEnd = d.nodes[base + Derivation.END];
+		final int newSize = src.nodes[srcNode * N + Derivation.SUBTREE_SIZE];
+		final int srcStart = src.nodes[srcNode * N + Derivation.START];
+		final int srcEnd = src.nodes[srcNode * N + Derivation.END];
+		final int sizeDelta = newSize - oldSize;
+		final int lengthDelta = (srcEnd - srcStart) - (oldEnd - oldStart);
+
+		d.text.delete(oldStart, oldEnd);
+		d.text.insert(oldStart, src.text, srcStart, srcEnd);
+
+		// ancestors enclose the replaced subtree
+		int n = 0;
+		while (n != node) {
+			d.nodes[n * N + Derivation.SUBTREE_SIZE] += sizeDelta;
+			d.nodes[n * N + Derivation.END] += lengthDelta;
+			n = n + 1;
+			while (n + d.nodes[n * N + Derivation.SUBTREE_SIZE] <= node) {
+				n += d.nodes[n * N + Derivation.SUBTREE_SIZE];
+			}
+		}
+
+		// nodes after the subtree move by sizeDelta, and their spans by lengthDelta
+		final int tail = node + oldSize;
+		final int tailCount = d.nodeCount - tail;
+		d.ensureCapacity(d.nodeCount + sizeDelta);
+		System.arraycopy(d.nodes, tail * N, d.nodes, (tail + sizeDelta) * N, tailCount * N);
+		if (lengthDelta != 0) {
+			for (int t = tail + sizeDelta, end = t + tailCount; t < end; ++t) {
+				d.nodes[t * N + Derivation.START] += lengthDelta;
+				d.nodes[t * N + Derivation.END] += lengthDelta;
+			}
+		}
+
+		System.arraycopy(src.nodes, srcNode * N, d.nodes, base, newSize * N);
+		final int shift = oldStart - srcStart;
+		if (shift != 0) {
+			for (int t = node, end = node + newSize; t < end; ++t) {
+				d.nodes[t * N + Derivation.START] += shift;
+				d.nodes[t * N + Derivation.END] += shift;
+			}
+		}
+		d.nodeCount += sizeDelta;
+	}
+
+	private static void checkNode(Derivation d, int node) {
+		if (node < 0 || node >= d.nodeCount)
+			throw new IndexOutOfBoundsException("Node out of range: " + node);
+	}
+}
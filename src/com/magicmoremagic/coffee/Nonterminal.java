@@ -5,17 +5,25 @@ import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.magicmoremagic.coffee.parser.DefaultLexer;
+import com.magicmoremagic.coffee.parser.GrammarSerializer;
 import com.magicmoremagic.coffee.parser.Lexer;
 import com.magicmoremagic.coffee.parser.StringUtil;
 import com.magicmoremagic.coffee.parser.Token;
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.RandomSources;
+import com.magicmoremagic.coffee.random.ThreadLocalRandomSource;
 
 public class Nonterminal extends AbstractSet<Production> implements SerializableSymbol {
 
 	private static final AtomicLong nextID = new AtomicLong(0);
+	private static final AtomicLong modificationCount = new AtomicLong(0);
+	private static volatile BrewObserver observer;
 	
 	private String name;
 	private List<Production> productions;
-	private int cachedHashCode = -1;
+	private long version;
+	private OutcomeTable outcomes;
+	GrammarFingerprint.Cache fingerprintCache;
 	
 	public Nonterminal() {
 		name = "$" + Long.toString(nextID.getAndIncrement());
@@ -27,10 +35,16 @@ public class Nonterminal extends AbstractSet<Production> implements Serializable
 		productions = new ArrayList<Production>();
 	}
 	
+	/**
+	 * Creates a copy with a generated name, along with copies of everything it
+	 * depends on, which keep their names.
+	 * 
+	 * @see GrammarCopier
+	 */
 	public Nonterminal(Nonterminal other) {
 		name = "$" + Long.toString(nextID.getAndIncrement());
 		productions = new ArrayList<Production>();
-		addAll(other.productions);
+		new GrammarCopier().copyInto(other, this);
 	}
 	
 	@Override
@@ -38,12 +52,29 @@ public class Nonterminal extends AbstractSet<Production> implements Serializable
 		return new Nonterminal(this);
 	}	
 	
+	/**
+	 * Installs an observer which will be notified of every expansion of every
+	 * Nonterminal, on all threads.  Pass null to remove it; when no observer is
+	 * installed the only overhead is a single field read per expansion.
+	 */
+	public static void setBrewObserver(BrewObserver observer) {
+		Nonterminal.observer = observer;
+	}
+	
+	public static BrewObserver getBrewObserver() {
+		return observer;
+	}
+	
 	public void setName(String name) {
 		if (name == null) {
 			this.name = "$" + Long.toString(nextID.getAndIncrement());
 		} else {
 			this.name = name;
 		}
+		version = modificationCount.incrementAndGet();
+		if (fingerprintCache != null) {
+			GrammarFingerprint.invalidate(this, true);
+		}
 	}
 	
 	public String getName() {
@@ -124,31 +155,66 @@ public class Nonterminal extends AbstractSet<Production> implements Serializable
 	 * using Parser.parse().
 	 */
 	public Set<Nonterminal> getDependencies() {
-		Set<Nonterminal> set = new HashSet<>();
-		addDependencies(set);
+		Set<Nonterminal> set = DependencyGraph.newIdentitySet();
+		set.addAll(collectDependencies());
 		return set;
 	}
 	
 	@Override
 	public String brew() {
 		StringBuilder sb = new StringBuilder();
-		brew(new Random(), sb);
+		brew(ThreadLocalRandomSource.INSTANCE, sb);
 		return sb.toString();
 	}
 
 	@Override
 	public String brew(Random rnd) {
+		StringBuilder sb = new StringBuilder();
+		brew(RandomSources.wrap(rnd), sb);
+		return sb.toString();
+	}
+	
+	@Override
+	public String brew(RandomSource rnd) {
 		StringBuilder sb = new StringBuilder();
 		brew(rnd, sb);
 		return sb.toString();
 	}
 	
+	@Override
+	public String brew(long seed, long index) {
+		StringBuilder sb = new StringBuilder();
+		brew(RandomSources.indexed(seed, index), sb);
+		return sb.toString();
+	}
+	
 	@Override
 	public void brew(Random rnd, StringBuilder dest) {
+		brew(RandomSources.wrap(rnd), dest);
+	}
+	
+	@Override
+	public void brew(RandomSource rnd, StringBuilder dest) {
+		OutcomeTable table = outcomes;
+		if (table != null) {
+			dest.append(table.sample(rnd));
+			return;
+		}
+		
 		double roll = rnd.nextDouble() * getTotalWeight();
 		Production production = findProduction(roll);
 		if (production != null) {
-			production.brew(rnd, dest);
+			BrewObserver obs = observer;
+			if (obs == null) {
+				production.brew(rnd, dest);
+			} else {
+				obs.enter(this, production, dest);
+				try {
+					production.brew(rnd, dest);
+				} finally {
+					obs.exit(this, production, dest);
+				}
+			}
 		}
 	}
 
@@ -244,9 +310,18 @@ public class Nonterminal extends AbstractSet<Production> implements Serializable
 	}
 	
 	public void serializeAll(PrintWriter pw, Lexer lexer) {
+		if (GrammarSerializer.isDefaultSyntax(lexer)) {
+			try {
+				new GrammarSerializer().serializeAll(this, pw);
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+			return;
+		}
+		
 		serialize(pw, lexer, true);
 		
-		for (Nonterminal nt : getDependencies()) {
+		for (Nonterminal nt : collectDependencies()) {
 			if (nt == this)
 				continue;
 			
@@ -260,21 +335,23 @@ public class Nonterminal extends AbstractSet<Production> implements Serializable
 		return StringUtil.toIdentifier(name);
 	}
 	
+	/**
+	 * Compares the structure of this nonterminal and everything it depends on.
+	 * 
+	 * @see GrammarFingerprint#equivalent(Nonterminal, Nonterminal)
+	 */
 	@Override
 	public boolean equals(Object other) {
 		if (other instanceof Nonterminal) {
-			Nonterminal ntOther = (Nonterminal)other;
-			return name.equals(ntOther.name) && productions.equals(ntOther.productions);
+			return GrammarFingerprint.equivalent(this, (Nonterminal)other);
 		}
 		return false;
 	}
 	
 	@Override
 	public int hashCode() {
-		if (cachedHashCode == -1) {
-			cachedHashCode = 47 * name.hashCode() + productions.hashCode();
-		}
-		return cachedHashCode;
+		long fingerprint = GrammarFingerprint.of(this);
+		return (int)(fingerprint ^ (fingerprint >>> 32));
 	}
 	
 	protected Lexer getDefaultLexer() {
@@ -286,6 +363,14 @@ public class Nonterminal extends AbstractSet<Production> implements Serializable
 			lexer = getDefaultLexer();
 		}
 		
+		if (GrammarSerializer.isDefaultSyntax(lexer)) {
+			StringBuilder sb = new StringBuilder();
+			GrammarSerializer.appendNonterminal(sb, this, primary);
+			pw.append(sb);
+			pw.flush();
+			return;
+		}
+		
 		lexer.serializeToken(pw, primary ? Token.PRIMARY_NT_OP : Token.NT_OP);
 		pw.print(' ');
 		pw.println(StringUtil.toIdentifier(name));
@@ -299,14 +384,74 @@ public class Nonterminal extends AbstractSet<Production> implements Serializable
 		pw.flush();
 	}
 	
-	void addDependencies(Set<Nonterminal> set) {
-		set.add(this);
+	/**
+	 * Returns the precomputed output distribution of this nonterminal, or null if it
+	 * is brewed by expanding its productions.
+	 * 
+	 * @see FiniteLanguage
+	 */
+	public OutcomeTable getOutcomeTable() {
+		return outcomes;
+	}
+	
+	void setOutcomeTable(OutcomeTable outcomes) {
+		this.outcomes = outcomes;
+	}
+	
+	void productionModified() {
+		modified();
+	}
+	
+	/**
+	 * Returns a stamp which changes whenever this nonterminal or one of its
+	 * productions is changed.
+	 */
+	long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Returns the nonterminals referenced directly by this nonterminal's productions.
+	 */
+	Set<Nonterminal> getDirectDependencies() {
+		Set<Nonterminal> set = DependencyGraph.newIdentitySet();
 		for (Production p : productions) {
 			p.addDependencies(set);
 		}
+		return set;
 	}
 	
-	private Production findProduction(double weight) {
+	/**
+	 * Returns this nonterminal followed by everything it depends on, in depth-first
+	 * discovery order.  Uses an explicit stack so that deep chains of nonterminals
+	 * can't overflow the call stack.
+	 */
+	public List<Nonterminal> collectDependencies() {
+		List<Nonterminal> list = new ArrayList<>();
+		Set<Nonterminal> visited = DependencyGraph.newIdentitySet();
+		Deque<Nonterminal> pending = new ArrayDeque<>();
+		List<Nonterminal> direct = new ArrayList<>();
+		
+		visited.add(this);
+		pending.push(this);
+		while (!pending.isEmpty()) {
+			Nonterminal nt = pending.pop();
+			list.add(nt);
+			
+			for (Production p : nt.productions) {
+				p.addDependencies(direct);
+			}
+			for (Nonterminal d : direct) {
+				if (visited.add(d)) {
+					pending.push(d);
+				}
+			}
+			direct.clear();
+		}
+		return list;
+	}
+	
+	Production findProduction(double weight) {
 		int begin = 0;
 		int end = productions.size();
 		while (begin < end) {
@@ -346,7 +491,7 @@ public class Nonterminal extends AbstractSet<Production> implements Serializable
 		return productions.size();
 	}
 
-	private double getTotalWeight() {
+	double getTotalWeight() {
 		if (productions.isEmpty())
 			return 0.0;
 		
@@ -364,7 +509,11 @@ public class Nonterminal extends AbstractSet<Production> implements Serializable
 	}
 	
 	private void modified() {
-		cachedHashCode = -1;
+		outcomes = null;
+		version = modificationCount.incrementAndGet();
+		if (fingerprintCache != null) {
+			GrammarFingerprint.invalidate(this, false);
+		}
 	}
 	
 	private class NTIterator implements Iterator<Production> {
@@ -4,51 +4,140 @@ import java.io.*;
 import java.util.*;
 
 import com.magicmoremagic.coffee.parser.DefaultLexer;
+import com.magicmoremagic.coffee.parser.GrammarSerializer;
 import com.magicmoremagic.coffee.parser.Lexer;
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.RandomSources;
+import com.magicmoremagic.coffee.random.ThreadLocalRandomSource;
 
 public class NonterminalSet extends AbstractSet<Nonterminal> implements SerializableSymbol {
 
 	private Lexer defaultLexer;
 	protected Map<String, Nonterminal> nonterminals;
 	protected Map<String, Nonterminal> primaryNonterminals;
+	private Index dependencyGraph;
+	private List<Nonterminal> unreferenced;
+	private volatile Nonterminal[] primaryArray;
 	
 	public NonterminalSet() {
 		nonterminals = new HashMap<>();
 		primaryNonterminals = new HashMap<>();
+		dependencyGraph = new Index();
 	}
 	
 	public NonterminalSet(Nonterminal nt) {
-		nonterminals = new HashMap<>();
-		primaryNonterminals = new HashMap<>();
+		this();
 		add(nt);
 	}
 	
 	public NonterminalSet(Nonterminal... nt) {
-		nonterminals = new HashMap<>();
-		primaryNonterminals = new HashMap<>();
+		this();
 		addAll(nt);
 	}
 	
 	public NonterminalSet(Collection<Nonterminal> collection) {
-		nonterminals = new HashMap<>();
-		primaryNonterminals = new HashMap<>();
+		this();
 		addAll(collection);
 	}
 	
 	public NonterminalSet(NonterminalSet other) {
-		rebuildNames(other);
+		nonterminals = new HashMap<>(other.nonterminals);
+		primaryNonterminals = new HashMap<>(other.primaryNonterminals);
+		dependencyGraph = new Index(other.dependencyGraph);
+		if (other.unreferenced != null) {
+			unreferenced = new ArrayList<>(other.unreferenced);
+		}
 	}
 	
+	/**
+	 * Returns a copy of this set which shares its Nonterminals; see deepCopy().
+	 */
 	public NonterminalSet clone() {
 		return new NonterminalSet(this);
 	}
+	
+	/**
+	 * Returns a set containing copies of this set's Nonterminals and everything they
+	 * depend on, with the same names, sharing and cycles.
+	 * 
+	 * @see GrammarCopier
+	 */
+	public NonterminalSet deepCopy() {
+		return new GrammarCopier().copy(this);
+	}
+	
+	/**
+	 * Returns a GrammarFork which brews this set with production weights of its own.
+	 */
+	public GrammarFork fork() {
+		return new GrammarFork(this);
+	}
 
 	/**
 	 * This should be called if any of the Nonterminals have their names changed
-	 * after being parsed or added to ensure that get(), contains(), etc. return correct results. 
+	 * after being parsed or added to ensure that get(), contains(), etc. return correct results.
+	 * It also re-reads the dependencies of every Nonterminal, so it may be used after
+	 * making several changes to their productions.
 	 */
 	public void rebuildNames() {
-		rebuildNames(this);
+		Map<String, Nonterminal> newPriNTs = new HashMap<>();
+		for (Nonterminal nt : primaryNonterminals.values()) {
+			newPriNTs.put(nt.getName(), nt);
+		}
+		
+		primaryNonterminals = newPriNTs;
+		primaryArray = null;
+		nonterminals = new HashMap<>();
+		dependencyGraph.rebuild();
+		
+		if (unreferenced != null) {
+			Iterator<Nonterminal> it = unreferenced.iterator();
+			while (it.hasNext()) {
+				Nonterminal nt = it.next();
+				String name = nt.getName();
+				if (dependencyGraph.contains(nt) || nonterminals.containsKey(name)) {
+					it.remove();
+				} else {
+					nonterminals.put(name, nt);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * This should be called if the productions of a Nonterminal in this set are changed
+	 * after being parsed or added.  Only the dependencies that have changed are updated.
+	 * 
+	 * @return false if the Nonterminal is not part of this set.
+	 */
+	public boolean refresh(Nonterminal nt) {
+		return dependencyGraph.update(nt);
+	}
+	
+	/**
+	 * Precomputes the output distribution of every Nonterminal in this set whose
+	 * language is finite and has at most maxOutcomes strings.
+	 * 
+	 * @return the number of Nonterminals that now have an OutcomeTable.
+	 * @see FiniteLanguage
+	 */
+	public int precompute(int maxOutcomes) {
+		return FiniteLanguage.precompute(getAll(), maxOutcomes);
+	}
+	
+	/**
+	 * Returns the Nonterminals in this set whose productions reference nt directly.
+	 */
+	public Set<Nonterminal> getDependents(Nonterminal nt) {
+		return dependencyGraph.getDependents(nt);
+	}
+	
+	/**
+	 * Returns the Nonterminals referenced directly by the productions of nt, as of the
+	 * time it was added to this set (or last refreshed).
+	 */
+	public Set<Nonterminal> getDirectDependencies(Nonterminal nt) {
+		return dependencyGraph.getDirectDependencies(nt);
 	}
 	
 	public Nonterminal get(String name) {
@@ -70,12 +159,8 @@ public class NonterminalSet extends AbstractSet<Nonterminal> implements Serializ
 		String name = nt.getName();
 		if (!primaryNonterminals.containsKey(name)) {
 			primaryNonterminals.put(name, nt);
-			for (Nonterminal dnt : nt.getDependencies()) {
-				String dntName = dnt.getName();
-				if (!nonterminals.containsKey(dntName)) {
-					nonterminals.put(dntName, dnt);
-				}
-			}
+			primaryArray = null;
+			dependencyGraph.addRoot(nt);
 			return true;
 		}
 		return false;
@@ -94,7 +179,9 @@ public class NonterminalSet extends AbstractSet<Nonterminal> implements Serializ
     		Nonterminal removed = primaryNonterminals.remove(nt.getName());
     		
     		if (removed != null) {
-    			rebuildDependencies();
+    			primaryArray = null;
+    			dependencyGraph.removeRoot(removed);
+    			dropUnreferenced();
     			return true;
     		}
     	}
@@ -106,8 +193,11 @@ public class NonterminalSet extends AbstractSet<Nonterminal> implements Serializ
      */
 	@Override
 	public void clear() {
+		dependencyGraph.clear();
 		nonterminals.clear();
 		primaryNonterminals.clear();
+		unreferenced = null;
+		primaryArray = null;
 	}
 	
     /**
@@ -152,31 +242,43 @@ public class NonterminalSet extends AbstractSet<Nonterminal> implements Serializ
 	@Override
 	public String brew() {
 		StringBuilder sb = new StringBuilder();
-		brew(new Random(), sb);
+		brew(ThreadLocalRandomSource.INSTANCE, sb);
 		return sb.toString();
 	}
 
 	@Override
 	public String brew(Random rnd) {
+		StringBuilder sb = new StringBuilder();
+		brew(RandomSources.wrap(rnd), sb);
+		return sb.toString();
+	}
+	
+	@Override
+	public String brew(RandomSource rnd) {
 		StringBuilder sb = new StringBuilder();
 		brew(rnd, sb);
 		return sb.toString();
 	}
 	
+	@Override
+	public String brew(long seed, long index) {
+		StringBuilder sb = new StringBuilder();
+		brew(RandomSources.indexed(seed, index), sb);
+		return sb.toString();
+	}
+	
 	@Override
 	public void brew(Random rnd, StringBuilder dest) {
+		brew(RandomSources.wrap(rnd), dest);
+	}
+	
+	@Override
+	public void brew(RandomSource rnd, StringBuilder dest) {
 		if (primaryNonterminals.isEmpty())
 			return;
 		
-		int index = rnd.nextInt(primaryNonterminals.size());
-		
-		Iterator<Nonterminal> iter = primaryNonterminals.values().iterator();
-		while (index > 0) {
-			iter.next();
-			--index;
-		}
-		
-		Nonterminal nt = iter.next();
+		Nonterminal[] primaries = getPrimaryArray();
+		Nonterminal nt = primaries[rnd.nextInt(primaries.length)];
 		nt.brew(rnd, dest);
 	}
 
@@ -233,6 +335,15 @@ public class NonterminalSet extends AbstractSet<Nonterminal> implements Serializ
 			lexer = DefaultLexer.DEFAULT;
 		}
 		
+		if (GrammarSerializer.isDefaultSyntax(lexer)) {
+			try {
+				new GrammarSerializer().serialize(this, pw);
+			} catch (IOException e) {
+				throw new AssertionError(e);
+			}
+			return;
+		}
+		
 		boolean first = true;
 		for (Nonterminal nt : primaryNonterminals.values()) {
 			if (first) {
@@ -301,6 +412,18 @@ public class NonterminalSet extends AbstractSet<Nonterminal> implements Serializ
 		return 47 * primaryNonterminals.hashCode() + nonterminals.hashCode();
 	}
 	
+	/**
+	 * Returns the primary Nonterminals as an array, which is cached until they change.
+	 */
+	Nonterminal[] getPrimaryArray() {
+		Nonterminal[] primaries = primaryArray;
+		if (primaries == null || primaries.length != primaryNonterminals.size()) {
+			primaries = primaryNonterminals.values().toArray(new Nonterminal[primaryNonterminals.size()]);
+			primaryArray = primaries;
+		}
+		return primaries;
+	}
+	
 	protected void setDefaultLexer(Lexer lexer) {
 		defaultLexer = lexer;
 	}
@@ -309,32 +432,113 @@ public class NonterminalSet extends AbstractSet<Nonterminal> implements Serializ
 		return defaultLexer;
 	}
 	
-	private void rebuildNames(NonterminalSet ntc) {
-		Map<String, Nonterminal> newNTs = new HashMap<>();
-		Map<String, Nonterminal> newPriNTs = new HashMap<>();
+	/**
+	 * Re-indexes dependencies from the primary Nonterminals.  Subclasses which populate
+	 * nonterminals and primaryNonterminals directly, rather than through add(), should
+	 * call this once they are done.  Nonterminals in the name map which no primary
+	 * reaches are kept until the next remove(), as they were before indexing.
+	 */
+	protected void indexNonterminals() {
+		primaryArray = null;
+		unreferenced = null;
+		dependencyGraph.clear();
+		for (Nonterminal nt : primaryNonterminals.values()) {
+			dependencyGraph.addRoot(nt);
+		}
+		for (Nonterminal nt : nonterminals.values()) {
+			if (!dependencyGraph.contains(nt)) {
+				if (unreferenced == null) {
+					unreferenced = new ArrayList<>();
+				}
+				unreferenced.add(nt);
+			}
+		}
+	}
+	
+	private void dropUnreferenced() {
+		if (unreferenced != null) {
+			for (Nonterminal nt : unreferenced) {
+				if (!dependencyGraph.contains(nt)) {
+					dependencyGraph.unregister(nt);
+				}
+			}
+			unreferenced = null;
+		}
+	}
+	
+	private class Index extends DependencyGraph {
+		
+		// nodes whose names were already taken when they were added
+		private Map<String, List<Nonterminal>> shadowed;
+		
+		public Index() {
+			shadowed = new HashMap<>();
+		}
 		
-		for (Nonterminal nt : ntc.nonterminals.values()) {
-			for (Nonterminal dnt : nt.getDependencies()) {
-				newNTs.put(dnt.getName(), dnt);
+		public Index(Index other) {
+			super(other);
+			shadowed = new HashMap<>();
+			for (Map.Entry<String, List<Nonterminal>> entry : other.shadowed.entrySet()) {
+				shadowed.put(entry.getKey(), new ArrayList<>(entry.getValue()));
 			}
 		}
 		
-		for (Nonterminal nt : ntc.primaryNonterminals.values()) {
-			newPriNTs.put(nt.getName(), nt);
-			for (Nonterminal dnt : nt.getDependencies()) {
-				newNTs.put(dnt.getName(), dnt);
+		@Override
+		public void clear() {
+			super.clear();
+			shadowed.clear();
+		}
+		
+		@Override
+		public void rebuild() {
+			shadowed.clear();
+			super.rebuild();
+		}
+		
+		@Override
+		protected void onNodeAdded(Nonterminal nt) {
+			String name = nt.getName();
+			Nonterminal current = nonterminals.get(name);
+			if (current == null) {
+				nonterminals.put(name, nt);
+			} else if (current != nt) {
+				List<Nonterminal> list = shadowed.get(name);
+				if (list == null) {
+					list = new ArrayList<>(1);
+					shadowed.put(name, list);
+				}
+				list.add(nt);
 			}
 		}
 		
-		nonterminals = newNTs;
-		primaryNonterminals = newPriNTs;
-	}
-	
-	private void rebuildDependencies() {
-		nonterminals.clear();
-		for (Nonterminal nt : primaryNonterminals.values()) {
-			for (Nonterminal dnt : nt.getDependencies()) {
-				nonterminals.put(dnt.getName(), dnt);
+		@Override
+		protected void onNodeRemoved(Nonterminal nt) {
+			unregister(nt);
+		}
+		
+		/**
+		 * Removes nt from the name map, replacing it with a node of the same name if
+		 * there is one.
+		 */
+		void unregister(Nonterminal nt) {
+			String name = nt.getName();
+			List<Nonterminal> list = shadowed.get(name);
+			if (nonterminals.get(name) == nt) {
+				if (list == null) {
+					nonterminals.remove(name);
+					return;
+				}
+				nonterminals.put(name, list.remove(0));
+			} else if (list != null) {
+				for (int i = 0; i < list.size(); ++i) {
+					if (list.get(i) == nt) {
+						list.remove(i);
+						break;
+					}
+				}
+			}
+			if (list != null && list.isEmpty()) {
+				shadowed.remove(name);
 			}
 		}
 	}
@@ -342,6 +546,7 @@ public class NonterminalSet extends AbstractSet<Nonterminal> implements Serializ
 	private class NTSIterator implements Iterator<Nonterminal> {
 		
 		private Iterator<Nonterminal> inner;
+		private Nonterminal current;
 		
 		public NTSIterator() {
 			inner = primaryNonterminals.values().iterator();
@@ -354,13 +559,16 @@ public class NonterminalSet extends AbstractSet<Nonterminal> implements Serializ
 
 		@Override
 		public Nonterminal next() {
-			return inner.next();
+			current = inner.next();
+			return current;
 		}
 
 		@Override
 		public void remove() {
 			inner.remove();
-			rebuildDependencies();
+			primaryArray = null;
+			dependencyGraph.removeRoot(current);
+			dropUnreferenced();
 		}
 	}
 }
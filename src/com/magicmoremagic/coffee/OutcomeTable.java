@@ -0,0 +1,123 @@
+package com.magicmoremagic.coffee;
+
+import java.util.Map;
+
+import com.magicmoremagic.coffee.random.RandomSource;
+
+/**
+ * The complete output distribution of a Nonterminal with a small, finite language.
+ * Outcomes are sampled with Vose's alias method, which takes a single random draw
+ * and constant time regardless of the number of outcomes.
+ */
+public class OutcomeTable {
+
+	private final String[] outcomes;
+	private final double[] probabilities;
+	private final double[] cutoffs;
+	private final int[] aliases;
+
+	/**
+	 * Creates a table from a map of outcomes to their (not necessarily normalized)
+	 * weights.  The iteration order of the map determines the table layout, so a
+	 * map with a stable order gives reproducible results for a given seed.
+	 */
+	public OutcomeTable(Map<String, Double> distribution) {
+		final int n = distribution.size();
+		if (n == 0)
+			throw new IllegalArgumentException("Distribution must not be empty.");
+
+		outcomes = new String[n];
+		probabilities = new double[n];
+		double total = 0;
+		int i = 0;
+		for (Map.Entry<String, Double> entry : distribution.entrySet()) {
+			double weight = entry.getValue();
+			if (weight < 0 || Double.isNaN(weight) || Double.isInfinite(weight))
+				throw new IllegalArgumentException("Weight must be a finite non-negative number.");
+
+			outcomes[i] = entry.getKey();
+			probabilities[i] = weight;
+			total += weight;
+			++i;
+		}
+
+		if (total <= 0) {
+			for (i = 0; i < n; ++i) {
+				probabilities[i] = 1.0 / n;
+			}
+		} else {
+			for (i = 0; i < n; ++i) {
+				probabilities[i] /= total;
+			}
+		}
+
+		cutoffs = new double[n];
+		aliases = new int[n];
+		buildAliases();
+	}
+
+	public int size() {
+		return outcomes.length;
+	}
+
+	public String getOutcome(int index) {
+		return outcomes[index];
+	}
+
+	public double getProbability(int index) {
+		return probabilities[index];
+	}
+
+	public String sample(RandomSource rnd) {
+		final int n = outcomes.length;
+		double u = rnd.nextDouble() * n;
+		int i = (int)u;
+		if (i >= n) {
+			i = n - 1;
+		}
+		return u - i < cutoffs[i] ? outcomes[i] : outcomes[aliases[i]];
+	}
+
+	private void buildAliases() {
+		final int n = outcomes.length;
+		double[] scaled = new double[n];
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int smallCount = 0;
+		int largeCount = 0;
+
+		for (int i = 0; i < n; ++i) {
+			scaled[i] = probabilities[i] * n;
+			if (scaled[i] < 1.0) {
+				small[smallCount++] = i;
+			} else {
+				large[largeCount++] = i;
+			}
+		}
+
+		while (smallCount > 0 && largeCount > 0) {
+			int s = small[--smallCount];
+			int l = large[--largeCount];
+			cutoffs[s] = scaled[s];
+			aliases[s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+			if (scaled[l] < 1.0) {
+				small[smallCount++] = l;
+			} else {
+				large[largeCount++] = l;
+			}
+		}
+
+		// anything left over is within rounding error of 1
+		while (largeCount > 0) {
+			int l = large[--largeCount];
+			cutoffs[l] = 1.0;
+			aliases[l] = l;
+		}
+		while (smallCount > 0) {
+			int s = small[--smallCount];
+			cutoffs[s] = 1.0;
+			aliases[s] = s;
+		}
+	}
+}
@@ -2,22 +2,29 @@ package com.magicmoremagic.coffee;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.magicmoremagic.coffee.parser.DefaultLexer;
+import com.magicmoremagic.coffee.parser.GrammarSerializer;
 import com.magicmoremagic.coffee.parser.Lexer;
+import com.magicmoremagic.coffee.parser.StringUtil;
 import com.magicmoremagic.coffee.parser.Token;
 import com.magicmoremagic.coffee.parser.TokenType;
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.RandomSources;
+import com.magicmoremagic.coffee.random.ThreadLocalRandomSource;
 
 public class Production extends AbstractList<Symbol> implements SerializableSymbol {
 
 	private static final double EPSILON = 0.0001;
+	private static final AtomicLong nestedModificationCount = new AtomicLong(0);
 	
 	private Nonterminal owner;
+	private boolean nested;
 	private Production tail;
 	private double lowerBound;
 	private double upperBound;
 	private List<Symbol> symbols;
-	private int cachedHashCode = -1;
 	
 	public Production() {
 		symbols = new ArrayList<>();
@@ -63,11 +70,18 @@ public class Production extends AbstractList<Symbol> implements SerializableSymb
 		addAll(symbols);
 	}
 	
+	/**
+	 * Creates an unowned copy, with copies of its symbols and of everything they
+	 * depend on.
+	 * 
+	 * @see GrammarCopier
+	 */
 	public Production(Production other) {
 		upperBound = other.getWeight();
 		this.symbols = new ArrayList<>();
+		GrammarCopier copier = new GrammarCopier();
 		for (Symbol s : other.symbols) {
-			this.symbols.add(s.clone());
+			this.symbols.add(copier.copy(s));
 		}
 	}
 	
@@ -198,6 +212,7 @@ public class Production extends AbstractList<Symbol> implements SerializableSymb
     	if (symbol == null)
     		throw new NullPointerException();
     	
+    	modified();
         return symbols.set(index, symbol);
     }
 	    
@@ -271,21 +286,41 @@ public class Production extends AbstractList<Symbol> implements SerializableSymb
 	@Override
 	public String brew() {
 		StringBuilder sb = new StringBuilder();
-		brew(new Random(), sb);
+		brew(ThreadLocalRandomSource.INSTANCE, sb);
 		return sb.toString();
 	}
 
 	@Override
 	public String brew(Random rnd) {
+		StringBuilder sb = new StringBuilder();
+		brew(RandomSources.wrap(rnd), sb);
+		return sb.toString();
+	}
+	
+	@Override
+	public String brew(RandomSource rnd) {
 		StringBuilder sb = new StringBuilder();
 		brew(rnd, sb);
 		return sb.toString();
 	}
 	
+	@Override
+	public String brew(long seed, long index) {
+		StringBuilder sb = new StringBuilder();
+		brew(RandomSources.indexed(seed, index), sb);
+		return sb.toString();
+	}
+	
 	@Override
 	public void brew(Random rnd, StringBuilder dest) {
-		for (Symbol s : symbols) {
-			s.brew(rnd, dest);
+		brew(RandomSources.wrap(rnd), dest);
+	}
+	
+	@Override
+	public void brew(RandomSource rnd, StringBuilder dest) {
+		final int size = symbols.size();
+		for (int i = 0; i < size; ++i) {
+			symbols.get(i).brew(rnd, dest);
 		}
 	}
 
@@ -341,6 +376,14 @@ public class Production extends AbstractList<Symbol> implements SerializableSymb
 		if (lexer == null) {
 			lexer = getDefaultLexer();
 		}
+		
+		if (GrammarSerializer.isDefaultSyntax(lexer)) {
+			StringBuilder sb = new StringBuilder();
+			GrammarSerializer.appendProduction(sb, this);
+			pw.append(sb);
+			pw.flush();
+			return;
+		}
 
 		double weight = getWeight();
 		int intWeight = (int)weight;
@@ -351,7 +394,7 @@ public class Production extends AbstractList<Symbol> implements SerializableSymb
 				lexer.serializeToken(pw, new Token(intWeight));
 			}
 		} else {
-			lexer.serializeToken(pw, new Token(getWeight()));
+			lexer.serializeToken(pw, new Token(StringUtil.trimWeight(weight, upperBound)));
 		}
 		
 		lexer.serializeToken(pw, Token.PROD_OP);
@@ -375,10 +418,7 @@ public class Production extends AbstractList<Symbol> implements SerializableSymb
 	
 	@Override
 	public int hashCode() {
-		if (cachedHashCode == -1) {
-			cachedHashCode = 47 * (int)getWeight() + symbols.hashCode();
-		}
-		return cachedHashCode;
+		return 47 * (int)getWeight() + symbols.hashCode();
 	}
 	
 	protected Lexer getDefaultLexer() {
@@ -401,6 +441,22 @@ public class Production extends AbstractList<Symbol> implements SerializableSymb
 		this.owner = owner;
 	}
 	
+	/**
+	 * Marks this production as nested inside another, whose owner won't be told when
+	 * it changes; changes are counted by getNestedModificationCount() instead.
+	 */
+	void markNested() {
+		nested = true;
+	}
+	
+	/**
+	 * Returns a counter which is incremented whenever a Production marked as nested
+	 * is changed.
+	 */
+	static long getNestedModificationCount() {
+		return nestedModificationCount.get();
+	}
+	
 	void setTail(Production tail) {
 		this.tail = tail;
 		if (tail != null) {
@@ -422,7 +478,11 @@ public class Production extends AbstractList<Symbol> implements SerializableSymb
 		return upperBound;
 	}
 	
-	double getUpperBound() {
+	/**
+	 * Returns the sum of this production's weight and the weights of the
+	 * productions before it in its owner.
+	 */
+	public double getUpperBound() {
 		return upperBound;
 	}
 	
@@ -438,12 +498,16 @@ public class Production extends AbstractList<Symbol> implements SerializableSymb
 		return -1;
 	}
 
-	void addDependencies(Set<Nonterminal> set) {
+	/**
+	 * Adds the nonterminals referenced directly by this production (including those
+	 * inside nested productions) to dest.
+	 */
+	void addDependencies(Collection<Nonterminal> dest) {
 		for (Symbol s : symbols) {
 			if (s instanceof Nonterminal) {
-				((Nonterminal)s).addDependencies(set);
+				dest.add((Nonterminal)s);
 			} else if (s instanceof Production) {
-				((Production)s).addDependencies(set);
+				((Production)s).addDependencies(dest);
 			}
 		}
 	}
@@ -471,7 +535,12 @@ public class Production extends AbstractList<Symbol> implements SerializableSymb
 	}
 	
 	private void modified() {
-		cachedHashCode = -1;
+		if (owner != null) {
+			owner.productionModified();
+		}
+		if (nested) {
+			nestedModificationCount.incrementAndGet();
+		}
 	}
 
 	private class ProdIterator implements Iterator<Symbol> {
@@ -0,0 +1,242 @@
+package com.magicmoremagic.coffee;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.magicmoremagic.coffee.random.RandomSource;
+
+/**
+ * Tracks which productions of a DerivationBrewer's grammar have been used, and
+ * steers generation toward those that haven't.  Pass it to DerivationBrewer.brew()
+ * as the ProductionSelector, and whenever a nonterminal with unused productions
+ * is expanded, one of them is chosen (uniformly, ignoring weights) with
+ * probability getBoost(); otherwise the production is chosen by weight as usual.
+ * Once all of a nonterminal's productions have been used, choosing between them
+ * costs nothing extra.
+ *
+ * Productions with zero weight are never chosen by weight, so they aren't boosted
+ * or counted.
+ *
+ * The hit bitmap is striped so that each 64-production word has a cache line to
+ * itself, and words are only written (with a compare-and-set) when a production is
+ * used for the first time; after that, threads sharing a ProductionCoverage only
+ * read it.
+ */
+public class ProductionCoverage implements ProductionSelector {
+
+	public static final double DEFAULT_BOOST = 0.9;
+
+	// longs per cache line
+	private static final int STRIDE = 8;
+
+	private final DerivationBrewer brewer;
+	private final long[] coverableBits;
+	private final AtomicLongArray bits;
+	private final AtomicIntegerArray remaining;
+	private final AtomicInteger covered;
+	private final int coverable;
+	private volatile double boost = DEFAULT_BOOST;
+
+	public ProductionCoverage(DerivationBrewer brewer) {
+		if (brewer == null)
+			throw new NullPointerException();
+
+		this.brewer = brewer;
+		coverableBits = new long[(brewer.getProductionCount() + 63) >>> 6];
+		for (int nt = 0; nt < brewer.getNonterminalCount(); ++nt) {
+			double lower = 0.0;
+			for (int p = brewer.getFirstProduction(nt), end = brewer.getFirstProduction(nt + 1); p < end; ++p) {
+				double upper = brewer.getUpperBound(p);
+				if (upper > lower) {
+					coverableBits[p >>> 6] |= 1L << p;
+				}
+				lower = upper;
+			}
+		}
+		bits = new AtomicLongArray(((brewer.getProductionCount() + 63) >>> 6) * STRIDE);
+		remaining = new AtomicIntegerArray(brewer.getNonterminalCount());
+		covered = new AtomicInteger();
+		coverable = resetRemaining();
+	}
+
+	public DerivationBrewer getBrewer() {
+		return brewer;
+	}
+
+	public double getBoost() {
+		return boost;
+	}
+
+	/**
+	 * Sets the probability of choosing an unused production when a nonterminal
+	 * still has some.  0 disables steering, leaving only tracking.
+	 */
+	public void setBoost(double boost) {
+		if (!(boost >= 0.0 && boost <= 1.0))
+			throw new IllegalArgumentException("Boost must be between 0 and 1.");
+
+		this.boost = boost;
+	}
+
+	/**
+	 * Returns the number of productions with nonzero weight.
+	 */
+	public int getCoverableCount() {
+		return coverable;
+	}
+
+	public int getCoveredCount() {
+		return covered.get();
+	}
+
+	public boolean isComplete() {
+		return covered.get() == coverable;
+	}
+
+	public boolean isComplete(int nonterminal) {
+		return remaining.get(nonterminal) == 0;
+	}
+
+	public boolean isCovered(int production) {
+		return (bits.get(word(production)) & (1L << production)) != 0;
+	}
+
+	/**
+	 * Forgets every production used so far.  Not atomic with respect to concurrent
+	 * brewing.
+	 */
+	public void reset() {
+		for (int i = 0; i < bits.length(); ++i) {
+			bits.set(i, 0);
+		}
+		resetRemaining();
+		covered.set(0);
+	}
+
+	/**
+	 * Writes a summary line, followed by each nonterminal which has unused
+	 * productions and those productions.
+	 */
+	public void report(Appendable out) throws IOException {
+		int complete = 0;
+		for (int nt = 0; nt < remaining.length(); ++nt) {
+			if (remaining.get(nt) == 0) {
+				++complete;
+			}
+		}
+		int coveredCount = covered.get();
+		out.append(String.format("Covered %d of %d productions (%.1f%%) and %d of %d nonterminals%n",
+				coveredCount, coverable, coverable == 0 ? 100.0 : 100.0 * coveredCount / coverable,
+				complete, remaining.length()));
+
+		for (int nt = 0; nt < remaining.length(); ++nt) {
+			if (remaining.get(nt) == 0)
+				continue;
+
+			int first = brewer.getFirstProduction(nt);
+			int end = brewer.getFirstProduction(nt + 1);
+			out.append(String.format("   %s: %d unused%n", brewer.getNonterminal(nt).getName(), remaining.get(nt)));
+			for (int p = first; p < end; ++p) {
+				if (isCoverable(p) && !isCovered(p)) {
+					out.append("      ").append(brewer.getProduction(p).toString()).append(System.lineSeparator());
+				}
+			}
+		}
+	}
+
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		try {
+			report(sb);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "ProductionCoverage[" + covered.get() + "/" + coverable + "]";
+	}
+
+	/**
+	 * Returns an unused production of nonterminal to use instead of one chosen by
+	 * weight, or -1 to choose by weight.
+	 */
+	@Override
+	public int select(int nonterminal, RandomSource rnd) {
+		if (remaining.get(nonterminal) == 0)
+			return -1;
+
+		double b = boost;
+		if (b < 1.0 && rnd.nextDouble() >= b)
+			return -1;
+
+		int first = brewer.getFirstProduction(nonterminal);
+		int end = brewer.getFirstProduction(nonterminal + 1);
+		int chosen = -1;
+		int count = 0;
+		for (int p = first; p < end; ++p) {
+			if (isCoverable(p) && !isCovered(p) && rnd.nextInt(++count) == 0) {
+				chosen = p;
+			}
+		}
+		return chosen;
+	}
+
+	@Override
+	public void selected(int nonterminal, int production) {
+		cover(nonterminal, production);
+	}
+
+	/**
+	 * Marks a production of nonterminal as used.
+	 *
+	 * @return true if it hadn't been used before.
+	 */
+	public boolean cover(int nonterminal, int production) {
+		int word = word(production);
+		long mask = 1L << production;
+		long current = bits.get(word);
+		while ((current & mask) == 0) {
+			if (bits.compareAndSet(word, current, current | mask)) {
+				if (isCoverable(production)) {
+					remaining.decrementAndGet(nonterminal);
+					covered.incrementAndGet();
+				}
+				return true;
+			}
+			current = bits.get(word);
+		}
+		return false;
+	}
+
+	/**
+	 * Sets each nonterminal's count of unused productions to its number of
+	 * coverable productions, and returns the total.
+	 */
+	private int resetRemaining() {
+		int total = 0;
+		for (int nt = 0; nt < remaining.length(); ++nt) {
+			int n = 0;
+			for (int p = brewer.getFirstProduction(nt), end = brewer.getFirstProduction(nt + 1); p < end; ++p) {
+				if (isCoverable(p)) {
+					++n;
+				}
+			}
+			remaining.set(nt, n);
+			total += n;
+		}
+		return total;
+	}
+
+	private boolean isCoverable(int production) {
+		return (coverableBits[production >>> 6] & (1L << production)) != 0;
+	}
+
+	private static int word(int production) {
+		return (production >>> 6) * STRIDE;
+	}
+}
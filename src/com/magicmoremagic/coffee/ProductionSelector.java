@@ -0,0 +1,22 @@
+package com.magicmoremagic.coffee;
+
+import com.magicmoremagic.coffee.random.RandomSource;
+
+/**
+ * Steers or observes the choice of productions made by DerivationBrewer.brew(),
+ * using the IDs assigned by the DerivationBrewer it was created for.
+ */
+public interface ProductionSelector {
+
+	/**
+	 * Returns the production to use when expanding nonterminal, or -1 to choose
+	 * one by the grammar's weights.
+	 */
+	int select(int nonterminal, RandomSource rnd);
+
+	/**
+	 * Called whenever a production of nonterminal is used, however it was chosen.
+	 */
+	void selected(int nonterminal, int production);
+
+}
@@ -0,0 +1,921 @@
+package com.magicmoremagic.coffee;
+
+import java.util.*;
+
+/**
+ * Decides whether a string could have been brewed by a Nonterminal (or by a
+ * NonterminalSet, choosing one of its primaries at random), and computes the
+ * probability of brewing exactly that string: the sum, over every derivation of
+ * the string, of the product of the probabilities of the productions it uses.
+ *
+ * The grammar is compiled when the Recognizer is created, and strings are parsed
+ * with an Earley parser whose items carry inside probabilities.  Terminals are
+ * matched as whole literals, and adjacent terminals are merged.  Nonterminals
+ * whose language is a finite list of strings -- word lists, nonterminals with an
+ * OutcomeTable, and nonterminals whose productions contain only terminals -- are
+ * compiled into hashed lexicons that are matched directly, without items of their
+ * own.  Productions are only predicted when their possible first characters
+ * include the next input character, and nullable nonterminals are skipped over
+ * using their precomputed probability of producing the empty string.  Unit
+ * cycles are handled by propagating increments until they become negligible.
+ *
+ * Later changes to the grammar are not seen.  A Recognizer may be shared between
+ * threads; each thread reuses its own chart.  Probabilities too small for a
+ * double are reported as 0 even though recognizes() returns true.
+ */
+public class Recognizer {
+
+	private static final int END = 0;
+	private static final int NONTERMINAL = 1;
+	private static final int LITERAL = 2;
+	private static final int LEXICON = 3;
+
+	private static final double NEGLIGIBLE = 1e-12;
+	private static final int MAX_NULL_ITERATIONS = 10000;
+
+	private final int start;
+	private final int[] lexiconOf;
+	private final double[] nullProbability;
+	private final int[] firstProduction;
+	private final int[] productionState;
+	private final double[] productionProbability;
+	private final long[] productionFirstChars;
+	private final int[] stateKind;
+	private final int[] stateArg;
+	private final char[][] literals;
+	private final Lexicon[] lexicons;
+
+	private final ThreadLocal<Chart> charts = new ThreadLocal<Chart>() {
+		@Override
+		protected Chart initialValue() {
+			return new Chart();
+		}
+	};
+
+	/**
+	 * Compiles root and everything it depends on.
+	 */
+	public Recognizer(Nonterminal root) {
+		this(Collections.singletonList(root));
+	}
+
+	/**
+	 * Compiles the primary nonterminals of set and everything they depend on.  A
+	 * string's probability is the average of its probabilities under each primary,
+	 * as NonterminalSet.brew() chooses between them uniformly.
+	 */
+	public Recognizer(NonterminalSet set) {
+		this(toList(set));
+	}
+
+	private static List<Nonterminal> toList(NonterminalSet set) {
+		List<Nonterminal> list = new ArrayList<>();
+		for (Nonterminal nt : set) {
+			list.add(nt);
+		}
+		return list;
+	}
+
+	private Recognizer(List<Nonterminal> roots) {
+		Map<Nonterminal, Integer> index = new IdentityHashMap<>();
+		List<Nonterminal> nonterminals = new ArrayList<>();
+		for (Nonterminal root : roots) {
+			if (root == null)
+				throw new NullPointerException();
+			add(root, index, nonterminals);
+			for (Nonterminal d : root.collectDependencies()) {
+				add(d, index, nonterminals);
+			}
+		}
+
+		// the start symbol is an extra nonterminal choosing uniformly between the roots
+		start = nonterminals.size();
+		int count = start + 1;
+		lexiconOf = new int[count];
+		nullProbability = new double[count];
+		firstProduction = new int[count + 1];
+
+		List<Lexicon> lexiconList = new ArrayList<>();
+		for (int nt = 0; nt < start; ++nt) {
+			Lexicon lexicon = Lexicon.of(nonterminals.get(nt));
+			if (lexicon == null) {
+				lexiconOf[nt] = -1;
+			} else {
+				lexiconOf[nt] = lexiconList.size();
+				lexiconList.add(lexicon);
+			}
+		}
+		lexiconOf[start] = -1;
+		lexicons = lexiconList.toArray(new Lexicon[lexiconList.size()]);
+
+		List<Integer> prodStates = new ArrayList<>();
+		List<Double> prodProbabilities = new ArrayList<>();
+		List<Integer> kinds = new ArrayList<>();
+		List<Integer> args = new ArrayList<>();
+		List<char[]> literalList = new ArrayList<>();
+		List<Object> sequence = new ArrayList<>();
+		StringBuilder literal = new StringBuilder();
+
+		for (int nt = 0; nt < count; ++nt) {
+			firstProduction[nt] = prodStates.size();
+			if (nt < start && lexiconOf[nt] >= 0)
+				continue;
+
+			if (nt == start) {
+				for (Nonterminal root : roots) {
+					sequence.clear();
+					sequence.add(root);
+					addProduction(nt, 1.0 / roots.size(), sequence, index, prodStates, prodProbabilities, kinds, args,
+							literalList);
+				}
+				continue;
+			}
+
+			Nonterminal nonterminal = nonterminals.get(nt);
+			double total = totalWeight(nonterminal);
+			for (Production p : nonterminal) {
+				double weight = p.getWeight();
+				if (!(weight > 0.0) || !(total > 0.0))
+					continue;
+
+				sequence.clear();
+				literal.setLength(0);
+				flatten(p, sequence, literal);
+				if (literal.length() > 0) {
+					sequence.add(literal.toString());
+				}
+				addProduction(nt, weight / total, sequence, index, prodStates, prodProbabilities, kinds, args,
+						literalList);
+			}
+		}
+		firstProduction[count] = prodStates.size();
+
+		productionState = new int[prodStates.size()];
+		productionProbability = new double[prodStates.size()];
+		for (int p = 0; p < productionState.length; ++p) {
+			productionState[p] = prodStates.get(p);
+			productionProbability[p] = prodProbabilities.get(p);
+		}
+		stateKind = new int[kinds.size()];
+		stateArg = new int[kinds.size()];
+		for (int s = 0; s < stateKind.length; ++s) {
+			stateKind[s] = kinds.get(s);
+			stateArg[s] = args.get(s);
+		}
+		literals = literalList.toArray(new char[literalList.size()][]);
+
+		computeNullProbabilities();
+		productionFirstChars = new long[productionState.length];
+		computeFirstChars();
+	}
+
+	private void addProduction(int nt, double probability, List<Object> sequence, Map<Nonterminal, Integer> index,
+			List<Integer> prodStates, List<Double> prodProbabilities, List<Integer> kinds, List<Integer> args,
+			List<char[]> literalList) {
+		prodStates.add(kinds.size());
+		prodProbabilities.add(probability);
+		for (Object symbol : sequence) {
+			if (symbol instanceof String) {
+				kinds.add(LITERAL);
+				args.add(literalList.size());
+				literalList.add(((String)symbol).toCharArray());
+			} else {
+				int ref = index.get(symbol);
+				if (lexiconOf[ref] >= 0) {
+					kinds.add(LEXICON);
+					args.add(lexiconOf[ref]);
+				} else {
+					kinds.add(NONTERMINAL);
+					args.add(ref);
+				}
+			}
+		}
+		kinds.add(END);
+		args.add(nt);
+	}
+
+	private static double totalWeight(Nonterminal nt) {
+		double total = 0.0;
+		for (Production p : nt) {
+			total += p.getWeight();
+		}
+		return total;
+	}
+
+	private static void add(Nonterminal nt, Map<Nonterminal, Integer> index, List<Nonterminal> list) {
+		if (!index.containsKey(nt)) {
+			index.put(nt, list.size());
+			list.add(nt);
+		}
+	}
+
+	/**
+	 * Appends the symbols of p to sequence, with nested productions inlined, and
+	 * runs of terminals merged into Strings.  literal holds the current run.
+	 */
+	private static void flatten(Production p, List<Object> sequence, StringBuilder literal) {
+		for (Symbol s : p) {
+			if (s instanceof Production) {
+				flatten((Production)s, sequence, literal);
+			} else if (s instanceof Nonterminal) {
+				if (literal.length() > 0) {
+					sequence.add(literal.toString());
+					literal.setLength(0);
+				}
+				sequence.add(s);
+			} else if (s instanceof Terminal) {
+				String content = ((Terminal)s).get();
+				if (content != null) {
+					literal.append(content);
+				}
+			} else {
+				throw new IllegalArgumentException("Can't recognize symbol: " + s);
+			}
+		}
+	}
+
+	/**
+	 * Finds the probability of each nonterminal producing the empty string, as the
+	 * least fixed point of the equations relating them.
+	 */
+	private void computeNullProbabilities() {
+		for (int nt = 0; nt < start; ++nt) {
+			if (lexiconOf[nt] >= 0) {
+				nullProbability[nt] = lexicons[lexiconOf[nt]].emptyProbability;
+			} else if (firstProduction[nt] == firstProduction[nt + 1]) {
+				// a nonterminal with no productions (or no weight) always brews nothing
+				nullProbability[nt] = 1.0;
+			}
+		}
+
+		for (int iteration = 0; iteration < MAX_NULL_ITERATIONS; ++iteration) {
+			double change = 0.0;
+			for (int nt = 0; nt <= start; ++nt) {
+				if (lexiconOf[nt] >= 0 || firstProduction[nt] == firstProduction[nt + 1])
+					continue;
+
+				double sum = 0.0;
+				for (int p = firstProduction[nt]; p < firstProduction[nt + 1]; ++p) {
+					double product = productionProbability[p];
+					for (int s = productionState[p]; product > 0.0 && stateKind[s] != END; ++s) {
+						product *= symbolNullProbability(s);
+					}
+					sum += product;
+				}
+				change = Math.max(change, Math.abs(sum - nullProbability[nt]));
+				nullProbability[nt] = sum;
+			}
+			if (change < 1e-15)
+				break;
+		}
+	}
+
+	private double symbolNullProbability(int state) {
+		switch (stateKind[state]) {
+		case NONTERMINAL:
+			return nullProbability[stateArg[state]];
+		case LEXICON:
+			return lexicons[stateArg[state]].emptyProbability;
+		default:
+			return 0.0;
+		}
+	}
+
+	/**
+	 * Finds a 64-bit mask of the characters each production can start with when it
+	 * produces a non-empty string, with character c represented by bit (c & 63).
+	 */
+	private void computeFirstChars() {
+		long[] nonterminalFirstChars = new long[start + 1];
+		for (int nt = 0; nt < start; ++nt) {
+			if (lexiconOf[nt] >= 0) {
+				nonterminalFirstChars[nt] = lexicons[lexiconOf[nt]].firstChars;
+			}
+		}
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int nt = 0; nt <= start; ++nt) {
+				if (lexiconOf[nt] >= 0)
+					continue;
+
+				long ntMask = 0;
+				for (int p = firstProduction[nt]; p < firstProduction[nt + 1]; ++p) {
+					long mask = 0;
+					for (int s = productionState[p]; stateKind[s] != END; ++s) {
+						switch (stateKind[s]) {
+						case NONTERMINAL:
+							mask |= nonterminalFirstChars[stateArg[s]];
+							break;
+						case LEXICON:
+							mask |= lexicons[stateArg[s]].firstChars;
+							break;
+						default:
+							mask |= bit(literals[stateArg[s]][0]);
+							break;
+						}
+						if (symbolNullProbability(s) == 0.0)
+							break;
+					}
+					productionFirstChars[p] = mask;
+					ntMask |= mask;
+				}
+				if (ntMask != nonterminalFirstChars[nt]) {
+					nonterminalFirstChars[nt] = ntMask;
+					changed = true;
+				}
+			}
+		}
+	}
+
+	private static long bit(char c) {
+		return 1L << (c & 63);
+	}
+
+	/**
+	 * Returns true if s can be brewed.
+	 */
+	public boolean recognizes(CharSequence s) {
+		return charts.get().parse(s) >= 0.0;
+	}
+
+	/**
+	 * Returns the probability of brewing exactly s, or 0 if it can't be brewed.
+	 */
+	public double probability(CharSequence s) {
+		return Math.max(0.0, charts.get().parse(s));
+	}
+
+	/**
+	 * The strings a nonterminal with a finite list of alternatives can produce, and
+	 * their probabilities, in an open-addressed hash table.
+	 */
+	private static class Lexicon {
+		private final char[] chars;
+		private final int[] offsets;
+		private final int[] hashes;
+		private final double[] probabilities;
+		private final int[] table;
+		private final int[] lengths;
+		private final double emptyProbability;
+		private final long firstChars;
+
+		/**
+		 * Returns the lexicon of nt, or null if it isn't a finite list of strings.
+		 */
+		static Lexicon of(Nonterminal nt) {
+			Map<String, Double> words = new LinkedHashMap<>();
+			if (nt instanceof WordList) {
+				WordList list = (WordList)nt;
+				for (int i = 0; i < list.getWordCount(); ++i) {
+					double weight = list.isWeighted() ? list.getWordWeight(i) : 1.0;
+					addWord(words, list.getWord(i), weight);
+				}
+			} else if (nt.getOutcomeTable() != null) {
+				OutcomeTable table = nt.getOutcomeTable();
+				for (int i = 0; i < table.size(); ++i) {
+					addWord(words, table.getOutcome(i), table.getProbability(i));
+				}
+			} else {
+				if (!(totalWeight(nt) > 0.0))
+					return null;
+
+				StringBuilder sb = new StringBuilder();
+				for (Production p : nt) {
+					sb.setLength(0);
+					if (!appendLiteral(p, sb))
+						return null;
+					addWord(words, sb.toString(), p.getWeight());
+				}
+			}
+			return new Lexicon(words);
+		}
+
+		private static void addWord(Map<String, Double> words, String word, double weight) {
+			if (weight > 0.0) {
+				Double existing = words.get(word);
+				words.put(word, existing == null ? weight : existing + weight);
+			}
+		}
+
+		private static boolean appendLiteral(Production p, StringBuilder sb) {
+			for (Symbol s : p) {
+				if (s instanceof Production) {
+					if (!appendLiteral((Production)s, sb))
+						return false;
+				} else if (s instanceof Terminal) {
+					String content = ((Terminal)s).get();
+					if (content != null) {
+						sb.append(content);
+					}
+				} else {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private Lexicon(Map<String, Double> words) {
+			double total = 0.0;
+			int length = 0;
+			for (Map.Entry<String, Double> entry : words.entrySet()) {
+				total += entry.getValue();
+				length += entry.getKey().length();
+			}
+
+			int n = words.size();
+			chars = new char[length];
+			offsets = new int[n + 1];
+			hashes = new int[n];
+			probabilities = new double[n];
+			table = new int[Integer.highestOneBit(Math.max(4, n * 2 - 1)) << 1];
+			double empty = 0.0;
+			long first = 0;
+			SortedSet<Integer> lengthSet = new TreeSet<>();
+			int w = 0;
+			for (Map.Entry<String, Double> entry : words.entrySet()) {
+				String word = entry.getKey();
+				double probability = total > 0.0 ? entry.getValue() / total : 0.0;
+				if (word.isEmpty()) {
+					empty += probability;
+					continue;
+				}
+
+				word.getChars(0, word.length(), chars, offsets[w]);
+				offsets[w + 1] = offsets[w] + word.length();
+				hashes[w] = word.hashCode();
+				probabilities[w] = probability;
+				lengthSet.add(word.length());
+				first |= bit(word.charAt(0));
+
+				int slot = mix(hashes[w], word.length()) & (table.length - 1);
+				while (table[slot] != 0) {
+					slot = (slot + 1) & (table.length - 1);
+				}
+				table[slot] = w + 1;
+				++w;
+			}
+
+			emptyProbability = empty;
+			firstChars = first;
+			lengths = new int[lengthSet.size()];
+			int i = 0;
+			for (int l : lengthSet) {
+				lengths[i++] = l;
+			}
+		}
+
+		private static int mix(int hash, int length) {
+			int h = hash * 0x9E3779B9 + length;
+			return h ^ (h >>> 16);
+		}
+
+		/**
+		 * Calls chart.lexiconMatch() for each non-empty word found at position from
+		 * of input.
+		 */
+		void match(char[] input, int inputLength, int from, Chart chart) {
+			int hash = 0;
+			int hashed = from;
+			for (int length : lengths) {
+				int end = from + length;
+				if (end > inputLength)
+					break;
+
+				while (hashed < end) {
+					hash = 31 * hash + input[hashed++];
+				}
+
+				int slot = mix(hash, length) & (table.length - 1);
+				int w;
+				while ((w = table[slot]) != 0) {
+					--w;
+					if (hashes[w] == hash && offsets[w + 1] - offsets[w] == length && matches(w, input, from)) {
+						chart.lexiconMatch(end, probabilities[w]);
+						break;
+					}
+					slot = (slot + 1) & (table.length - 1);
+				}
+			}
+		}
+
+		private boolean matches(int word, char[] input, int from) {
+			for (int i = offsets[word], end = offsets[word + 1]; i < end; ++i, ++from) {
+				if (chars[i] != input[from])
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * The per-thread state of a parse.  Items are stored in parallel arrays and
+	 * found by (column, state, start) through an open-addressed table.  Tables are
+	 * cleared between parses by advancing a generation number instead of by
+	 * filling them.
+	 */
+	private class Chart {
+		private char[] input = new char[64];
+		private int length;
+		private int column;
+
+		// items
+		private int itemCount;
+		private int[] itemState = new int[256];
+		private int[] itemStart = new int[256];
+		private int[] itemColumn = new int[256];
+		private double[] itemInner = new double[256];
+		private double[] itemPending = new double[256];
+		private boolean[] itemProcessed = new boolean[256];
+		private boolean[] itemQueued = new boolean[256];
+		private int[] itemNextInColumn = new int[256];
+		private int[] itemNextWaiting = new int[256];
+		private int[] columnHead = new int[65];
+
+		private int generation;
+		private int[] itemTable = new int[1024];
+		private int[] itemTableGeneration = new int[1024];
+
+		// (column, nonterminal) -> first item waiting on the nonterminal there
+		private int[] waitColumn = new int[256];
+		private int[] waitNonterminal = new int[256];
+		private int[] waitHead = new int[256];
+		private int[] waitGeneration = new int[256];
+		private int waitCount;
+
+		// (lexicon, column) -> matches, as a range of the match arrays
+		private int[] memoLexicon = new int[256];
+		private int[] memoColumn = new int[256];
+		private int[] memoFirst = new int[256];
+		private int[] memoEnd = new int[256];
+		private int[] memoGeneration = new int[256];
+		private int memoCount;
+		private int matchCount;
+		private int[] matchEnd = new int[256];
+		private double[] matchProbability = new double[256];
+
+		private int[] heap = new int[256];
+		private int heapSize;
+
+		/**
+		 * Returns the probability of s, or -1 if it can't be brewed.
+		 */
+		double parse(CharSequence s) {
+			length = s.length();
+			if (input.length < length) {
+				input = new char[Math.max(length, input.length * 2)];
+			}
+			for (int i = 0; i < length; ++i) {
+				input[i] = s.charAt(i);
+			}
+			if (columnHead.length < length + 1) {
+				columnHead = new int[Math.max(length + 1, columnHead.length * 2)];
+			}
+			Arrays.fill(columnHead, 0, length + 1, -1);
+
+			if (++generation == 0) {
+				Arrays.fill(itemTableGeneration, 0);
+				Arrays.fill(waitGeneration, 0);
+				Arrays.fill(memoGeneration, 0);
+				generation = 1;
+			}
+			itemCount = 0;
+			waitCount = 0;
+			memoCount = 0;
+			matchCount = 0;
+
+			column = 0;
+			for (int p = firstProduction[start]; p < firstProduction[start + 1]; ++p) {
+				add(0, productionState[p], 0, productionProbability[p]);
+			}
+
+			for (column = 0; column <= length; ++column) {
+				for (int item = columnHead[column]; item >= 0; item = itemNextInColumn[item]) {
+					push(item);
+				}
+				while (heapSize > 0) {
+					process(pop());
+				}
+			}
+
+			double probability = 0.0;
+			boolean found = false;
+			for (int item = columnHead[length]; item >= 0; item = itemNextInColumn[item]) {
+				int state = itemState[item];
+				if (itemStart[item] == 0 && stateKind[state] == END && stateArg[state] == start) {
+					probability += itemInner[item];
+					found = true;
+				}
+			}
+			return found ? probability : -1.0;
+		}
+
+		private void process(int item) {
+			itemQueued[item] = false;
+			boolean first = !itemProcessed[item];
+			itemProcessed[item] = true;
+			double delta = itemPending[item];
+			itemPending[item] = 0.0;
+			int state = itemState[item];
+			int from = itemStart[item];
+
+			switch (stateKind[state]) {
+			case END:
+				// empty derivations are accounted for by the null probabilities
+				if (from == column)
+					break;
+
+				int nt = stateArg[state];
+				int entry = findWaiting(from, nt, false);
+				if (entry >= 0) {
+					for (int w = waitHead[entry]; w >= 0; w = itemNextWaiting[w]) {
+						add(column, itemState[w] + 1, itemStart[w], itemInner[w] * delta);
+					}
+				}
+				break;
+
+			case NONTERMINAL:
+				int ref = stateArg[state];
+				if (first) {
+					int waiting = findWaiting(column, ref, true);
+					boolean predict = waitHead[waiting] < 0;
+					itemNextWaiting[item] = waitHead[waiting];
+					waitHead[waiting] = item;
+					if (predict && column < length) {
+						long c = bit(input[column]);
+						for (int p = firstProduction[ref]; p < firstProduction[ref + 1]; ++p) {
+							if ((productionFirstChars[p] & c) != 0) {
+								add(column, productionState[p], column, productionProbability[p]);
+							}
+						}
+					}
+				}
+				if (nullProbability[ref] > 0.0) {
+					add(column, state + 1, from, delta * nullProbability[ref]);
+				}
+				break;
+
+			case LITERAL:
+				char[] literal = literals[stateArg[state]];
+				if (column + literal.length <= length && matches(literal, column)) {
+					add(column + literal.length, state + 1, from, delta);
+				}
+				break;
+
+			case LEXICON:
+				Lexicon lexicon = lexicons[stateArg[state]];
+				int memo = findMemo(stateArg[state], lexicon);
+				for (int m = memoFirst[memo]; m < memoEnd[memo]; ++m) {
+					add(matchEnd[m], state + 1, from, delta * matchProbability[m]);
+				}
+				if (lexicon.emptyProbability > 0.0) {
+					add(column, state + 1, from, delta * lexicon.emptyProbability);
+				}
+				break;
+			}
+		}
+
+		private boolean matches(char[] literal, int at) {
+			for (int i = 0; i < literal.length; ++i) {
+				if (input[at + i] != literal[i])
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Adds amount to the inside probability of the item (column, state, start),
+		 * creating it if necessary, and queues it if it's in the current column and
+		 * has something new to pass on.
+		 */
+		private void add(int col, int state, int from, double amount) {
+			int item = findItem(col, state, from);
+			itemInner[item] += amount;
+			itemPending[item] += amount;
+			if (col == column && !itemQueued[item]
+					&& (!itemProcessed[item] || itemPending[item] > itemInner[item] * NEGLIGIBLE)) {
+				push(item);
+			}
+		}
+
+		private int findItem(int col, int state, int from) {
+			int mask = itemTable.length - 1;
+			int slot = (((col * 0x9E3779B9) ^ state) * 0x85EBCA6B + from) * 0xC2B2AE35;
+			slot = (slot ^ (slot >>> 15)) & mask;
+			while (itemTableGeneration[slot] == generation) {
+				int item = itemTable[slot];
+				if (itemColumn[item] == col && itemState[item] == state && itemStart[item] == from)
+					return item;
+				slot = (slot + 1) & mask;
+			}
+
+			if (itemCount == itemState.length) {
+				growItems();
+			}
+			int item = itemCount++;
+			itemState[item] = state;
+			itemStart[item] = from;
+			itemColumn[item] = col;
+			itemInner[item] = 0.0;
+			itemPending[item] = 0.0;
+			itemProcessed[item] = false;
+			itemQueued[item] = false;
+			itemNextWaiting[item] = -1;
+			itemNextInColumn[item] = columnHead[col];
+			columnHead[col] = item;
+			itemTable[slot] = item;
+			itemTableGeneration[slot] = generation;
+
+			if (itemCount * 2 > itemTable.length) {
+				rehashItems();
+			}
+			return item;
+		}
+
+		private void growItems() {
+			int n = itemState.length * 2;
+			itemState = Arrays.copyOf(itemState, n);
+			itemStart = Arrays.copyOf(itemStart, n);
+			itemColumn = Arrays.copyOf(itemColumn, n);
+			itemInner = Arrays.copyOf(itemInner, n);
+			itemPending = Arrays.copyOf(itemPending, n);
+			itemProcessed = Arrays.copyOf(itemProcessed, n);
+			itemQueued = Arrays.copyOf(itemQueued, n);
+			itemNextInColumn = Arrays.copyOf(itemNextInColumn, n);
+			itemNextWaiting = Arrays.copyOf(itemNextWaiting, n);
+		}
+
+		private void rehashItems() {
+			itemTable = new int[itemTable.length * 2];
+			itemTableGeneration = new int[itemTable.length];
+			int mask = itemTable.length - 1;
+			for (int item = 0; item < itemCount; ++item) {
+				int slot = (((itemColumn[item] * 0x9E3779B9) ^ itemState[item]) * 0x85EBCA6B + itemStart[item])
+						* 0xC2B2AE35;
+				slot = (slot ^ (slot >>> 15)) & mask;
+				while (itemTableGeneration[slot] == generation) {
+					slot = (slot + 1) & mask;
+				}
+				itemTable[slot] = item;
+				itemTableGeneration[slot] = generation;
+			}
+		}
+
+		/**
+		 * Returns the entry for items waiting on nt in col, or -1 if there are none
+		 * and create is false.
+		 */
+		private int findWaiting(int col, int nt, boolean create) {
+			int mask = waitGeneration.length - 1;
+			int slot = (col * 0x9E3779B9 + nt) * 0x85EBCA6B;
+			slot = (slot ^ (slot >>> 15)) & mask;
+			while (waitGeneration[slot] == generation) {
+				if (waitColumn[slot] == col && waitNonterminal[slot] == nt)
+					return slot;
+				slot = (slot + 1) & mask;
+			}
+			if (!create)
+				return -1;
+
+			if ((waitCount + 1) * 2 > waitGeneration.length) {
+				rehashWaiting();
+				return findWaiting(col, nt, true);
+			}
+			++waitCount;
+			waitGeneration[slot] = generation;
+			waitColumn[slot] = col;
+			waitNonterminal[slot] = nt;
+			waitHead[slot] = -1;
+			return slot;
+		}
+
+		private void rehashWaiting() {
+			int[] oldColumn = waitColumn;
+			int[] oldNonterminal = waitNonterminal;
+			int[] oldHead = waitHead;
+			int[] oldGeneration = waitGeneration;
+			int n = oldGeneration.length * 2;
+			waitColumn = new int[n];
+			waitNonterminal = new int[n];
+			waitHead = new int[n];
+			waitGeneration = new int[n];
+			waitCount = 0;
+			for (int i = 0; i < oldGeneration.length; ++i) {
+				if (oldGeneration[i] == generation) {
+					int slot = findWaiting(oldColumn[i], oldNonterminal[i], true);
+					waitHead[slot] = oldHead[i];
+				}
+			}
+		}
+
+		/**
+		 * Returns the memo entry holding the matches of a lexicon at the current
+		 * column, matching it first if necessary.
+		 */
+		private int findMemo(int lex, Lexicon lexicon) {
+			int mask = memoGeneration.length - 1;
+			int slot = (column * 0x9E3779B9 + lex) * 0x85EBCA6B;
+			slot = (slot ^ (slot >>> 15)) & mask;
+			while (memoGeneration[slot] == generation) {
+				if (memoColumn[slot] == column && memoLexicon[slot] == lex)
+					return slot;
+				slot = (slot + 1) & mask;
+			}
+
+			if ((memoCount + 1) * 2 > memoGeneration.length) {
+				rehashMemo();
+				return findMemo(lex, lexicon);
+			}
+			++memoCount;
+			memoGeneration[slot] = generation;
+			memoColumn[slot] = column;
+			memoLexicon[slot] = lex;
+			memoFirst[slot] = matchCount;
+			lexicon.match(input, length, column, this);
+			memoEnd[slot] = matchCount;
+			return slot;
+		}
+
+		private void rehashMemo() {
+			int[] oldLexicon = memoLexicon;
+			int[] oldColumn = memoColumn;
+			int[] oldFirst = memoFirst;
+			int[] oldEnd = memoEnd;
+			int[] oldGeneration = memoGeneration;
+			int n = oldGeneration.length * 2;
+			memoLexicon = new int[n];
+			memoColumn = new int[n];
+			memoFirst = new int[n];
+			memoEnd = new int[n];
+			memoGeneration = new int[n];
+			int mask = n - 1;
+			for (int i = 0; i < oldGeneration.length; ++i) {
+				if (oldGeneration[i] != generation)
+					continue;
+
+				int slot = (oldColumn[i] * 0x9E3779B9 + oldLexicon[i]) * 0x85EBCA6B;
+				slot = (slot ^ (slot >>> 15)) & mask;
+				while (memoGeneration[slot] == generation) {
+					slot = (slot + 1) & mask;
+				}
+				memoGeneration[slot] = generation;
+				memoLexicon[slot] = oldLexicon[i];
+				memoColumn[slot] = oldColumn[i];
+				memoFirst[slot] = oldFirst[i];
+				memoEnd[slot] = oldEnd[i];
+			}
+		}
+
+		void lexiconMatch(int end, double probability) {
+			if (matchCount == matchEnd.length) {
+				matchEnd = Arrays.copyOf(matchEnd, matchCount * 2);
+				matchProbability = Arrays.copyOf(matchProbability, matchCount * 2);
+			}
+			matchEnd[matchCount] = end;
+			matchProbability[matchCount] = probability;
+			++matchCount;
+		}
+
+		/**
+		 * Queues an item; items with later starts (shorter spans) are processed first,
+		 * so that an item usually has all of its inside probability before it's
+		 * passed on.
+		 */
+		private void push(int item) {
+			itemQueued[item] = true;
+			if (heapSize == heap.length) {
+				heap = Arrays.copyOf(heap, heapSize * 2);
+			}
+			int i = heapSize++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (itemStart[heap[parent]] >= itemStart[item])
+					break;
+				heap[i] = heap[parent];
+				i = parent;
+			}
+			heap[i] = item;
+		}
+
+		private int pop() {
+			int top = heap[0];
+			int last = heap[--heapSize];
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= heapSize)
+					break;
+				if (child + 1 < heapSize && itemStart[heap[child + 1]] > itemStart[heap[child]]) {
+					++child;
+				}
+				if (itemStart[heap[child]] <= itemStart[last])
+					break;
+				heap[i] = heap[child];
+				i = child;
+			}
+			heap[i] = last;
+			return top;
+		}
+	}
+}
@@ -6,11 +6,27 @@ import java.io.Writer;
 import java.util.Random;
 
 import com.magicmoremagic.coffee.parser.Lexer;
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.RandomSources;
 
 public interface SerializableSymbol extends Symbol {
 	String brew();
 	String brew(Random rnd);
 	
+	default String brew(RandomSource rnd) {
+		StringBuilder sb = new StringBuilder();
+		brew(rnd, sb);
+		return sb.toString();
+	}
+	
+	/**
+	 * Returns result number index of the sequence identified by seed, without
+	 * generating any of the results before it.
+	 */
+	default String brew(long seed, long index) {
+		return brew(RandomSources.indexed(seed, index));
+	}
+	
 	String serialize();
 	String serialize(Lexer lexer);
 	void serialize(OutputStream os);
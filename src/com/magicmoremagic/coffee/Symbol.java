@@ -2,8 +2,20 @@ package com.magicmoremagic.coffee;
 
 import java.util.Random;
 
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.RandomSources;
+
 public interface Symbol {
 
 	Symbol clone();
 	void brew(Random rnd, StringBuilder dest);
+
+	/**
+	 * Brews with rnd.  The default adapts rnd to a Random, so that symbols which
+	 * only implement brew(Random, StringBuilder) keep working; the symbols in this
+	 * package override it.
+	 */
+	default void brew(RandomSource rnd, StringBuilder dest) {
+		brew(RandomSources.asRandom(rnd), dest);
+	}
 }
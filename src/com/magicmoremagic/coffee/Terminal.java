@@ -3,10 +3,12 @@ package com.magicmoremagic.coffee;
 import java.io.PrintWriter;
 import java.util.Random;
 
+import com.magicmoremagic.coffee.parser.GrammarSerializer;
 import com.magicmoremagic.coffee.parser.Lexer;
 import com.magicmoremagic.coffee.parser.StringUtil;
 import com.magicmoremagic.coffee.parser.Token;
 import com.magicmoremagic.coffee.parser.TokenType;
+import com.magicmoremagic.coffee.random.RandomSource;
 
 public class Terminal extends AbstractSymbol {
 
@@ -40,6 +42,11 @@ public class Terminal extends AbstractSymbol {
 	public void brew(Random rnd, StringBuilder dest) {
 		dest.append(content);
 	}
+	
+	@Override
+	public void brew(RandomSource rnd, StringBuilder dest) {
+		dest.append(content);
+	}
 
 	@Override
 	public boolean equals(Object other) {
@@ -71,6 +78,14 @@ public class Terminal extends AbstractSymbol {
 			lexer = getDefaultLexer();
 		}
 		
+		if (GrammarSerializer.isDefaultSyntax(lexer)) {
+			StringBuilder sb = new StringBuilder();
+			StringUtil.appendLiteral(sb, content);
+			pw.append(sb);
+			pw.flush();
+			return;
+		}
+		
 		lexer.serializeToken(pw, new Token(TokenType.LITERAL, content));
 		pw.flush();
 	}
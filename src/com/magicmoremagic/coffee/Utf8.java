@@ -0,0 +1,90 @@
+package com.magicmoremagic.coffee;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes UTF-8 directly from a ByteBuffer into a StringBuilder, without
+ * creating any intermediate objects.  append() assumes its input is well-formed,
+ * so input from outside should be checked with findMalformed() first.
+ */
+final class Utf8 {
+
+	/**
+	 * Appends the characters encoded by the bytes of buf from start (inclusive) to
+	 * end (exclusive).  Uses absolute gets, so buf's position is not changed.
+	 */
+	static void append(ByteBuffer buf, int start, int end, StringBuilder dest) {
+		int i = start;
+		while (i < end) {
+			int b = buf.get(i++);
+			if (b >= 0) {
+				dest.append((char)b);
+			} else if ((b & 0xE0) == 0xC0) {
+				dest.append((char)(((b & 0x1F) << 6) | (buf.get(i++) & 0x3F)));
+			} else if ((b & 0xF0) == 0xE0) {
+				int c = ((b & 0x0F) << 12) | ((buf.get(i++) & 0x3F) << 6);
+				dest.append((char)(c | (buf.get(i++) & 0x3F)));
+			} else {
+				int cp = ((b & 0x07) << 18) | ((buf.get(i++) & 0x3F) << 12);
+				cp |= (buf.get(i++) & 0x3F) << 6;
+				dest.appendCodePoint(cp | (buf.get(i++) & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * Returns the offset of the first malformed, overlong, truncated or surrogate
+	 * sequence in the bytes of buf from start (inclusive) to end (exclusive), or -1
+	 * if they are all well-formed.
+	 */
+	static int findMalformed(ByteBuffer buf, int start, int end) {
+		int i = start;
+		while (i < end) {
+			int b = buf.get(i) & 0xFF;
+			if (b < 0x80) {
+				++i;
+				continue;
+			}
+
+			int length;
+			int min = 0x80;
+			int max = 0xBF;
+			if (b >= 0xC2 && b <= 0xDF) {
+				length = 2;
+			} else if (b >= 0xE0 && b <= 0xEF) {
+				length = 3;
+				if (b == 0xE0) {
+					min = 0xA0;
+				} else if (b == 0xED) {
+					max = 0x9F;
+				}
+			} else if (b >= 0xF0 && b <= 0xF4) {
+				length = 4;
+				if (b == 0xF0) {
+					min = 0x90;
+				} else if (b == 0xF4) {
+					max = 0x8F;
+				}
+			} else {
+				return i;
+			}
+
+			if (end - i < length)
+				return i;
+
+			// only the second byte has a narrower range
+			int b2 = buf.get(i + 1) & 0xFF;
+			if (b2 < min || b2 > max)
+				return i;
+			for (int j = 2; j < length; ++j) {
+				if ((buf.get(i + j) & 0xC0) != 0x80)
+					return i;
+			}
+			i += length;
+		}
+		return -1;
+	}
+
+	private Utf8() { }
+
+}
@@ -0,0 +1,455 @@
+package com.magicmoremagic.coffee;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+
+import com.magicmoremagic.coffee.random.RandomSource;
+
+/**
+ * Adjusts the weights of a DerivationBrewer's productions while brewing, so that
+ * results approach declared targets: a mean output length, a distribution of
+ * output lengths over a set of bins, and/or an expected number of uses per result
+ * for particular productions.
+ *
+ * The tuner brews with its own copy of the weights, which start as the grammar's.
+ * Each nonterminal's choice is treated as a softmax over the logarithms of its
+ * weights, and those are updated by stochastic gradient descent on the squared
+ * error between the running estimates of the targeted quantities and the targets.
+ * The gradient is estimated with the score function: each result contributes its
+ * deviation from the running estimates, times how much more or less than
+ * expected it used each production.  Gradients are accumulated sparsely and
+ * applied once per batch, to the nonterminals which were expanded, with a step
+ * size which decays over time (Robbins-Monro).
+ *
+ * apply() writes the tuned weights back into the grammar's Productions, so they
+ * can be saved with serialize().  Targets which the grammar can't reach are
+ * approached as closely as the gradient allows; raising the weight of recursive
+ * productions can make results very long, so targets for long outputs should be
+ * approached from below.
+ *
+ * A WeightTuner is not thread-safe.
+ */
+public class WeightTuner implements ProductionSelector {
+
+	public static final double DEFAULT_LEARNING_RATE = 0.5;
+	public static final int DEFAULT_BATCH_SIZE = 32;
+
+	private static final double MAX_STEP = 0.1;
+	private static final double MAX_DEVIATION = 4.0;
+	private static final double MAX_LOG_WEIGHT = 30.0;
+	private static final int ESTIMATE_WINDOW = 1024;
+	private static final MathContext SIGNIFICANT_DIGITS = new MathContext(4);
+
+	private final DerivationBrewer brewer;
+	private final double[] logWeights;
+	private final double[] upperBounds;
+	private final boolean[] stale;
+	private final boolean[] tunable;
+
+	// per-result counts, and the productions and nonterminals they cover
+	private final int[] counts;
+	private final int[] expansions;
+	private final int[] touchedProductions;
+	private final boolean[] productionTouched;
+	private int touchedProductionCount;
+	private final int[] touchedNonterminals;
+	private final boolean[] nonterminalTouched;
+	private int touchedNonterminalCount;
+
+	// per-batch gradient, and the nonterminals it covers
+	private final double[] productionGradient;
+	private final double[] nonterminalGradient;
+	private final int[] batchNonterminals;
+	private final boolean[] inBatch;
+	private int batchNonterminalCount;
+	private int batchResults;
+
+	private double targetLength = Double.NaN;
+	private int[] binBounds;
+	private double[] binTargets;
+	private int[] countTargets = new int[0];
+	private double[] targetCounts = new double[0];
+
+	private double meanLength;
+	private double[] binEstimates;
+	private double[] countEstimates = new double[0];
+	private long results;
+	private long batches;
+
+	private double learningRate = DEFAULT_LEARNING_RATE;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	public WeightTuner(DerivationBrewer brewer) {
+		if (brewer == null)
+			throw new NullPointerException();
+
+		this.brewer = brewer;
+		int productionCount = brewer.getProductionCount();
+		int nonterminalCount = brewer.getNonterminalCount();
+		logWeights = new double[productionCount];
+		upperBounds = new double[productionCount];
+		stale = new boolean[nonterminalCount];
+		tunable = new boolean[nonterminalCount];
+		for (int nt = 0; nt < nonterminalCount; ++nt) {
+			int first = brewer.getFirstProduction(nt);
+			int end = brewer.getFirstProduction(nt + 1);
+			double lower = 0.0;
+			int positive = 0;
+			for (int p = first; p < end; ++p) {
+				double upper = brewer.getUpperBound(p);
+				double weight = upper - lower;
+				logWeights[p] = weight > 0.0 ? Math.log(weight) : Double.NEGATIVE_INFINITY;
+				upperBounds[p] = upper;
+				lower = upper;
+				if (weight > 0.0) {
+					++positive;
+				}
+			}
+			tunable[nt] = positive > 1;
+		}
+
+		counts = new int[productionCount];
+		expansions = new int[nonterminalCount];
+		touchedProductions = new int[productionCount];
+		productionTouched = new boolean[productionCount];
+		touchedNonterminals = new int[nonterminalCount];
+		nonterminalTouched = new boolean[nonterminalCount];
+		productionGradient = new double[productionCount];
+		nonterminalGradient = new double[nonterminalCount];
+		batchNonterminals = new int[nonterminalCount];
+		inBatch = new boolean[nonterminalCount];
+	}
+
+	public DerivationBrewer getBrewer() {
+		return brewer;
+	}
+
+	/**
+	 * Sets the target mean length of results, in chars, or NaN for none.
+	 */
+	public void setTargetMeanLength(double length) {
+		if (!(length > 0.0) && !Double.isNaN(length))
+			throw new IllegalArgumentException("Target length must be positive.");
+
+		targetLength = length;
+	}
+
+	/**
+	 * Sets the target distribution of result lengths.  bounds must be increasing;
+	 * fractions[0] is the target fraction of results shorter than bounds[0],
+	 * fractions[i] that of results at least bounds[i - 1] and shorter than
+	 * bounds[i], and the last fraction that of the rest.  Pass null for no target.
+	 */
+	public void setTargetLengthDistribution(int[] bounds, double[] fractions) {
+		if (bounds == null || fractions == null) {
+			binBounds = null;
+			binTargets = null;
+			binEstimates = null;
+			return;
+		}
+
+		if (fractions.length != bounds.length + 1)
+			throw new IllegalArgumentException("There must be one more fraction than bound.");
+
+		double sum = 0.0;
+		for (int i = 0; i < fractions.length; ++i) {
+			if (!(fractions[i] >= 0.0))
+				throw new IllegalArgumentException("Fractions must not be negative.");
+			if (i < bounds.length && i > 0 && bounds[i] <= bounds[i - 1])
+				throw new IllegalArgumentException("Bounds must be increasing.");
+			sum += fractions[i];
+		}
+		if (!(sum > 0.0))
+			throw new IllegalArgumentException("Fractions must not all be zero.");
+
+		binBounds = bounds.clone();
+		binTargets = new double[fractions.length];
+		for (int i = 0; i < fractions.length; ++i) {
+			binTargets[i] = fractions[i] / sum;
+		}
+		binEstimates = binTargets.clone();
+	}
+
+	/**
+	 * Sets the target number of times production should be used per result, or NaN
+	 * to remove its target.
+	 */
+	public void setTargetCount(int production, double perResult) {
+		if (production < 0 || production >= brewer.getProductionCount())
+			throw new IndexOutOfBoundsException("Production out of range: " + production);
+		if (!(perResult >= 0.0) && !Double.isNaN(perResult))
+			throw new IllegalArgumentException("Target count must not be negative.");
+
+		int i = 0;
+		while (i < countTargets.length && countTargets[i] != production) {
+			++i;
+		}
+
+		if (Double.isNaN(perResult)) {
+			if (i < countTargets.length) {
+				int last = countTargets.length - 1;
+				countTargets[i] = countTargets[last];
+				targetCounts[i] = targetCounts[last];
+				countEstimates[i] = countEstimates[last];
+				countTargets = Arrays.copyOf(countTargets, last);
+				targetCounts = Arrays.copyOf(targetCounts, last);
+				countEstimates = Arrays.copyOf(countEstimates, last);
+			}
+			return;
+		}
+
+		if (i == countTargets.length) {
+			countTargets = Arrays.copyOf(countTargets, i + 1);
+			targetCounts = Arrays.copyOf(targetCounts, i + 1);
+			countEstimates = Arrays.copyOf(countEstimates, i + 1);
+			countTargets[i] = production;
+		}
+		targetCounts[i] = perResult;
+		countEstimates[i] = perResult;
+	}
+
+	public void clearTargets() {
+		targetLength = Double.NaN;
+		setTargetLengthDistribution(null, null);
+		countTargets = new int[0];
+		targetCounts = new double[0];
+		countEstimates = new double[0];
+	}
+
+	/**
+	 * Sets the initial step size; the step for batch t is this divided by
+	 * (1 + t / 256) ^ 0.6.
+	 */
+	public void setLearningRate(double learningRate) {
+		if (!(learningRate > 0.0))
+			throw new IllegalArgumentException("Learning rate must be positive.");
+
+		this.learningRate = learningRate;
+	}
+
+	/**
+	 * Sets the number of results whose gradients are averaged before the weights
+	 * are updated.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException();
+
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Replaces the contents of dest with a result from nonterminal, brewed with the
+	 * current weights, and adapts the weights to it.
+	 */
+	public Derivation brew(int nonterminal, RandomSource rnd, Derivation dest) {
+		brewer.brew(nonterminal, rnd, dest, this);
+		observe(dest);
+		return dest;
+	}
+
+	/**
+	 * Brews a randomly selected primary nonterminal with the current weights, and
+	 * adapts the weights to it.
+	 */
+	public Derivation brewRandom(RandomSource rnd, Derivation dest) {
+		brewer.brewRandom(rnd, dest, this);
+		observe(dest);
+		return dest;
+	}
+
+	public long getResultCount() {
+		return results;
+	}
+
+	/**
+	 * Returns the running estimate of the mean length of results, which follows the
+	 * last thousand or so.
+	 */
+	public double getMeanLength() {
+		return meanLength;
+	}
+
+	/**
+	 * Returns the current weight of production.
+	 */
+	public double getWeight(int production) {
+		return Math.exp(logWeights[production]);
+	}
+
+	/**
+	 * Writes the tuned weights into the grammar's Productions.  Each nonterminal's
+	 * weights are scaled to keep its total weight, and rounded to four significant
+	 * digits.
+	 */
+	public void apply() {
+		for (int nt = 0; nt < brewer.getNonterminalCount(); ++nt) {
+			if (!tunable[nt])
+				continue;
+
+			int first = brewer.getFirstProduction(nt);
+			int end = brewer.getFirstProduction(nt + 1);
+			double scale = brewer.getUpperBound(end - 1) / totalWeight(first, end);
+			for (int p = first; p < end; ++p) {
+				if (logWeights[p] != Double.NEGATIVE_INFINITY) {
+					brewer.getProduction(p).setWeight(round(Math.exp(logWeights[p]) * scale));
+				}
+			}
+		}
+	}
+
+	@Override
+	public int select(int nonterminal, RandomSource rnd) {
+		if (!tunable[nonterminal])
+			return -1;
+
+		int first = brewer.getFirstProduction(nonterminal);
+		int end = brewer.getFirstProduction(nonterminal + 1);
+		if (stale[nonterminal]) {
+			double upper = 0.0;
+			for (int p = first; p < end; ++p) {
+				upper += Math.exp(logWeights[p]);
+				upperBounds[p] = upper;
+			}
+			stale[nonterminal] = false;
+		}
+
+		double roll = rnd.nextDouble() * upperBounds[end - 1];
+		while (first < end - 1) {
+			int pivot = (first + end - 1) >>> 1;
+			if (roll < upperBounds[pivot]) {
+				end = pivot + 1;
+			} else {
+				first = pivot + 1;
+			}
+		}
+		return first;
+	}
+
+	@Override
+	public void selected(int nonterminal, int production) {
+		if (!productionTouched[production]) {
+			productionTouched[production] = true;
+			touchedProductions[touchedProductionCount++] = production;
+		}
+		++counts[production];
+		if (!nonterminalTouched[nonterminal]) {
+			nonterminalTouched[nonterminal] = true;
+			touchedNonterminals[touchedNonterminalCount++] = nonterminal;
+		}
+		++expansions[nonterminal];
+	}
+
+	/**
+	 * Adds the gradient contributed by the result in d, whose production counts have
+	 * been collected by selected(), and takes a step once a batch is complete.
+	 */
+	private void observe(Derivation d) {
+		++results;
+		double rate = Math.max(1.0 / results, 1.0 / ESTIMATE_WINDOW);
+
+		// the deviation of each targeted quantity from its running estimate, weighted
+		// by how far that estimate is from its target
+		double signal = 0.0;
+		int length = d.length();
+		meanLength += rate * (length - meanLength);
+		if (!Double.isNaN(targetLength)) {
+			double deviation = Math.min(MAX_DEVIATION, (length - meanLength) / targetLength);
+			signal += (meanLength - targetLength) / targetLength * deviation;
+		}
+		if (binBounds != null) {
+			int bin = 0;
+			while (bin < binBounds.length && length >= binBounds[bin]) {
+				++bin;
+			}
+			for (int i = 0; i < binEstimates.length; ++i) {
+				double hit = i == bin ? 1.0 : 0.0;
+				binEstimates[i] += rate * (hit - binEstimates[i]);
+				signal += (binEstimates[i] - binTargets[i]) * (hit - binEstimates[i]);
+			}
+		}
+		for (int i = 0; i < countTargets.length; ++i) {
+			double scale = Math.max(1.0, targetCounts[i]);
+			double count = counts[countTargets[i]];
+			countEstimates[i] += rate * (count - countEstimates[i]);
+			double deviation = Math.min(MAX_DEVIATION, (count - countEstimates[i]) / scale);
+			signal += (countEstimates[i] - targetCounts[i]) / scale * deviation;
+		}
+
+		// the score function of the result is counts[p] - expansions[nt] * probability(p)
+		if (signal != 0.0) {
+			for (int i = 0; i < touchedProductionCount; ++i) {
+				int p = touchedProductions[i];
+				productionGradient[p] += signal * counts[p];
+			}
+			for (int i = 0; i < touchedNonterminalCount; ++i) {
+				int nt = touchedNonterminals[i];
+				nonterminalGradient[nt] += signal * expansions[nt];
+				if (!inBatch[nt]) {
+					inBatch[nt] = true;
+					batchNonterminals[batchNonterminalCount++] = nt;
+				}
+			}
+		}
+
+		for (int i = 0; i < touchedProductionCount; ++i) {
+			int p = touchedProductions[i];
+			counts[p] = 0;
+			productionTouched[p] = false;
+		}
+		touchedProductionCount = 0;
+		for (int i = 0; i < touchedNonterminalCount; ++i) {
+			int nt = touchedNonterminals[i];
+			expansions[nt] = 0;
+			nonterminalTouched[nt] = false;
+		}
+		touchedNonterminalCount = 0;
+
+		if (++batchResults >= batchSize) {
+			step();
+		}
+	}
+
+	private void step() {
+		double rate = learningRate / Math.pow(1.0 + batches / 256.0, 0.6) / batchResults;
+		for (int i = 0; i < batchNonterminalCount; ++i) {
+			int nt = batchNonterminals[i];
+			int first = brewer.getFirstProduction(nt);
+			int end = brewer.getFirstProduction(nt + 1);
+			double total = totalWeight(first, end);
+			for (int p = first; p < end; ++p) {
+				if (!tunable[nt] || logWeights[p] == Double.NEGATIVE_INFINITY) {
+					productionGradient[p] = 0.0;
+					continue;
+				}
+
+				double gradient = productionGradient[p] - nonterminalGradient[nt] * Math.exp(logWeights[p]) / total;
+				double step = Math.max(-MAX_STEP, Math.min(MAX_STEP, rate * gradient));
+				logWeights[p] = Math.max(-MAX_LOG_WEIGHT, Math.min(MAX_LOG_WEIGHT, logWeights[p] - step));
+				productionGradient[p] = 0.0;
+			}
+			nonterminalGradient[nt] = 0.0;
+			inBatch[nt] = false;
+			stale[nt] = tunable[nt];
+		}
+		batchNonterminalCount = 0;
+		batchResults = 0;
+		++batches;
+	}
+
+	private double totalWeight(int first, int end) {
+		double total = 0.0;
+		for (int p = first; p < end; ++p) {
+			total += Math.exp(logWeights[p]);
+		}
+		return total;
+	}
+
+	private static double round(double weight) {
+		if (!(weight > 0.0) || Double.isInfinite(weight))
+			return weight;
+
+		return Math.max(new BigDecimal(weight).round(SIGNIFICANT_DIGITS).doubleValue(), Double.MIN_NORMAL);
+	}
+}
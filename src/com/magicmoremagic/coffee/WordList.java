@@ -0,0 +1,339 @@
+package com.magicmoremagic.coffee;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.magicmoremagic.coffee.parser.GrammarSerializer;
+import com.magicmoremagic.coffee.parser.Lexer;
+import com.magicmoremagic.coffee.parser.Token;
+import com.magicmoremagic.coffee.parser.TokenType;
+import com.magicmoremagic.coffee.random.RandomSource;
+
+/**
+ * A Nonterminal whose alternatives are the lines of a UTF-8 text file, created by
+ * the !wordlist and !weightedwordlist commands.  The file is memory-mapped and
+ * indexed by line offsets, so no object is created per word; a result is decoded
+ * straight from the mapped file into the destination StringBuilder.
+ *
+ * Every non-empty line is one word, which must be well-formed UTF-8.  In a
+ * weighted word list, each line may be followed by a tab and a non-negative weight
+ * (1 if omitted), and words are chosen with probability proportional to their
+ * weight, by binary search of an array of cumulative weights.  Otherwise every
+ * word is equally likely.
+ *
+ * A WordList has no Productions, and productions can't be added to it.
+ */
+public class WordList extends Nonterminal {
+
+	public static final String COMMAND = "wordlist";
+	public static final String WEIGHTED_COMMAND = "weightedwordlist";
+
+	private final Path file;
+	private final boolean weighted;
+	private final ByteBuffer buf;
+	private final int[] starts;
+	private final int[] ends;
+	private final double[] cumulativeWeights;
+	private final int count;
+
+	public WordList(String name, Path file, boolean weighted) throws IOException {
+		super(name);
+		this.file = file.toAbsolutePath();
+		this.weighted = weighted;
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Word list is too large: " + file);
+
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		Indexer indexer = new Indexer(buf, weighted);
+		starts = indexer.starts;
+		ends = indexer.ends;
+		cumulativeWeights = indexer.cumulativeWeights;
+		count = indexer.count;
+	}
+
+	/**
+	 * Creates a copy with a generated name which shares the original's mapping and
+	 * index.
+	 */
+	public WordList(WordList other) {
+		super();
+		file = other.file;
+		weighted = other.weighted;
+		buf = other.buf;
+		starts = other.starts;
+		ends = other.ends;
+		cumulativeWeights = other.cumulativeWeights;
+		count = other.count;
+	}
+
+	@Override
+	public WordList clone() {
+		return new WordList(this);
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public boolean isWeighted() {
+		return weighted;
+	}
+
+	/**
+	 * Returns the name of the command which creates this word list.
+	 */
+	public String getCommand() {
+		return weighted ? WEIGHTED_COMMAND : COMMAND;
+	}
+
+	public int getWordCount() {
+		return count;
+	}
+
+	public String getWord(int index) {
+		if (index < 0 || index >= count)
+			throw new IndexOutOfBoundsException("Word index out of range: " + index);
+
+		StringBuilder sb = new StringBuilder(ends[index] - starts[index]);
+		Utf8.append(buf, starts[index], ends[index], sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the weight of a word; always 1 if this word list isn't weighted.
+	 */
+	public double getWordWeight(int index) {
+		if (index < 0 || index >= count)
+			throw new IndexOutOfBoundsException("Word index out of range: " + index);
+
+		if (cumulativeWeights == null)
+			return 1.0;
+
+		return cumulativeWeights[index] - (index == 0 ? 0.0 : cumulativeWeights[index - 1]);
+	}
+
+	@Override
+	public boolean add(Production production) {
+		throw new UnsupportedOperationException("Productions can't be added to a word list.");
+	}
+
+	/**
+	 * Appends a randomly chosen word.  Expansions of word lists are not reported to
+	 * the BrewObserver, since there is no Production involved.
+	 */
+	@Override
+	public void brew(RandomSource rnd, StringBuilder dest) {
+		if (count == 0)
+			return;
+
+		int index;
+		if (cumulativeWeights == null) {
+			index = rnd.nextInt(count);
+		} else {
+			index = findWord(rnd.nextDouble() * cumulativeWeights[count - 1]);
+			if (index < 0)
+				return;
+		}
+		Utf8.append(buf, starts[index], ends[index], dest);
+	}
+
+	@Override
+	void serialize(PrintWriter pw, Lexer lexer, boolean primary) {
+		if (GrammarSerializer.isDefaultSyntax(lexer)) {
+			StringBuilder sb = new StringBuilder();
+			GrammarSerializer.appendNonterminal(sb, this, primary);
+			pw.append(sb);
+		} else {
+			lexer.serializeToken(pw, Token.COMMAND_OP);
+			lexer.serializeToken(pw, new Token(TokenType.IDENTIFIER, getCommand()));
+			pw.print(' ');
+			lexer.serializeToken(pw, new Token(TokenType.IDENTIFIER, getName()));
+			pw.print(' ');
+			lexer.serializeToken(pw, new Token(TokenType.LITERAL, file.toString()));
+			pw.println();
+		}
+		pw.flush();
+	}
+
+	/**
+	 * Returns the first word whose cumulative weight is greater than roll, skipping
+	 * words with no weight.
+	 */
+	private int findWord(double roll) {
+		int begin = 0;
+		int end = count;
+		while (begin < end) {
+			int pivot = begin + (end - begin) / 2;
+			if (cumulativeWeights[pivot] > roll) {
+				end = pivot;
+			} else {
+				begin = pivot + 1;
+			}
+		}
+		return begin < count ? begin : -1;
+	}
+
+	/**
+	 * Finds the words in a mapped file, and parses their weights if necessary.
+	 */
+	private static class Indexer {
+
+		private static final long MAX_MANTISSA = 100000000000000000L;
+
+		private final ByteBuffer buf;
+		private int[] starts = new int[1024];
+		private int[] ends = new int[1024];
+		private double[] cumulativeWeights;
+		private int count;
+
+		public Indexer(ByteBuffer buf, boolean weighted) throws IOException {
+			this.buf = buf;
+			if (weighted) {
+				cumulativeWeights = new double[1024];
+			}
+
+			final int limit = buf.limit();
+			int line = 0;
+			if (limit >= 3 && buf.get(0) == (byte)0xEF && buf.get(1) == (byte)0xBB && buf.get(2) == (byte)0xBF) {
+				line = 3;
+			}
+
+			int lineNumber = 1;
+			double total = 0;
+			while (line < limit) {
+				int end = line;
+				while (end < limit && buf.get(end) != '\n') {
+					++end;
+				}
+				int next = end + 1;
+				if (end > line && buf.get(end - 1) == '\r') {
+					--end;
+				}
+
+				if (end > line) {
+					int wordEnd = end;
+					double weight = 1.0;
+					if (weighted) {
+						int tab = line;
+						while (tab < end && buf.get(tab) != '\t') {
+							++tab;
+						}
+						if (tab < end) {
+							weight = parseWeight(tab + 1, end, lineNumber);
+							wordEnd = tab;
+						}
+					}
+					if (Utf8.findMalformed(buf, line, wordEnd) >= 0)
+						throw new IOException("Invalid UTF-8 on line " + lineNumber + " of word list.");
+
+					total += weight;
+					add(line, wordEnd, total);
+				}
+
+				line = next;
+				++lineNumber;
+			}
+
+			if (count < starts.length) {
+				starts = Arrays.copyOf(starts, count);
+				ends = Arrays.copyOf(ends, count);
+				if (cumulativeWeights != null) {
+					cumulativeWeights = Arrays.copyOf(cumulativeWeights, count);
+				}
+			}
+		}
+
+		private void add(int start, int end, double cumulativeWeight) {
+			if (count == starts.length) {
+				int capacity = count * 2;
+				starts = Arrays.copyOf(starts, capacity);
+				ends = Arrays.copyOf(ends, capacity);
+				if (cumulativeWeights != null) {
+					cumulativeWeights = Arrays.copyOf(cumulativeWeights, capacity);
+				}
+			}
+
+			starts[count] = start;
+			ends[count] = end;
+			if (cumulativeWeights != null) {
+				cumulativeWeights[count] = cumulativeWeight;
+			}
+			++count;
+		}
+
+		/**
+		 * Parses a decimal number, optionally with a fraction and exponent, from the
+		 * ASCII bytes between begin and end, ignoring surrounding spaces.
+		 */
+		private double parseWeight(int begin, int end, int lineNumber) throws IOException {
+			while (begin < end && buf.get(begin) == ' ') {
+				++begin;
+			}
+			while (end > begin && buf.get(end - 1) == ' ') {
+				--end;
+			}
+
+			int i = begin;
+			long mantissa = 0;
+			int exponent = 0;
+			int digits = 0;
+			while (i < end && isDigit(buf.get(i))) {
+				if (mantissa < MAX_MANTISSA) {
+					mantissa = mantissa * 10 + (buf.get(i) - '0');
+				} else {
+					++exponent;
+				}
+				++i;
+				++digits;
+			}
+			if (i < end && buf.get(i) == '.') {
+				++i;
+				while (i < end && isDigit(buf.get(i))) {
+					if (mantissa < MAX_MANTISSA) {
+						mantissa = mantissa * 10 + (buf.get(i) - '0');
+						--exponent;
+					}
+					++i;
+					++digits;
+				}
+			}
+			if (digits > 0 && i < end && (buf.get(i) == 'e' || buf.get(i) == 'E')) {
+				++i;
+				boolean negative = false;
+				if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+					negative = buf.get(i++) == '-';
+				}
+				int e = 0;
+				int exponentDigits = 0;
+				while (i < end && isDigit(buf.get(i))) {
+					e = Math.min(e * 10 + (buf.get(i++) - '0'), 1000);
+					++exponentDigits;
+				}
+				if (exponentDigits == 0) {
+					digits = 0;
+				}
+				exponent += negative ? -e : e;
+			}
+
+			// dividing by an exact power of ten rounds correctly in the common cases
+			double value = exponent < 0 ? mantissa / Math.pow(10, -exponent) : mantissa * Math.pow(10, exponent);
+			if (digits == 0 || i != end || Double.isInfinite(value))
+				throw new IOException("Invalid weight on line " + lineNumber + " of word list.");
+
+			return value;
+		}
+
+		private static boolean isDigit(byte b) {
+			return b >= '0' && b <= '9';
+		}
+	}
+}
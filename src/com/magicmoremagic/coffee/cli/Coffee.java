@@ -1,31 +1,160 @@
 package com.magicmoremagic.coffee.cli;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
+import com.magicmoremagic.coffee.Derivation;
+import com.magicmoremagic.coffee.DerivationBrewer;
+import com.magicmoremagic.coffee.FiniteLanguage;
 import com.magicmoremagic.coffee.Nonterminal;
+import com.magicmoremagic.coffee.ProductionCoverage;
+import com.magicmoremagic.coffee.Recognizer;
+import com.magicmoremagic.coffee.SerializableSymbol;
+import com.magicmoremagic.coffee.WeightTuner;
+import com.magicmoremagic.coffee.output.BlockWriter;
+import com.magicmoremagic.coffee.output.ShardWriter;
+import com.magicmoremagic.coffee.parser.GrammarSerializer;
+import com.magicmoremagic.coffee.parser.ParallelLoader;
 import com.magicmoremagic.coffee.parser.Parser;
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.RandomSources;
+import com.magicmoremagic.coffee.random.Xoshiro256StarStar;
+import com.magicmoremagic.coffee.server.BrewServer;
 
 public final class Coffee {
 	
+	private static final int TUNING_RESULTS = 500000;
+	
 	private enum Mode {
 		GENERATE,
 		LIST,
 		DUMP,
+		CHECK,
 		;
 	}
 
 	public static void main(String[] args) {
+		boolean profile = false;
+		boolean daemon = false;
+		boolean coverage = false;
+		boolean check = false;
+		double tuneLength = 0;
+		int precompute = 0;
+		long firstIndex = -1;
+		long endIndex = -1;
+		int port = -1;
+		String output = null;
+		int shards = 0;
+		boolean sharded = false;
+		List<String> positional = new ArrayList<>();
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.equals("--profile")) {
+				profile = true;
+			} else if (arg.equals("--daemon")) {
+				daemon = true;
+			} else if (arg.equals("--coverage")) {
+				coverage = true;
+			} else if (arg.equals("--check")) {
+				check = true;
+			} else if (arg.equals("--tune-length") && i + 1 < args.length) {
+				tuneLength = Double.parseDouble(args[++i]);
+			} else if (arg.equals("--precompute")) {
+				precompute = FiniteLanguage.DEFAULT_MAX_OUTCOMES;
+				if (i + 1 < args.length && args[i + 1].matches("[0-9]+")) {
+					precompute = Integer.parseInt(args[++i]);
+				}
+			} else if (arg.equals("--serve") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if (arg.equals("--output") && i + 1 < args.length) {
+				output = args[++i];
+			} else if (arg.equals("--shards") && i + 1 < args.length) {
+				shards = Integer.parseInt(args[++i]);
+				sharded = true;
+			} else if (arg.equals("--skip") && i + 1 < args.length) {
+				firstIndex = Long.parseLong(args[++i]);
+				endIndex = -1;
+			} else if (arg.equals("--range") && i + 1 < args.length) {
+				String range = args[++i];
+				int sep = range.indexOf(':');
+				if (sep < 0) {
+					firstIndex = Long.parseLong(range);
+					endIndex = firstIndex + 1;
+				} else {
+					firstIndex = Long.parseLong(range.substring(0, sep));
+					endIndex = Long.parseLong(range.substring(sep + 1));
+				}
+			} else {
+				positional.add(arg);
+			}
+		}
+		args = positional.toArray(new String[positional.size()]);
+		
+		if (sharded && (output == null || shards < 1)) {
+			System.err.println("--shards requires --output and a count of at least 1.");
+			System.exit(1);
+		}
+		
+		boolean dump = args.length > 1 && args[1].equals("--dump")
+				|| args.length > 2 && args[2].equals("--dump");
+		if (tuneLength != 0 && (!dump || daemon || port >= 0 || !(tuneLength > 0))) {
+			System.err.println("--tune-length requires --dump and a positive mean length.");
+			System.exit(1);
+		}
+		
 		if (args.length > 0) {
-			Parser parser = new Parser();
+			Parser parser = null;
 			try {
-				parser.parseResource(args[0]);
+				parser = load(args[0]);
 			} catch (IOException e) {
 				e.printStackTrace();
 				usage();
 				System.exit(0);
 			}
 			
+			if (precompute > 0) {
+				parser.precompute(precompute);
+			}
+			
+			if (daemon) {
+				try {
+					new Daemon(parser, Runtime.getRuntime().availableProcessors()).run(System.in, System.out);
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+				System.exit(0);
+			}
+			
+			if (port >= 0) {
+				try {
+					if (System.getProperty(BrewServer.NODELAY_PROPERTY) == null) {
+						System.setProperty(BrewServer.NODELAY_PROPERTY, "true");
+					}
+					BrewServer server = new BrewServer(parser, new InetSocketAddress(port));
+					server.start();
+					System.err.println("Serving " + args[0] + " at http://localhost:" + server.getAddress().getPort() + "/brew");
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+				return;
+			}
+			
 			String generator = null;
 			Mode mode = Mode.GENERATE;
 			if (args.length > 1) {
@@ -38,6 +167,10 @@ public final class Coffee {
 				}
 			}
 			
+			if (check) {
+				mode = Mode.CHECK;
+			}
+			
 			int n = 1;
 			if (args.length > 2) {
 				if (args[2].equals("--dump")) {
@@ -47,50 +180,213 @@ public final class Coffee {
 				}
 			}
 			
-			Random rnd;
+			if (output != null && firstIndex < 0) {
+				firstIndex = 0;
+			}
+			boolean indexed = firstIndex >= 0;
+			if (indexed && endIndex < 0) {
+				endIndex = firstIndex + n;
+			}
+			
+			long seed;
 			if (args.length > 3) {
-				rnd = new Random(Long.parseLong(args[3]));
+				seed = Long.parseLong(args[3]);
 			} else {
-				rnd = new Random();
+				seed = RandomSources.fast().nextLong();
+				if (indexed) {
+					System.err.println("Seed: " + seed);
+				}
 			}
 			
 			switch (mode) {
 			case GENERATE:
-				if (generator == null) {
-					for (int i = 0; i < n; ++i) {
-						System.out.println(parser.brew(rnd));
-					}
-				} else {
+				SerializableSymbol target = parser;
+				if (generator != null) {
 					Nonterminal nt = parser.get(generator);
 					if (nt == null) {
 						System.err.println("Generator not found: " + generator);
 						System.exit(1);
 					}
+					target = nt;
+				}
+				
+				// --output implies indexed mode
+				if (coverage && indexed) {
+					System.err.println("--coverage can't be used in indexed mode.");
+					System.exit(1);
+				}
+				
+				// the writers brew on worker threads, which the profiler doesn't follow
+				if (profile && output != null) {
+					System.err.println("--profile can't be combined with --output.");
+					System.exit(1);
+				}
+				
+				if (output != null && shards > 0) {
+					try {
+						ShardWriter writer = new ShardWriter(target, seed);
+						writer.setGrammarName(args[0]);
+						writer.write(firstIndex, endIndex, shards, Paths.get(output));
+					} catch (IOException e) {
+						e.printStackTrace();
+						System.exit(1);
+					}
+					break;
+				} else if (output != null) {
+					BlockWriter writer = new BlockWriter(target, seed);
+					writer.setCompression(BlockWriter.compressionFor(output));
+					try (OutputStream os = Files.newOutputStream(Paths.get(output))) {
+						writer.write(firstIndex, endIndex, os);
+					} catch (IOException e) {
+						e.printStackTrace();
+						System.exit(1);
+					}
+					break;
+				}
+				
+				// the profiler only sees expansions reported to the brew observer, which
+				// DerivationBrewer and OutcomeTables bypass
+				if (profile && (coverage || precompute > 0)) {
+					System.err.println("--profile can't be combined with --coverage or --precompute.");
+					System.exit(1);
+				}
+				
+				Profiler profiler = null;
+				PrintStream out = System.out;
+				long results = 0;
+				if (profile) {
+					profiler = new Profiler(System.out);
+					out = profiler.getOutput();
+					profiler.start();
+				}
+				
+				if (coverage) {
+					RandomSource rnd;
+					if (args.length > 3) {
+						rnd = RandomSources.wrap(new Random(seed));
+					} else {
+						rnd = RandomSources.fast(seed);
+					}
+					
+					DerivationBrewer brewer = target instanceof Nonterminal
+							? new DerivationBrewer((Nonterminal)target) : new DerivationBrewer(parser);
+					ProductionCoverage tracker = new ProductionCoverage(brewer);
+					Derivation derivation = new Derivation();
+					long completedAfter = -1;
+					for (int i = 0; i < n; ++i) {
+						if (target instanceof Nonterminal) {
+							brewer.brew(0, rnd, derivation, tracker);
+						} else {
+							brewer.brewRandom(rnd, derivation, tracker);
+						}
+						out.println(derivation);
+						++results;
+						if (completedAfter < 0 && tracker.isComplete()) {
+							completedAfter = i + 1;
+						}
+					}
+					
+					if (completedAfter >= 0) {
+						System.err.println("All productions covered after " + completedAfter + " results.");
+					}
+					try {
+						tracker.report(System.err);
+					} catch (IOException e) {
+						throw new AssertionError(e);
+					}
+					
+				} else if (indexed) {
+					Xoshiro256StarStar rnd = new Xoshiro256StarStar();
+					for (long i = firstIndex; i < endIndex; ++i) {
+						rnd.setSeed(seed, i);
+						out.println(target.brew(rnd));
+						++results;
+					}
+				} else {
+					RandomSource rnd;
+					if (args.length > 3) {
+						rnd = RandomSources.wrap(new Random(seed));
+					} else {
+						rnd = RandomSources.fast(seed);
+					}
 					
 					for (int i = 0; i < n; ++i) {
-						System.out.println(nt.brew(rnd));
+						out.println(target.brew(rnd));
+						++results;
 					}
 				}
-				break;
 				
-			case LIST:
-				for (Nonterminal nt : parser) {
-					System.out.println(nt);
+				if (profiler != null) {
+					profiler.stop();
+					profiler.report(System.err, results);
 				}
 				break;
 				
-			case DUMP:
+			case CHECK:
+				Recognizer recognizer;
 				if (generator == null) {
-					parser.serialize(System.out);
-					
+					recognizer = new Recognizer(parser);
 				} else {
 					Nonterminal nt = parser.get(generator);
 					if (nt == null) {
 						System.err.println("Generator not found: " + generator);
 						System.exit(1);
 					}
-			
-					nt.serializeAll(System.out);					
+					recognizer = new Recognizer(nt);
+				}
+				
+				try {
+					System.exit(check(recognizer) ? 0 : 1);
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+				break;
+				
+			case LIST:
+				for (Nonterminal nt : parser) {
+					System.out.println(nt);
+				}
+				break;
+				
+			case DUMP:
+				if (tuneLength > 0) {
+					Nonterminal root = generator == null ? null : parser.get(generator);
+					DerivationBrewer brewer = root == null ? new DerivationBrewer(parser) : new DerivationBrewer(root);
+					WeightTuner tuner = new WeightTuner(brewer);
+					tuner.setTargetMeanLength(tuneLength);
+					RandomSource rnd = RandomSources.fast(seed);
+					Derivation derivation = new Derivation();
+					for (int i = 0; i < TUNING_RESULTS; ++i) {
+						if (root == null) {
+							tuner.brewRandom(rnd, derivation);
+						} else {
+							tuner.brew(0, rnd, derivation);
+						}
+					}
+					tuner.apply();
+					System.err.println("Mean length after tuning: " + tuner.getMeanLength());
+				}
+				
+				GrammarSerializer serializer = new GrammarSerializer(GrammarSerializer.DEFAULT_BUFFER_SIZE,
+						Runtime.getRuntime().availableProcessors());
+				try {
+					Writer w = new OutputStreamWriter(System.out, "UTF-8");
+					if (generator == null) {
+						serializer.serialize(parser, w);
+						
+					} else {
+						Nonterminal nt = parser.get(generator);
+						if (nt == null) {
+							System.err.println("Generator not found: " + generator);
+							System.exit(1);
+						}
+				
+						serializer.serializeAll(nt, w);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
 				}
 				break;
 			}
@@ -100,6 +396,54 @@ public final class Coffee {
 		usage();
 	}
 	
+	/**
+	 * Reads lines from stdin and writes each one's probability and the line,
+	 * separated by a tab, or '-' instead of the probability if the line can't be
+	 * brewed.
+	 *
+	 * @return true if every line can be brewed.
+	 */
+	private static boolean check(Recognizer recognizer) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		String separator = System.lineSeparator();
+		long lines = 0;
+		long recognized = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			++lines;
+			double probability = recognizer.probability(line);
+			if (probability > 0.0 || recognizer.recognizes(line)) {
+				++recognized;
+				out.write(Double.toString(probability));
+			} else {
+				out.write('-');
+			}
+			out.write('\t');
+			out.write(line);
+			out.write(separator);
+		}
+		out.flush();
+		System.err.println("Recognized " + recognized + " of " + lines + " lines.");
+		return recognized == lines;
+	}
+	
+	/**
+	 * Parses a grammar resource.  Files which aren't also on the classpath are
+	 * parsed on all cores.
+	 */
+	private static Parser load(String name) throws IOException {
+		Path file = Paths.get(name);
+		if (Runtime.getRuntime().availableProcessors() > 1 && Coffee.class.getResource("/" + name) == null
+				&& Files.isRegularFile(file)) {
+			return new ParallelLoader().load(file);
+		}
+		
+		Parser parser = new Parser();
+		parser.parseResource(name);
+		return parser;
+	}
+	
 	private static void usage() {
 		System.out.println();
 		System.out.println("COFFEE: Random string generator utilizing weighted context-free grammar");
@@ -110,6 +454,66 @@ public final class Coffee {
 		System.out.println("   Coffee <filename> [generator] --dump");
 		System.out.println("   Coffee <filename> --random [count] [seed]");
 		System.out.println("   Coffee <filename> --list");
+		System.out.println("   Coffee <filename> [generator] --check");
+		System.out.println("   Coffee --serve <port> <filename>");
+		System.out.println("   Coffee --daemon <filename>");
+		System.out.println();
+		System.out.println("Options:");
+		System.out.println("   --skip <n>     Generate results in indexed mode, starting with result");
+		System.out.println("                  number `n`.  In indexed mode, each result is derived only from");
+		System.out.println("                  the seed and its index, so any result can be reproduced on");
+		System.out.println("                  its own.  If no seed is given, the one chosen is printed to");
+		System.out.println("                  stderr.");
+		System.out.println("   --range <a:b>  Generate results `a` (inclusive) to `b` (exclusive) in indexed");
+		System.out.println("                  mode, ignoring `count`.  `--range <a>` generates only result `a`.");
+		System.out.println("   --output <file>");
+		System.out.println("                  Write the results to a file instead of stdout, generating them");
+		System.out.println("                  on all cores in indexed mode.  If the file name ends with");
+		System.out.println("                  `.gz`, blocks of results are compressed in parallel into a");
+		System.out.println("                  multi-member gzip file.  Works with --precompute, but can't");
+		System.out.println("                  be combined with --profile.");
+		System.out.println("   --shards <k>   With --output, which it requires, split the results into `k`");
+		System.out.println("                  (at least 1) files of nearly equal counts, written in");
+		System.out.println("                  parallel.  `out/names.txt` gives");
+		System.out.println("                  `out/names-00000.txt` and so on, plus `out/names.manifest.json`");
+		System.out.println("                  listing the seed and each shard's index range, count and size,");
+		System.out.println("                  and the command which regenerates it alone:");
+		System.out.println("                  `Coffee <filename> <generator> 0 <seed> --range <a:b>`, where");
+		System.out.println("                  the count is a placeholder that --range overrides.");
+		System.out.println("   --precompute [max]");
+		System.out.println("                  Replace each non-recursive nonterminal whose language has at");
+		System.out.println("                  most `max` (default 4096) distinct strings with a table of its");
+		System.out.println("                  outcomes, which is sampled in constant time.  The results for");
+		System.out.println("                  a given seed differ from those without this option.");
+		System.out.println("   --serve <port> Keep the grammar loaded and serve results over HTTP.");
+		System.out.println("                  GET /brew/<generator>?count=&seed=&skip= streams `count`");
+		System.out.println("                  results, one per line; with a seed, results are the same as");
+		System.out.println("                  --skip would give.  GET /brew picks generators randomly and");
+		System.out.println("                  GET /nonterminals lists them.  Port 0 picks a free port.");
+		System.out.println("   --daemon       Keep the grammar loaded and read requests from stdin, one per");
+		System.out.println("                  line: `generator [count] [seed]`.  Each response is written to");
+		System.out.println("                  stdout, in request order, as `OK <count>` followed by each");
+		System.out.println("                  result as its UTF-8 byte length on one line, then its bytes");
+		System.out.println("                  and a newline; or as `ERR <message>`.  Requests may be sent");
+		System.out.println("                  without waiting for earlier responses.  A request may ask for");
+		System.out.println("                  at most 1048576 results and 16 MiB of output.");
+		System.out.println("   --coverage     Favor productions which haven't been used yet, so that every");
+		System.out.println("                  production is used in as few results as possible, and then");
+		System.out.println("                  print a report of any unused productions to stderr.  Can't be");
+		System.out.println("                  combined with indexed mode, including --output.");
+		System.out.println("   --tune-length <mean>");
+		System.out.println("                  Requires --dump.  First generate results while adjusting the");
+		System.out.println("                  weights of productions so that the mean length of results");
+		System.out.println("                  approaches `mean`, then dump the grammar with the new weights.");
+		System.out.println("   --check        Read lines from stdin and write each one to stdout preceded");
+		System.out.println("                  by the probability of brewing it and a tab, or by '-' if it");
+		System.out.println("                  can't be brewed at all.  Exits with status 1 if any line");
+		System.out.println("                  can't be brewed.");
+		System.out.println("   --profile      After generating, print a report to stderr showing the hottest");
+		System.out.println("                  nonterminals by expansion count and self time, derivation");
+		System.out.println("                  depth, output length percentiles, and results and bytes per");
+		System.out.println("                  second.  Can't be combined with --coverage, --precompute or");
+		System.out.println("                  --output.");
 		System.out.println();
 		System.out.println("If `generator` is not provided or is '--random' or '?', a primary nonterminal");
 		System.out.println("generator will be selected randomly for each result from the file.  If `count`");
@@ -147,6 +551,15 @@ public final class Coffee {
 		System.out.println("        !optional - Works like !import but if the file can't be loaded or if a");
 		System.out.println("                    parsing error occurs, the active file will continue parsing");
 		System.out.println("                    the rest of its contents.");
+		System.out.println("        !wordlist - Must be followed by an identifier and a literal containing");
+		System.out.println("                    the name of a text file with one word per line.  Defines a");
+		System.out.println("                    nonterminal with that name which chooses one of the words,");
+		System.out.println("                    each equally likely.  Empty lines are skipped.  The file");
+		System.out.println("                    must be valid UTF-8, or loading it fails.");
+		System.out.println("        !weightedwordlist");
+		System.out.println("                  - Works like !wordlist, but each line may be followed by a tab");
+		System.out.println("                    and a non-negative weight (1 if omitted), and lines are");
+		System.out.println("                    chosen with probability proportional to their weight.");
 		System.out.println("   - Identifiers must match the regular expression:");
 		System.out.println("        [A-Za-z_$\\\\][A-Za-z0-9_$\\\\]*");
 		System.out.println("   - Literals are enclosed in double quotes. All unicode characters are");
@@ -0,0 +1,204 @@
+package com.magicmoremagic.coffee.cli;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import com.magicmoremagic.coffee.Nonterminal;
+import com.magicmoremagic.coffee.NonterminalSet;
+import com.magicmoremagic.coffee.SerializableSymbol;
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.RandomSources;
+
+/**
+ * Implements the --daemon option: reads one request per line from an input stream
+ * and writes a framed response for each, in request order, to an output stream.
+ *
+ * A request is "generator [count] [seed]", where generator may be '?' to select a
+ * primary nonterminal randomly for each result, as on the command line.  The
+ * response is either
+ *    OK count
+ * followed by count results, each written as its length in UTF-8 bytes on its own
+ * line followed by the bytes and a newline, or
+ *    ERR message
+ *
+ * A request may ask for at most MAX_COUNT results, and its response may be at most
+ * MAX_RESPONSE_SIZE bytes long, since each response is held in memory until it can
+ * be written.  A request which fails, for any reason, gets an ERR response; the
+ * requests after it are still served.
+ *
+ * Requests are pipelined: they are generated concurrently on a thread pool while
+ * earlier responses are still being written, with a bounded number in flight.
+ * Given a seed, the results are the same as "Coffee filename generator count seed".
+ */
+class Daemon {
+
+	public static final int MAX_COUNT = 1 << 20;
+	public static final int MAX_RESPONSE_SIZE = 1 << 24;
+
+	private static final byte[] NEWLINE = { '\n' };
+
+	private final NonterminalSet nonterminals;
+	private final int parallelism;
+
+	public Daemon(NonterminalSet nonterminals, int parallelism) {
+		this.nonterminals = nonterminals;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Serves requests from in until it is exhausted, then returns once every
+	 * response has been written to out.
+	 */
+	public void run(InputStream in, OutputStream out) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Daemon");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		final BlockingQueue<Future<byte[]>> responses = new ArrayBlockingQueue<>(parallelism * 4);
+		final OutputStream os = new BufferedOutputStream(out, 1 << 16);
+		final Future<byte[]> end = new CompletableFuture<>();
+		final FutureTask<Void> writer = new FutureTask<>(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					for (;;) {
+						Future<byte[]> response = responses.take();
+						if (response == end)
+							break;
+
+						byte[] bytes;
+						try {
+							bytes = response.get();
+						} catch (ExecutionException e) {
+							bytes = error(String.valueOf(e.getCause()));
+						}
+						os.write(bytes);
+						if (responses.isEmpty()) {
+							os.flush();
+						}
+					}
+				} finally {
+					os.flush();
+				}
+				return null;
+			}
+		});
+		Thread writerThread = new Thread(writer, "Daemon-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String request = line.trim();
+				if (request.isEmpty())
+					continue;
+
+				Future<byte[]> response = executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() {
+						return respond(request);
+					}
+				});
+				if (!enqueue(responses, response, writer))
+					break;
+			}
+			enqueue(responses, end, writer);
+			writer.get();
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new java.io.InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Waits for room in the queue, unless the writer has stopped (because out was
+	 * closed, for instance), in which case false is returned.
+	 */
+	private static boolean enqueue(BlockingQueue<Future<byte[]>> responses, Future<byte[]> response,
+			Future<Void> writer) throws InterruptedException {
+		while (!responses.offer(response, 100, TimeUnit.MILLISECONDS)) {
+			if (writer.isDone())
+				return false;
+		}
+		return true;
+	}
+
+	private byte[] respond(String request) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try {
+			String[] args = request.split("\\s+");
+			SerializableSymbol target = nonterminals;
+			if (!args[0].equals("?") && !args[0].equals("--random")) {
+				Nonterminal nt = nonterminals.get(args[0]);
+				if (nt == null)
+					return error("Generator not found: " + args[0]);
+				target = nt;
+			}
+
+			int count = 1;
+			RandomSource rnd;
+			try {
+				if (args.length > 1) {
+					count = Integer.parseInt(args[1]);
+				}
+				if (args.length > 2) {
+					rnd = RandomSources.wrap(new Random(Long.parseLong(args[2])));
+				} else {
+					rnd = RandomSources.fast();
+				}
+			} catch (NumberFormatException e) {
+				return error("Invalid number: " + e.getMessage());
+			}
+
+			if (args.length > 3 || count < 0)
+				return error("Expected: generator [count] [seed]");
+			if (count > MAX_COUNT)
+				return error("Count must be at most " + MAX_COUNT);
+
+			baos.write(("OK " + count + "\n").getBytes(StandardCharsets.US_ASCII));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < count; ++i) {
+				sb.setLength(0);
+				target.brew(rnd, sb);
+				byte[] result = sb.toString().getBytes(StandardCharsets.UTF_8);
+				baos.write((result.length + "\n").getBytes(StandardCharsets.US_ASCII));
+				baos.write(result);
+				baos.write(NEWLINE);
+				if (baos.size() > MAX_RESPONSE_SIZE)
+					return error("Response exceeds " + MAX_RESPONSE_SIZE + " bytes");
+			}
+			return baos.toByteArray();
+
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		} catch (RuntimeException | StackOverflowError e) {
+			return error(e.toString());
+		}
+	}
+
+	private static byte[] error(String message) {
+		return ("ERR " + message.replace('\n', ' ') + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,146 @@
+package com.magicmoremagic.coffee.cli;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+
+import com.magicmoremagic.coffee.Nonterminal;
+import com.magicmoremagic.coffee.stats.GenerationStats;
+import com.magicmoremagic.coffee.stats.Histogram;
+
+/**
+ * Implements the --profile option: collects GenerationStats (with timing) while
+ * results are generated, counts the bytes written, and prints a report.
+ */
+class Profiler {
+
+	private static final int TOP = 15;
+
+	private final GenerationStats stats;
+	private final CountingOutputStream counter;
+	private final PrintStream out;
+	private long start;
+	private long elapsed;
+
+	public Profiler(OutputStream os) {
+		stats = new GenerationStats();
+		stats.setTimingEnabled(true);
+		counter = new CountingOutputStream(os);
+		out = new PrintStream(counter, false);
+	}
+
+	/**
+	 * Returns the stream that results should be written to, so that their size can
+	 * be measured.
+	 */
+	public PrintStream getOutput() {
+		return out;
+	}
+
+	public void start() {
+		stats.enable();
+		start = System.nanoTime();
+	}
+
+	public void stop() {
+		out.flush();
+		elapsed = System.nanoTime() - start;
+		stats.disable();
+	}
+
+	/**
+	 * Prints the report, given the number of results that were written.
+	 */
+	public void report(PrintStream ps, long results) {
+		double seconds = elapsed / 1e9;
+		Histogram.Snapshot depth = stats.getDepthHistogram().snapshot();
+		Histogram.Snapshot length = stats.getLengthHistogram().snapshot();
+
+		ps.println();
+		ps.println("Profile");
+		ps.println(String.format("   %d results, %d bytes in %.3f s", results, counter.getCount(), seconds));
+		ps.println(String.format("   %.1f results/s, %.1f bytes/s", results / seconds, counter.getCount() / seconds));
+		ps.println(String.format("   %d expansions (%.1f per result)", stats.getExpansions(),
+				results == 0 ? 0.0 : (double)stats.getExpansions() / results));
+		ps.println();
+		ps.println(String.format("   Derivation depth: mean %.2f, max %d", depth.getMean(), depth.getMax()));
+		ps.println(String.format("   Output length:    mean %.1f, p50 %d, p90 %d, p99 %d, p99.9 %d, max %d",
+				length.getMean(),
+				length.getValueAtPercentile(50),
+				length.getValueAtPercentile(90),
+				length.getValueAtPercentile(99),
+				length.getValueAtPercentile(99.9),
+				length.getMax()));
+
+		Map<Nonterminal, Long> expansions = stats.getExpansionCounts();
+		Map<Nonterminal, Long> selfTimes = stats.getSelfTimes();
+
+		ps.println();
+		ps.println("   Hottest nonterminals by expansion count:");
+		ps.println(String.format("   %14s %7s  %s", "expansions", "%", "nonterminal"));
+		long totalExpansions = sum(expansions);
+		for (Map.Entry<Nonterminal, Long> entry : top(expansions)) {
+			ps.println(String.format("   %14d %6.2f%%  %s", entry.getValue(),
+					100.0 * entry.getValue() / totalExpansions, entry.getKey()));
+		}
+
+		ps.println();
+		ps.println("   Hottest nonterminals by self time:");
+		ps.println(String.format("   %14s %7s %10s  %s", "self ms", "%", "ns/exp", "nonterminal"));
+		long totalSelf = sum(selfTimes);
+		for (Map.Entry<Nonterminal, Long> entry : top(selfTimes)) {
+			Long count = expansions.get(entry.getKey());
+			ps.println(String.format("   %14.3f %6.2f%% %10.1f  %s", entry.getValue() / 1e6,
+					100.0 * entry.getValue() / totalSelf,
+					count == null ? 0.0 : (double)entry.getValue() / count,
+					entry.getKey()));
+		}
+		ps.flush();
+	}
+
+	private static long sum(Map<Nonterminal, Long> map) {
+		long sum = 0;
+		for (Long value : map.values()) {
+			sum += value;
+		}
+		return Math.max(sum, 1);
+	}
+
+	private static List<Map.Entry<Nonterminal, Long>> top(Map<Nonterminal, Long> map) {
+		List<Map.Entry<Nonterminal, Long>> entries = new ArrayList<>(map.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<Nonterminal, Long>>() {
+			@Override
+			public int compare(Map.Entry<Nonterminal, Long> a, Map.Entry<Nonterminal, Long> b) {
+				return Long.compare(b.getValue(), a.getValue());
+			}
+		});
+		return entries.size() > TOP ? entries.subList(0, TOP) : entries;
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long count;
+
+		public CountingOutputStream(OutputStream os) {
+			super(os);
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			++count;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package com.magicmoremagic.coffee.flow;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.magicmoremagic.coffee.Symbol;
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.RandomSources;
+import com.magicmoremagic.coffee.random.Xoshiro256StarStar;
+
+/**
+ * A Flow.Publisher which brews results from a Symbol only as fast as subscribers
+ * request them.  Nothing is buffered: each result is generated immediately before it
+ * is delivered, so memory use is bounded no matter how slow a subscriber is.
+ *
+ * Each subscription generates on the publisher's Executor, delivering up to
+ * batchSize results per task before yielding the thread.  Signals to a subscriber
+ * are never concurrent.
+ *
+ * A seeded publisher gives every subscriber the same sequence: result i is the one
+ * returned by brew(seed, i).  An unseeded publisher gives each subscriber its own
+ * random sequence.
+ */
+public class BrewPublisher implements Flow.Publisher<String> {
+
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	private final Symbol symbol;
+	private final boolean seeded;
+	private final long seed;
+	private long limit = Long.MAX_VALUE;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private Executor executor = ForkJoinPool.commonPool();
+
+	public BrewPublisher(Symbol symbol) {
+		if (symbol == null)
+			throw new NullPointerException();
+
+		this.symbol = symbol;
+		seeded = false;
+		seed = 0;
+	}
+
+	public BrewPublisher(Symbol symbol, long seed) {
+		if (symbol == null)
+			throw new NullPointerException();
+
+		this.symbol = symbol;
+		seeded = true;
+		this.seed = seed;
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Sets the number of results each subscriber receives before onComplete().  The
+	 * default is Long.MAX_VALUE, which never completes.
+	 */
+	public void setLimit(long limit) {
+		if (limit < 0)
+			throw new IllegalArgumentException("Limit must not be negative.");
+
+		this.limit = limit;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be positive.");
+
+		this.batchSize = batchSize;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public void setExecutor(Executor executor) {
+		if (executor == null)
+			throw new NullPointerException();
+
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super String> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException();
+
+		BrewSubscription subscription = new BrewSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		if (limit == 0) {
+			subscription.schedule();
+		}
+	}
+
+	private class BrewSubscription implements Flow.Subscription, Runnable {
+
+		private final Flow.Subscriber<? super String> subscriber;
+		private final Symbol symbol = BrewPublisher.this.symbol;
+		private final long limit = BrewPublisher.this.limit;
+		private final int batchSize = BrewPublisher.this.batchSize;
+		private final Executor executor = BrewPublisher.this.executor;
+		private final RandomSource rnd;
+		private final StringBuilder sb = new StringBuilder();
+
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean cancelled;
+		private volatile Throwable error;
+		private long emitted;
+
+		public BrewSubscription(Flow.Subscriber<? super String> subscriber) {
+			this.subscriber = subscriber;
+			rnd = seeded ? new Xoshiro256StarStar(seed, 0) : RandomSources.fast();
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				error = new IllegalArgumentException("Request must be positive (Reactive Streams rule 3.9).");
+			} else {
+				long r, next;
+				do {
+					r = requested.get();
+					next = r + n;
+					if (next < 0) {
+						next = Long.MAX_VALUE;
+					}
+				} while (!requested.compareAndSet(r, next));
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+
+		void schedule() {
+			if (wip.getAndIncrement() == 0) {
+				execute();
+			}
+		}
+
+		private void execute() {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				cancelled = true;
+				subscriber.onError(e);
+			}
+		}
+
+		/**
+		 * Delivers results until demand is met, the limit is reached, or batchSize
+		 * results have been delivered, in which case the task is resubmitted so that
+		 * other work on the executor gets a turn.  Only one thread runs this at a time.
+		 */
+		@Override
+		public void run() {
+			int missed = 1;
+			for (;;) {
+				long r = requested.get();
+				int delivered = 0;
+				while (!cancelled) {
+					Throwable t = error;
+					if (t != null) {
+						cancelled = true;
+						subscriber.onError(t);
+						return;
+					}
+
+					if (emitted == limit) {
+						cancelled = true;
+						subscriber.onComplete();
+						return;
+					}
+
+					if (emitted == r)
+						break;
+
+					if (delivered == batchSize) {
+						execute();
+						return;
+					}
+
+					String result;
+					try {
+						result = next();
+					} catch (RuntimeException e) {
+						cancelled = true;
+						subscriber.onError(e);
+						return;
+					}
+
+					++emitted;
+					++delivered;
+					subscriber.onNext(result);
+				}
+
+				if (cancelled)
+					return;
+
+				missed = wip.addAndGet(-missed);
+				if (missed == 0)
+					return;
+			}
+		}
+
+		private String next() {
+			if (seeded) {
+				((Xoshiro256StarStar)rnd).setSeed(seed, emitted);
+			}
+			sb.setLength(0);
+			symbol.brew(rnd, sb);
+			return sb.toString();
+		}
+	}
+}
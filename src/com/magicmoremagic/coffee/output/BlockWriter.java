@@ -0,0 +1,280 @@
+package com.magicmoremagic.coffee.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.magicmoremagic.coffee.Symbol;
+import com.magicmoremagic.coffee.random.Xoshiro256StarStar;
+
+/**
+ * Writes a range of indexed results to an OutputStream, one per line, generating
+ * and optionally compressing blocks of results on several threads at once, in the
+ * manner of pigz.  Blocks are written in order, so the output is the same as
+ * writing each result sequentially: result i is the one SerializableSymbol.brew(seed,
+ * i) returns.
+ *
+ * With GZIP compression, each block is compressed independently into its own gzip
+ * member, so the output is a standard multi-member gzip stream which any gzip
+ * decoder reads as a single file.
+ *
+ * The number of blocks in flight is limited by a memory budget, so memory use
+ * doesn't depend on the number of results.
+ */
+public class BlockWriter {
+
+	public enum Compression {
+		NONE,
+		GZIP,
+		;
+	}
+
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+	public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+	private static final int SAMPLE_SIZE = 64;
+	private static final byte[] GZIP_HEADER = {
+		0x1F, (byte)0x8B, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xFF
+	};
+
+	private final Symbol symbol;
+	private final long seed;
+	private Compression compression = Compression.NONE;
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+	private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+	public BlockWriter(Symbol symbol, long seed) {
+		if (symbol == null)
+			throw new NullPointerException();
+
+		this.symbol = symbol;
+		this.seed = seed;
+	}
+
+	public void setCompression(Compression compression) {
+		if (compression == null)
+			throw new NullPointerException();
+
+		this.compression = compression;
+	}
+
+	/**
+	 * Sets the deflate compression level, from 0 to 9, or -1 for the default.
+	 */
+	public void setLevel(int level) {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+
+		this.level = level;
+	}
+
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException();
+
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Sets the approximate size of the uncompressed data in each block, in bytes.
+	 */
+	public void setBlockSize(int blockSize) {
+		if (blockSize < 1)
+			throw new IllegalArgumentException();
+
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Sets the approximate amount of memory which blocks that are being generated,
+	 * compressed, or waiting to be written may use.  At least one block is always
+	 * in flight.
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		if (memoryBudget < 1)
+			throw new IllegalArgumentException();
+
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Chooses the compression from a file name: GZIP if it ends with ".gz", and
+	 * NONE otherwise.
+	 */
+	public static Compression compressionFor(String fileName) {
+		return fileName.endsWith(".gz") ? Compression.GZIP : Compression.NONE;
+	}
+
+	/**
+	 * Writes results firstIndex (inclusive) to endIndex (exclusive) to os.  The
+	 * stream is flushed but not closed.
+	 *
+	 * @return the number of bytes written.
+	 */
+	public long write(long firstIndex, long endIndex, OutputStream os) throws IOException {
+		if (firstIndex < 0 || endIndex < firstIndex)
+			throw new IllegalArgumentException();
+
+		final long resultsPerBlock = resultsPerBlock(firstIndex, endIndex);
+
+		// each block needs room for its chars, its encoded bytes, and its compressed bytes
+		long perBlock = 4L * blockSize;
+		int maxInFlight = (int)Math.max(1, Math.min(parallelism * 4L, memoryBudget / perBlock));
+
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BlockWriter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		long written = 0;
+		try {
+			Deque<Future<Block>> inFlight = new ArrayDeque<>();
+			for (long begin = firstIndex; begin < endIndex; begin += resultsPerBlock) {
+				final long blockBegin = begin;
+				final long blockEnd = Math.min(endIndex, begin + resultsPerBlock);
+				inFlight.add(executor.submit(new Callable<Block>() {
+					@Override
+					public Block call() {
+						return compress(generate(blockBegin, blockEnd));
+					}
+				}));
+
+				if (inFlight.size() >= maxInFlight) {
+					written += await(inFlight.poll()).writeTo(os);
+				}
+			}
+
+			while (!inFlight.isEmpty()) {
+				written += await(inFlight.poll()).writeTo(os);
+			}
+			if (firstIndex == endIndex && compression == Compression.GZIP) {
+				// an empty file isn't a valid gzip stream, but an empty member is
+				written += compress(new Block(new byte[0], 0)).writeTo(os);
+			}
+			os.flush();
+
+		} finally {
+			executor.shutdownNow();
+		}
+		return written;
+	}
+
+	/**
+	 * Estimates how many results fit in a block from the lengths of the first few.
+	 */
+	private long resultsPerBlock(long firstIndex, long endIndex) {
+		long sample = Math.min(SAMPLE_SIZE, endIndex - firstIndex);
+		if (sample == 0)
+			return 1;
+
+		Xoshiro256StarStar rnd = new Xoshiro256StarStar();
+		StringBuilder sb = new StringBuilder();
+		for (long i = firstIndex; i < firstIndex + sample; ++i) {
+			rnd.setSeed(seed, i);
+			symbol.brew(rnd, sb);
+			sb.append(LINE_SEPARATOR);
+		}
+		long averageLength = Math.max(1, sb.length() / sample);
+		return Math.max(1, blockSize / averageLength);
+	}
+
+	private Block generate(long begin, long end) {
+		Xoshiro256StarStar rnd = new Xoshiro256StarStar();
+		StringBuilder sb = new StringBuilder(blockSize + (blockSize >>> 3));
+		for (long i = begin; i < end; ++i) {
+			rnd.setSeed(seed, i);
+			symbol.brew(rnd, sb);
+			sb.append(LINE_SEPARATOR);
+		}
+		byte[] data = sb.toString().getBytes(StandardCharsets.UTF_8);
+		return new Block(data, data.length);
+	}
+
+	/**
+	 * Compresses a block into a complete gzip member, if compression is enabled.
+	 */
+	private Block compress(Block block) {
+		if (compression == Compression.NONE)
+			return block;
+
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(block.data, 0, block.length);
+			deflater.finish();
+
+			byte[] out = new byte[block.length + (block.length >>> 3) + 64];
+			System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+			int length = GZIP_HEADER.length;
+			while (!deflater.finished()) {
+				if (length == out.length) {
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				length += deflater.deflate(out, length, out.length - length);
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(block.data, 0, block.length);
+			if (out.length - length < 8) {
+				out = Arrays.copyOf(out, length + 8);
+			}
+			length = putIntLE(out, length, (int)crc.getValue());
+			length = putIntLE(out, length, block.length);
+			return new Block(out, length);
+
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static int putIntLE(byte[] dest, int offset, int value) {
+		dest[offset] = (byte)value;
+		dest[offset + 1] = (byte)(value >>> 8);
+		dest[offset + 2] = (byte)(value >>> 16);
+		dest[offset + 3] = (byte)(value >>> 24);
+		return offset + 4;
+	}
+
+	private static Block await(Future<Block> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new java.io.InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private static class Block {
+		private final byte[] data;
+		private final int length;
+
+		public Block(byte[] data, int length) {
+			this.data = data;
+			this.length = length;
+		}
+
+		public int writeTo(OutputStream os) throws IOException {
+			os.write(data, 0, length);
+			return length;
+		}
+	}
+}
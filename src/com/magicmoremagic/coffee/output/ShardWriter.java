@@ -0,0 +1,348 @@
+package com.magicmoremagic.coffee.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+import com.magicmoremagic.coffee.Nonterminal;
+import com.magicmoremagic.coffee.Symbol;
+import com.magicmoremagic.coffee.random.Xoshiro256StarStar;
+
+/**
+ * Splits a range of indexed results into several shard files of nearly equal
+ * counts, each generated and written by its own worker through a FileChannel and a
+ * large direct buffer, and writes a manifest describing them.
+ *
+ * Shard files are named after a base path with the shard number inserted before the
+ * extension, so "out/names.txt" gives "out/names-00000.txt", "out/names-00001.txt"
+ * and so on, and the manifest "out/names.manifest.json".  The manifest records the
+ * seed, the generator, and each shard's index range, result count and size in
+ * bytes.  Since results are indexed, any shard can be regenerated on its own with
+ * "Coffee filename generator 0 seed --range first:end", where the count (0) is only
+ * a placeholder which --range overrides; the manifest gives this command for each
+ * shard.
+ *
+ * If the base path ends with ".gz", each shard is a gzip file.
+ */
+public class ShardWriter {
+
+	public static final int DEFAULT_BUFFER_SIZE = 4 << 20;
+
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	private final Symbol symbol;
+	private final long seed;
+	private int parallelism = Runtime.getRuntime().availableProcessors();
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+	private String grammarName = "<filename>";
+
+	public ShardWriter(Symbol symbol, long seed) {
+		if (symbol == null)
+			throw new NullPointerException();
+
+		this.symbol = symbol;
+		this.seed = seed;
+	}
+
+	/**
+	 * Sets the maximum number of shards written at once.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException();
+
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Sets the size of each worker's direct buffer, in bytes.
+	 */
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize < 64)
+			throw new IllegalArgumentException();
+
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Sets the grammar file name used in the commands which the manifest gives for
+	 * regenerating each shard.
+	 */
+	public void setGrammarName(String grammarName) {
+		if (grammarName == null)
+			throw new NullPointerException();
+
+		this.grammarName = grammarName;
+	}
+
+	/**
+	 * Returns the path of shard number index.
+	 */
+	public static Path getShardPath(Path base, int index) {
+		String name = base.getFileName().toString();
+		int dot = name.indexOf('.', 1);
+		String shard = String.format("-%05d", index);
+		if (dot < 0) {
+			name = name + shard;
+		} else {
+			name = name.substring(0, dot) + shard + name.substring(dot);
+		}
+		return base.resolveSibling(name);
+	}
+
+	public static Path getManifestPath(Path base) {
+		String name = base.getFileName().toString();
+		int dot = name.indexOf('.', 1);
+		if (dot >= 0) {
+			name = name.substring(0, dot);
+		}
+		return base.resolveSibling(name + ".manifest.json");
+	}
+
+	/**
+	 * Writes results firstIndex (inclusive) to endIndex (exclusive) to shardCount
+	 * files named after base, and then the manifest.
+	 *
+	 * @return the shards, in index order.
+	 */
+	public List<Shard> write(long firstIndex, long endIndex, int shardCount, Path base) throws IOException {
+		if (firstIndex < 0 || endIndex < firstIndex || shardCount < 1)
+			throw new IllegalArgumentException();
+
+		final boolean gzip = BlockWriter.compressionFor(base.getFileName().toString()) == BlockWriter.Compression.GZIP;
+		long total = endIndex - firstIndex;
+		List<Shard> shards = new ArrayList<>(shardCount);
+		for (int i = 0; i < shardCount; ++i) {
+			shards.add(new Shard(getShardPath(base, i),
+					firstIndex + i * (total / shardCount) + Math.min(i, total % shardCount),
+					firstIndex + (i + 1) * (total / shardCount) + Math.min(i + 1, total % shardCount)));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, shardCount), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ShardWriter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		try {
+			List<Future<Void>> futures = new ArrayList<>(shardCount);
+			for (final Shard shard : shards) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						if (gzip) {
+							writeCompressed(shard);
+						} else {
+							writeShard(shard);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				await(future);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		writeManifest(getManifestPath(base), firstIndex, endIndex, shards);
+		return Collections.unmodifiableList(shards);
+	}
+
+	private void writeShard(Shard shard) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocateDirect(bufferSize);
+		CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer chars = CharBuffer.allocate(256);
+		StringBuilder sb = new StringBuilder(256);
+		Xoshiro256StarStar rnd = new Xoshiro256StarStar();
+
+		try (FileChannel channel = open(shard.file)) {
+			for (long i = shard.firstIndex; i < shard.endIndex; ++i) {
+				sb.setLength(0);
+				rnd.setSeed(seed, i);
+				symbol.brew(rnd, sb);
+				sb.append(LINE_SEPARATOR);
+
+				int len = sb.length();
+				if (chars.capacity() < len) {
+					chars = CharBuffer.allocate(Math.max(len, chars.capacity() * 2));
+				}
+				sb.getChars(0, len, chars.array(), 0);
+				chars.position(0).limit(len);
+				encode(encoder, chars, false, buf, channel);
+			}
+
+			chars.position(0).limit(0);
+			encode(encoder, chars, true, buf, channel);
+			while (encoder.flush(buf) == CoderResult.OVERFLOW) {
+				drain(buf, channel);
+			}
+			drain(buf, channel);
+			shard.bytes = channel.size();
+		}
+	}
+
+	private void writeCompressed(Shard shard) throws IOException {
+		BlockWriter writer = new BlockWriter(symbol, seed);
+		writer.setCompression(BlockWriter.Compression.GZIP);
+		writer.setParallelism(1);
+		try (FileChannel channel = open(shard.file)) {
+			OutputStream os = Channels.newOutputStream(channel);
+			shard.bytes = writer.write(shard.firstIndex, shard.endIndex, os);
+		}
+	}
+
+	private static FileChannel open(Path file) throws IOException {
+		return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	private static void encode(CharsetEncoder encoder, CharBuffer chars, boolean endOfInput, ByteBuffer buf,
+			FileChannel channel) throws IOException {
+		while (encoder.encode(chars, buf, endOfInput) == CoderResult.OVERFLOW) {
+			drain(buf, channel);
+		}
+	}
+
+	private static void drain(ByteBuffer buf, FileChannel channel) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		buf.clear();
+	}
+
+	private void writeManifest(Path file, long firstIndex, long endIndex, List<Shard> shards) throws IOException {
+		String generator = symbol instanceof Nonterminal ? ((Nonterminal)symbol).getName() : null;
+		try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			w.write("{\n");
+			w.write("  \"seed\": " + seed + ",\n");
+			w.write("  \"generator\": " + (generator == null ? "null" : jsonString(generator)) + ",\n");
+			w.write("  \"firstIndex\": " + firstIndex + ",\n");
+			w.write("  \"endIndex\": " + endIndex + ",\n");
+			w.write("  \"count\": " + (endIndex - firstIndex) + ",\n");
+			w.write("  \"shards\": [\n");
+			for (int i = 0; i < shards.size(); ++i) {
+				Shard shard = shards.get(i);
+				w.write("    { \"file\": " + jsonString(shard.file.getFileName().toString()));
+				w.write(", \"firstIndex\": " + shard.firstIndex);
+				w.write(", \"endIndex\": " + shard.endIndex);
+				w.write(", \"count\": " + shard.getCount());
+				w.write(", \"bytes\": " + shard.bytes);
+				w.write(", \"command\": " + jsonString(regenerateCommand(generator, shard)) + " }");
+				w.write(i + 1 < shards.size() ? ",\n" : "\n");
+			}
+			w.write("  ]\n");
+			w.write("}\n");
+		}
+	}
+
+	/**
+	 * Returns the command line which writes the results in shard to stdout.
+	 */
+	private String regenerateCommand(String generator, Shard shard) {
+		return "Coffee " + shellQuote(grammarName) + " " + shellQuote(generator == null ? "?" : generator)
+				+ " 0 " + seed + " --range " + shard.firstIndex + ":" + shard.endIndex;
+	}
+
+	private static String shellQuote(String s) {
+		if (s.matches("[A-Za-z0-9_./:=+-]+"))
+			return s;
+
+		return "'" + s.replace("'", "'\\''") + "'";
+	}
+
+	private static String jsonString(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int)c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static void await(Future<Void> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new java.io.InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * One shard file, and the range of result indices it holds.
+	 */
+	public static class Shard {
+		private final Path file;
+		private final long firstIndex;
+		private final long endIndex;
+		private long bytes;
+
+		Shard(Path file, long firstIndex, long endIndex) {
+			this.file = file;
+			this.firstIndex = firstIndex;
+			this.endIndex = endIndex;
+		}
+
+		public Path getFile() {
+			return file;
+		}
+
+		public long getFirstIndex() {
+			return firstIndex;
+		}
+
+		public long getEndIndex() {
+			return endIndex;
+		}
+
+		public long getCount() {
+			return endIndex - firstIndex;
+		}
+
+		/**
+		 * Returns the size of the shard file in bytes.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.magicmoremagic.coffee.parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.magicmoremagic.coffee.Nonterminal;
+
+/**
+ * The result of parsing one chunk of a larger input on its own, for ParallelLoader.
+ *
+ * References to names defined earlier in the chunk are resolved in place.  A
+ * reference to any other name gets a placeholder, shared by all such references in
+ * the chunk, which is resolved when the chunks are linked in order.  Definitions,
+ * the first reference to each unresolved name, and imports are recorded as events
+ * in the order they were parsed.  An import may redefine anything, so names are
+ * unresolved again after one.
+ */
+class Fragment {
+
+	static final class Event {
+
+		final String name;
+		final Nonterminal definition;
+		final Nonterminal placeholder;
+		final boolean primary;
+		final boolean optional;
+
+		Event(String name, Nonterminal definition, Nonterminal placeholder, boolean primary, boolean optional) {
+			this.name = name;
+			this.definition = definition;
+			this.placeholder = placeholder;
+			this.primary = primary;
+			this.optional = optional;
+		}
+	}
+
+	private final List<Event> events;
+	private final List<Nonterminal> definitions;
+	private final Map<String, Nonterminal> local;
+
+	Fragment() {
+		events = new ArrayList<>();
+		definitions = new ArrayList<>();
+		local = new HashMap<>();
+	}
+
+	List<Event> getEvents() {
+		return events;
+	}
+
+	/**
+	 * Returns the nonterminals defined by the chunk, other than WordLists.
+	 */
+	List<Nonterminal> getDefinitions() {
+		return definitions;
+	}
+
+	Nonterminal reference(String name) {
+		Nonterminal nt = local.get(name);
+		if (nt == null) {
+			nt = new Nonterminal(name);
+			local.put(name, nt);
+			events.add(new Event(name, null, nt, false, false));
+		}
+		return nt;
+	}
+
+	Nonterminal define(String name, Nonterminal nt, boolean primary) {
+		local.put(name, nt);
+		events.add(new Event(name, nt, null, primary, false));
+		if (nt.getClass() == Nonterminal.class) {
+			definitions.add(nt);
+		}
+		return nt;
+	}
+
+	void importResource(String resourceName, boolean optional) {
+		local.clear();
+		events.add(new Event(resourceName, null, null, false, optional));
+	}
+}
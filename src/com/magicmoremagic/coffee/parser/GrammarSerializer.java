@@ -0,0 +1,308 @@
+package com.magicmoremagic.coffee.parser;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.magicmoremagic.coffee.AbstractSymbol;
+import com.magicmoremagic.coffee.Nonterminal;
+import com.magicmoremagic.coffee.NonterminalSet;
+import com.magicmoremagic.coffee.Production;
+import com.magicmoremagic.coffee.Symbol;
+import com.magicmoremagic.coffee.Terminal;
+import com.magicmoremagic.coffee.WordList;
+
+/**
+ * Writes grammars in the syntax of DefaultLexer, producing exactly the same text as
+ * the serialize() methods do with a DefaultLexer, but much faster: text is built in
+ * one large buffer which is written out in blocks, no Tokens are created, and names
+ * and literals which don't need escaping are copied directly.
+ *
+ * With a parallelism greater than one, nonterminals are formatted in chunks on
+ * worker threads and written in order, with a bounded number of chunks in flight.
+ */
+public class GrammarSerializer {
+
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	private static final int CHUNK_PRODUCTIONS = 1 << 14;
+	private static final double EPSILON = 0.0001;
+	private static final String LINE_SEPARATOR = System.lineSeparator();
+
+	private final int bufferSize;
+	private final int parallelism;
+
+	public GrammarSerializer() {
+		this(DEFAULT_BUFFER_SIZE, 1);
+	}
+
+	public GrammarSerializer(int bufferSize, int parallelism) {
+		if (bufferSize < 1 || parallelism < 1)
+			throw new IllegalArgumentException();
+
+		this.bufferSize = bufferSize;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Returns true if lexer serializes tokens in the default syntax, so that a
+	 * GrammarSerializer may be used in its place.
+	 */
+	public static boolean isDefaultSyntax(Lexer lexer) {
+		return lexer == null || lexer.getClass() == DefaultLexer.class;
+	}
+
+	/**
+	 * Writes every nonterminal in set, primary nonterminals first, as
+	 * NonterminalSet.serialize() does.
+	 */
+	public void serialize(NonterminalSet set, Writer w) throws IOException {
+		List<Nonterminal> nonterminals = new ArrayList<>();
+		for (Nonterminal nt : set) {
+			nonterminals.add(nt);
+		}
+		int primaryCount = nonterminals.size();
+
+		for (Nonterminal nt : set.getAll()) {
+			if (set.get(nt.getName()) == null) {
+				nonterminals.add(nt);
+			}
+		}
+
+		write(nonterminals, primaryCount, w);
+	}
+
+	/**
+	 * Writes nt as a primary nonterminal followed by everything it depends on, as
+	 * Nonterminal.serializeAll() does.
+	 */
+	public void serializeAll(Nonterminal nt, Writer w) throws IOException {
+		write(nt.collectDependencies(), 1, w);
+	}
+
+	/**
+	 * Writes the given nonterminals separated by blank lines.  The first
+	 * primaryCount are written as primary nonterminals.
+	 */
+	public void write(List<Nonterminal> nonterminals, int primaryCount, Writer w) throws IOException {
+		if (parallelism > 1 && nonterminals.size() > 1) {
+			writeParallel(nonterminals, primaryCount, w);
+		} else {
+			Buffer buf = new Buffer(w, bufferSize);
+			for (int i = 0; i < nonterminals.size(); ++i) {
+				if (i > 0) {
+					buf.sb.append(LINE_SEPARATOR);
+				}
+				appendNonterminal(buf, nonterminals.get(i), i < primaryCount);
+			}
+			buf.flush();
+		}
+		w.flush();
+	}
+
+	/**
+	 * Appends nt and its productions to sb, each followed by a line separator.  A
+	 * WordList is written as the command which creates it.
+	 */
+	public static void appendNonterminal(StringBuilder sb, Nonterminal nt, boolean primary) {
+		Buffer buf = new Buffer(sb);
+		try {
+			appendNonterminal(buf, nt, primary);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Appends the weight and symbols of p to sb, without indentation or a line
+	 * separator.
+	 */
+	public static void appendProduction(StringBuilder sb, Production p) {
+		double weight = p.getWeight();
+		int intWeight = (int)weight;
+		if (Math.abs(weight - (double)intWeight) < EPSILON) {
+			if (intWeight == 1) {
+				sb.append(' ');
+			} else {
+				sb.append(intWeight);
+			}
+		} else {
+			sb.append(StringUtil.trimWeight(weight, p.getUpperBound()));
+		}
+
+		sb.append(']');
+		appendSymbols(sb, p);
+	}
+
+	private static void appendSymbols(StringBuilder sb, Production p) {
+		final int size = p.size();
+		for (int i = 0; i < size; ++i) {
+			Symbol s = p.get(i);
+			if (s instanceof Production) {
+				appendSymbols(sb, (Production)s);
+			} else if (s instanceof Nonterminal) {
+				sb.append(' ');
+				StringUtil.appendIdentifier(sb, ((Nonterminal)s).getName());
+			} else if (s instanceof Terminal) {
+				sb.append(' ');
+				StringUtil.appendLiteral(sb, ((Terminal)s).get());
+			} else if (s instanceof AbstractSymbol) {
+				sb.append(' ');
+				sb.append(((AbstractSymbol)s).serialize(DefaultLexer.DEFAULT));
+			} else {
+				sb.append(' ');
+				sb.append(s);
+			}
+		}
+	}
+
+	private static void appendNonterminal(Buffer buf, Nonterminal nt, boolean primary) throws IOException {
+		StringBuilder sb = buf.sb;
+		if (nt instanceof WordList) {
+			WordList list = (WordList)nt;
+			sb.append('!');
+			sb.append(list.getCommand());
+			sb.append(' ');
+			StringUtil.appendIdentifier(sb, list.getName());
+			sb.append(' ');
+			StringUtil.appendLiteral(sb, list.getFile().toString());
+			sb.append(LINE_SEPARATOR);
+			return;
+		}
+
+		sb.append(primary ? ":::" : "::");
+		sb.append(' ');
+		StringUtil.appendIdentifier(sb, nt.getName());
+		sb.append(LINE_SEPARATOR);
+
+		for (Production p : nt) {
+			sb.append("  ");
+			appendProduction(sb, p);
+			sb.append(LINE_SEPARATOR);
+			buf.maybeFlush();
+		}
+	}
+
+	private void writeParallel(final List<Nonterminal> nonterminals, final int primaryCount, Writer w) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "GrammarSerializer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		try {
+			Deque<Future<StringBuilder>> inFlight = new ArrayDeque<>();
+			char[] scratch = new char[bufferSize];
+			int begin = 0;
+			while (begin < nonterminals.size()) {
+				int end = begin;
+				int productions = 0;
+				while (end < nonterminals.size() && productions < CHUNK_PRODUCTIONS) {
+					productions += nonterminals.get(end).size() + 1;
+					++end;
+				}
+
+				final int chunkBegin = begin;
+				final int chunkEnd = end;
+				inFlight.add(executor.submit(new Callable<StringBuilder>() {
+					@Override
+					public StringBuilder call() throws IOException {
+						Buffer buf = new Buffer(new StringBuilder());
+						for (int i = chunkBegin; i < chunkEnd; ++i) {
+							if (i > 0) {
+								buf.sb.append(LINE_SEPARATOR);
+							}
+							appendNonterminal(buf, nonterminals.get(i), i < primaryCount);
+						}
+						return buf.sb;
+					}
+				}));
+				begin = end;
+
+				if (inFlight.size() >= parallelism * 2) {
+					Buffer.write(await(inFlight.poll()), w, scratch);
+				}
+			}
+
+			while (!inFlight.isEmpty()) {
+				Buffer.write(await(inFlight.poll()), w, scratch);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static StringBuilder await(Future<StringBuilder> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new java.io.InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private static class Buffer {
+
+		private final StringBuilder sb;
+		private final Writer w;
+		private final char[] scratch;
+		private final int threshold;
+
+		/**
+		 * A buffer which is flushed to w whenever it grows past threshold chars.
+		 */
+		public Buffer(Writer w, int threshold) {
+			sb = new StringBuilder(threshold + 1024);
+			this.w = w;
+			scratch = new char[Math.min(threshold, 1 << 16)];
+			this.threshold = threshold;
+		}
+
+		/**
+		 * A buffer which is never flushed.
+		 */
+		public Buffer(StringBuilder sb) {
+			this.sb = sb;
+			w = null;
+			scratch = null;
+			threshold = Integer.MAX_VALUE;
+		}
+
+		public void maybeFlush() throws IOException {
+			if (sb.length() >= threshold) {
+				flush();
+			}
+		}
+
+		public void flush() throws IOException {
+			if (w != null) {
+				write(sb, w, scratch);
+				sb.setLength(0);
+			}
+		}
+
+		public static void write(StringBuilder sb, Writer w, char[] scratch) throws IOException {
+			final int len = sb.length();
+			int offset = 0;
+			while (offset < len) {
+				int n = Math.min(scratch.length, len - offset);
+				sb.getChars(offset, offset + n, scratch, 0);
+				w.write(scratch, 0, n);
+				offset += n;
+			}
+		}
+	}
+}
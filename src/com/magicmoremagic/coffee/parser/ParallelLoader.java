@@ -0,0 +1,321 @@
+package com.magicmoremagic.coffee.parser;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Parses large grammars on several threads, with the same result as Parser.
+ *
+ * The input is first scanned for split points: the top-level ':::' and '::'
+ * operators which begin definitions.  The scan follows DefaultLexer's rules for
+ * identifiers, numbers, literals, escapes and comments, so an operator inside any
+ * of them is never chosen.  Each chunk is then lexed and parsed on its own by a
+ * worker thread, and the fragments are linked in order on the calling thread,
+ * binding each reference to the definition Parser would have bound it to.  Commands
+ * are run in order too; word lists are loaded by the workers, and imports while
+ * linking.
+ *
+ * If anything goes wrong, the input is parsed again by a Parser on the calling
+ * thread, so that the error reported is exactly the one Parser reports.
+ */
+public class ParallelLoader {
+
+	public static final int DEFAULT_MIN_CHUNK_SIZE = 1 << 20;
+
+	// chunks per thread, so that one slow chunk doesn't hold up the rest
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private final int parallelism;
+	private final int minChunkSize;
+
+	public ParallelLoader() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_MIN_CHUNK_SIZE);
+	}
+
+	public ParallelLoader(int parallelism, int minChunkSize) {
+		if (parallelism < 1 || minChunkSize < 1)
+			throw new IllegalArgumentException();
+
+		this.parallelism = parallelism;
+		this.minChunkSize = minChunkSize;
+	}
+
+	/**
+	 * Parses a UTF-8 file, importing resources with DefaultLexerFactory.
+	 */
+	public Parser load(Path file) throws IOException {
+		return load(new String(Files.readAllBytes(file), StandardCharsets.UTF_8), DefaultLexerFactory.INSTANCE);
+	}
+
+	public Parser load(String input) throws IOException {
+		return load(input, DefaultLexerFactory.INSTANCE);
+	}
+
+	public Parser load(String input, LexerFactory lf) throws IOException {
+		int[] splits = findSplitPoints(input, chunkSize(input.length()));
+		if (splits.length <= 2) {
+			return parseSequentially(input, lf);
+		}
+
+		List<Fragment> fragments = parseFragments(input, splits);
+		if (fragments == null) {
+			return parseSequentially(input, lf);
+		}
+
+		Parser parser = new Parser();
+		try {
+			parser.link(fragments, new DefaultLexer(""), lf);
+			relink(parser, fragments);
+			parser.finishLink();
+		} catch (IOException | RuntimeException e) {
+			return parseSequentially(input, lf);
+		}
+		return parser;
+	}
+
+	/**
+	 * Returns the offsets at which input should be split so that chunks are at least
+	 * chunkSize chars long, starting with 0 and ending with input.length().  Each
+	 * offset in between is the start of a top-level ':::' or '::' operator.
+	 */
+	static int[] findSplitPoints(CharSequence input, int chunkSize) {
+		List<Integer> splits = new ArrayList<>();
+		splits.add(0);
+		final int length = input.length();
+		int next = chunkSize;
+		int i = 0;
+		while (i < length) {
+			char c = input.charAt(i);
+			if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == '$' || c == '\\') {
+				i = skipIdentifier(input, i);
+			} else if (c >= '0' && c <= '9' || c == '.') {
+				i = skipNumber(input, i + 1, c == '.');
+			} else if (c == '"') {
+				i = skipLiteral(input, i + 1);
+			} else if (c == ':') {
+				if (i >= next && i + 1 < length && input.charAt(i + 1) == ':') {
+					splits.add(i);
+					next = i + chunkSize;
+				}
+				i = skipOperator(input, i);
+			} else if (c == '#') {
+				i = skipLine(input, i + 1);
+			} else if (c == '-' || c == '/') {
+				i = skipComment(input, i);
+			} else {
+				++i;
+			}
+		}
+		splits.add(length);
+
+		int[] result = new int[splits.size()];
+		for (int s = 0; s < result.length; ++s) {
+			result[s] = splits.get(s);
+		}
+		return result;
+	}
+
+	private int chunkSize(int length) {
+		return Math.max(minChunkSize, length / (parallelism * CHUNKS_PER_THREAD) + 1);
+	}
+
+	private static Parser parseSequentially(String input, LexerFactory lf) throws IOException {
+		Parser parser = new Parser();
+		parser.parse(input, lf);
+		return parser;
+	}
+
+	/**
+	 * Parses each chunk on a worker thread, and returns the fragments in order, or
+	 * null if any chunk fails to parse.
+	 */
+	private List<Fragment> parseFragments(final String input, final int[] splits) throws IOException {
+		ExecutorService executor = newExecutor();
+		try {
+			List<Future<Fragment>> futures = new ArrayList<>();
+			for (int c = 0; c + 1 < splits.length; ++c) {
+				final int begin = splits[c];
+				final int end = splits[c + 1];
+				futures.add(executor.submit(new Callable<Fragment>() {
+					@Override
+					public Fragment call() throws IOException {
+						Fragment fragment = new Fragment();
+						new Parser().parseFragment(new DefaultLexer(new StringReader(input.substring(begin, end))), fragment);
+						return fragment;
+					}
+				}));
+			}
+
+			List<Fragment> fragments = new ArrayList<>();
+			for (Future<Fragment> future : futures) {
+				try {
+					fragments.add(future.get());
+				} catch (ExecutionException e) {
+					return null;
+				}
+			}
+			return fragments;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new java.io.InterruptedIOException();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void relink(final Parser parser, List<Fragment> fragments) throws IOException {
+		ExecutorService executor = newExecutor();
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (final Fragment fragment : fragments) {
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						parser.relink(fragment);
+					}
+				}));
+			}
+
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException)cause;
+					if (cause instanceof Error)
+						throw (Error)cause;
+					throw new IOException(cause);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new java.io.InterruptedIOException();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private ExecutorService newExecutor() {
+		return Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ParallelLoader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/*
+	 * The skip methods below each return the offset just past a token or comment,
+	 * following DefaultLexer.  Where DefaultLexer would throw, they just stop early;
+	 * the chunk containing the error fails to parse, so the split points after it
+	 * don't matter.
+	 */
+
+	private static int skipIdentifier(CharSequence input, int i) {
+		final int length = input.length();
+		while (i < length) {
+			char c = input.charAt(i);
+			if (c == '\\') {
+				i = skipEscape(input, i + 1);
+			} else if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '$') {
+				++i;
+			} else {
+				break;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Skips the digits and point of a number.  DefaultLexer can't read an exponent
+	 * (it throws), so one ends the number here.
+	 */
+	private static int skipNumber(CharSequence input, int i, boolean fraction) {
+		final int length = input.length();
+		for (; i < length; ++i) {
+			char c = input.charAt(i);
+			if (c == '.' && !fraction) {
+				fraction = true;
+			} else if (c < '0' || c > '9') {
+				break;
+			}
+		}
+		return i;
+	}
+
+	private static int skipLiteral(CharSequence input, int i) {
+		final int length = input.length();
+		while (i < length) {
+			char c = input.charAt(i);
+			if (c == '"') {
+				return i + 1;
+			} else if (c == '\\') {
+				i = skipEscape(input, i + 1);
+			} else {
+				++i;
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Skips the escape sequence whose backslash is just before i.
+	 */
+	private static int skipEscape(CharSequence input, int i) {
+		if (i >= input.length())
+			return i;
+
+		switch (input.charAt(i)) {
+			case 'x':	return Math.min(input.length(), i + 3);
+			case 'u':	return Math.min(input.length(), i + 5);
+			case 'U':	return Math.min(input.length(), i + 9);
+			default:	return i + 1;
+		}
+	}
+
+	private static int skipOperator(CharSequence input, int i) {
+		if (i + 1 < input.length() && input.charAt(i + 1) == ':') {
+			return i + 2 < input.length() && input.charAt(i + 2) == ':' ? i + 3 : i + 2;
+		}
+		return i + 1;
+	}
+
+	/**
+	 * Skips a '--', '//' or '/*' comment starting at i, or just the first char if
+	 * there isn't one.
+	 */
+	private static int skipComment(CharSequence input, int i) {
+		if (i + 1 >= input.length())
+			return i + 1;
+
+		char c = input.charAt(i);
+		char c2 = input.charAt(i + 1);
+		if (c2 == '-' && c == '-' || c2 == '/' && c == '/') {
+			return skipLine(input, i + 2);
+		} else if (c2 == '*' && c == '/') {
+			for (int j = i + 2; j + 1 < input.length(); ++j) {
+				if (input.charAt(j) == '*' && input.charAt(j + 1) == '/') {
+					return j + 2;
+				}
+			}
+			return input.length();
+		}
+		return i + 2;
+	}
+
+	private static int skipLine(CharSequence input, int i) {
+		final int length = input.length();
+		while (i < length && input.charAt(i) != '\n') {
+			++i;
+		}
+		return i < length ? i + 1 : i;
+	}
+}
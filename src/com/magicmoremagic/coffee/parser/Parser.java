@@ -4,23 +4,39 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.magicmoremagic.coffee.Nonterminal;
 import com.magicmoremagic.coffee.NonterminalSet;
 import com.magicmoremagic.coffee.Production;
+import com.magicmoremagic.coffee.Symbol;
 import com.magicmoremagic.coffee.Terminal;
+import com.magicmoremagic.coffee.WordList;
 
 public class Parser extends NonterminalSet {
 	
 	private LexerFactory lexerFactory;
 	private Lexer lex;
-	private List<Task> tasks;
+	private Map<String, Nonterminal> placeholders;
+	private Map<Nonterminal, Nonterminal> rebound;
 	private Set<String> imports;
 	private int inProgress;
+	private Fragment fragment;
+	private List<Nonterminal> linked;
 	
 	public Parser() { }
 	
@@ -78,8 +94,8 @@ public class Parser extends NonterminalSet {
 		lex = lexer;
 		lexerFactory = lf;
 		
-		if (tasks == null) {
-			tasks = new ArrayList<>();
+		if (placeholders == null) {
+			placeholders = new LinkedHashMap<>();
 		}
 		if (imports == null) {
 			imports = new HashSet<>();
@@ -91,11 +107,7 @@ public class Parser extends NonterminalSet {
 		--inProgress;
 		if (inProgress == 0) {
 			try {
-				for (Task t : tasks) {
-					t.run();
-				}
-			} catch (Exception e) {
-				throw e;
+				reportUndefined();
 			} finally {
 				deinit();
 			}
@@ -103,10 +115,11 @@ public class Parser extends NonterminalSet {
 	}
 	
 	private void deinit() {
-		if (tasks != null) {
-			tasks.clear();
-			tasks = null;
-		}
+		replacePlaceholders();
+		indexNonterminals();
+		
+		placeholders = null;
+		rebound = null;
 		
 		if (imports != null) {
 			imports.clear();
@@ -118,6 +131,226 @@ public class Parser extends NonterminalSet {
 		lexerFactory = null;
 	}
 	
+	/**
+	 * Parses one chunk of a larger input for ParallelLoader.  Definitions,
+	 * references and commands are recorded in fragment rather than resolved, since
+	 * they may refer to other chunks.
+	 */
+	void parseFragment(Lexer lexer, Fragment fragment) throws IOException {
+		this.fragment = fragment;
+		lex = lexer;
+		try {
+			content();
+		} finally {
+			lex = null;
+			this.fragment = null;
+		}
+	}
+	
+	/**
+	 * Resolves the definitions and references recorded in fragments, in order,
+	 * exactly as parse() would have if it had read their chunks one after another.
+	 * References are only redirected in the rebound map; relink() must then be
+	 * called for each fragment, and finishLink() once they are all done.
+	 */
+	void link(List<Fragment> fragments, Lexer lexer, LexerFactory lf) throws IOException {
+		init(lexer, lf);
+		linked = new ArrayList<>();
+		if (rebound == null) {
+			rebound = new IdentityHashMap<>();
+		}
+		
+		try {
+			for (Fragment f : fragments) {
+				for (Fragment.Event e : f.getEvents()) {
+					if (e.definition != null) {
+						bind(e.name, e.definition);
+						if (e.primary) {
+							primaryNonterminals.put(e.name, e.definition);
+						}
+					} else if (e.placeholder != null) {
+						// as reference() would, except the fragment's placeholder may become the shared one
+						Nonterminal target = nonterminals.get(e.name);
+						if (target == null) {
+							target = placeholders.get(e.name);
+						}
+						if (target == null) {
+							placeholders.put(e.name, e.placeholder);
+						} else {
+							rebound.put(e.placeholder, target);
+						}
+					} else if (e.optional) {
+						optionalImportResource(e.name);
+					} else {
+						importResource(e.name);
+					}
+				}
+			}
+		} catch (Exception e) {
+			linked = null;
+			deinit();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Replaces references to placeholders in the productions of the nonterminals
+	 * fragment defined.  May be called for different fragments concurrently.
+	 */
+	void relink(Fragment fragment) {
+		relink(fragment.getDefinitions());
+	}
+	
+	void finishLink() throws IOException {
+		// nonterminals defined by imported resources may refer to the fragments' placeholders
+		relink(linked);
+		linked = null;
+		rebound = null;
+		tryDeinit();
+	}
+	
+	private void relink(List<Nonterminal> nts) {
+		if (rebound.isEmpty())
+			return;
+		
+		for (Nonterminal nt : nts) {
+			for (Production p : nt) {
+				for (int i = p.size() - 1; i >= 0; --i) {
+					Symbol s = p.get(i);
+					if (rebound.containsKey(s)) {
+						p.set(i, resolve(s));
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Follows the chain of rebound placeholders starting at s; a fragment's
+	 * placeholder may be bound to another placeholder which was bound later.
+	 */
+	private Nonterminal resolve(Symbol s) {
+		Nonterminal target = rebound.get(s);
+		while (target != null && rebound.containsKey(target)) {
+			target = rebound.get(target);
+		}
+		return target;
+	}
+	
+	/**
+	 * Reports any names which were referenced but never defined.
+	 */
+	private void reportUndefined() throws ParseException {
+		for (String name : placeholders.keySet()) {
+			StringBuilder err = new StringBuilder();
+			err.append("Nonterminal not found: ");
+			err.append(getTokenName(new Token(TokenType.IDENTIFIER, name)));
+			error(err.toString());
+		}
+	}
+	
+	/**
+	 * Replaces references to placeholders which were superseded by word lists, and
+	 * removes references to names which were never defined, in a single pass over
+	 * every reachable production, including those of definitions which have since
+	 * been replaced.  Nothing needs to be done in the usual case, where every
+	 * placeholder was bound in place by a nonterminal definition.
+	 */
+	private void replacePlaceholders() {
+		if (placeholders == null || (placeholders.isEmpty() && rebound == null))
+			return;
+		
+		if (rebound == null) {
+			rebound = new IdentityHashMap<>();
+		}
+		for (Nonterminal placeholder : placeholders.values()) {
+			rebound.put(placeholder, null);
+		}
+		
+		Set<Nonterminal> visited = Collections.newSetFromMap(new IdentityHashMap<Nonterminal, Boolean>());
+		Deque<Nonterminal> pending = new ArrayDeque<>(nonterminals.values());
+		pending.addAll(primaryNonterminals.values());
+		while (!pending.isEmpty()) {
+			Nonterminal nt = pending.pop();
+			if (!visited.add(nt))
+				continue;
+			
+			for (Production p : nt) {
+				for (int i = p.size() - 1; i >= 0; --i) {
+					Symbol s = p.get(i);
+					if (rebound.containsKey(s)) {
+						Nonterminal target = resolve(s);
+						if (target == null) {
+							p.remove(i);
+						} else {
+							p.set(i, target);
+						}
+					} else if (s instanceof Nonterminal) {
+						pending.push((Nonterminal)s);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns the nonterminal a reference to name in a production should point to:
+	 * the current definition if there is one, otherwise a placeholder which is
+	 * shared by all references to name until it is defined.
+	 */
+	private Nonterminal reference(String name) {
+		if (fragment != null)
+			return fragment.reference(name);
+		
+		Nonterminal nt = nonterminals.get(name);
+		if (nt == null) {
+			nt = placeholders.get(name);
+			if (nt == null) {
+				nt = new Nonterminal(name);
+				placeholders.put(name, nt);
+			}
+		}
+		return nt;
+	}
+	
+	/**
+	 * Returns the nonterminal which will hold a new definition of name.  If name has
+	 * already been referenced, its placeholder becomes the definition, so earlier
+	 * references are bound in place.
+	 */
+	private Nonterminal define(String name, boolean primary) {
+		if (fragment != null)
+			return fragment.define(name, new Nonterminal(name), primary);
+		
+		Nonterminal nt = placeholders.remove(name);
+		if (nt == null) {
+			nt = new Nonterminal(name);
+		}
+		nonterminals.put(name, nt);
+		if (primary) {
+			primaryNonterminals.put(name, nt);
+		}
+		if (linked != null) {
+			linked.add(nt);
+		}
+		return nt;
+	}
+	
+	/**
+	 * Makes name refer to nt, which can't take over a placeholder for name, so
+	 * references to the placeholder are replaced later.
+	 */
+	private void bind(String name, Nonterminal nt) {
+		nonterminals.put(name, nt);
+		Nonterminal placeholder = placeholders.remove(name);
+		if (placeholder != null) {
+			if (rebound == null) {
+				rebound = new IdentityHashMap<>();
+			}
+			rebound.put(placeholder, nt);
+		}
+	}
+	
 	private String getTokenName(Token t) {
 		if (t == null) {
 			return "end-of-input";
@@ -133,7 +366,8 @@ public class Parser extends NonterminalSet {
 	 * expression = command |
 	 *              nonterminal ;
 	 *              
-	 * command = "!" identifier literal ;
+	 * command = "!" identifier literal |
+	 *           "!" ( "wordlist" | "weightedwordlist" ) identifier literal ;
 	 * 
 	 * nonterminal = ("::" | ":::") identifier production_list ;
 	 * 
@@ -181,6 +415,14 @@ public class Parser extends NonterminalSet {
 				
 				importResource(resource);
 				return true;
+			} else if (cmd.equalsIgnoreCase(WordList.COMMAND) || cmd.equalsIgnoreCase(WordList.WEIGHTED_COMMAND)) {
+				String name = requireIdentifier();
+				String file = requireLiteral();
+				if (name == null || file == null)
+					return false;
+				
+				wordList(name, file, cmd.equalsIgnoreCase(WordList.WEIGHTED_COMMAND));
+				return true;
 			} else if (cmd.equalsIgnoreCase("optional")) {
 				String resource = requireLiteral();
 				if (resource == null)
@@ -200,7 +442,51 @@ public class Parser extends NonterminalSet {
 		return false;
 	}
 	
+	/**
+	 * Defines a WordList nonterminal.  The file is looked for in the filesystem
+	 * first, then on the classpath (as long as it isn't inside a jar, since it must
+	 * be mapped into memory).
+	 */
+	private void wordList(String name, String fileName, boolean weighted) throws IOException {
+		Path file = Paths.get(fileName);
+		if (!Files.isRegularFile(file)) {
+			file = null;
+			URL url = Parser.class.getResource("/" + fileName);
+			if (url != null && url.getProtocol().equals("file")) {
+				try {
+					file = Paths.get(url.toURI());
+				} catch (URISyntaxException e) {
+					file = null;
+				}
+			}
+		}
+		
+		if (file == null) {
+			error("Word list not found: " + fileName);
+			return;
+		}
+		
+		WordList list;
+		try {
+			list = new WordList(name, file, weighted);
+		} catch (IOException e) {
+			error("Cannot load word list: " + fileName, e);
+			return;
+		}
+		
+		if (fragment != null) {
+			fragment.define(name, list, false);
+		} else {
+			bind(name, list);
+		}
+	}
+	
 	private void optionalImportResource(String resourceName) throws IOException {
+		if (fragment != null) {
+			fragment.importResource(resourceName, true);
+			return;
+		}
+		
 		if (imports.contains(resourceName) || lexerFactory == null) {
 			return;
 		}
@@ -215,6 +501,11 @@ public class Parser extends NonterminalSet {
 	}
 	
 	private void importResource(String resourceName) throws IOException {
+		if (fragment != null) {
+			fragment.importResource(resourceName, false);
+			return;
+		}
+		
 		if (imports.contains(resourceName))
 			return;
 		
@@ -246,9 +537,7 @@ public class Parser extends NonterminalSet {
 			if (name == null)
 				return false;
 			
-			Nonterminal nt = new Nonterminal(name);
-			nonterminals.put(name, nt);
-			primaryNonterminals.put(name, nt);
+			Nonterminal nt = define(name, true);
 			productionList(nt);
 			return true;
 			
@@ -257,8 +546,7 @@ public class Parser extends NonterminalSet {
 			if (name == null)
 				return false;
 			
-			Nonterminal nt = new Nonterminal(name);
-			nonterminals.put(name, nt);
+			Nonterminal nt = define(name, false);
 			productionList(nt);
 			return true;
 		}
@@ -293,51 +581,13 @@ public class Parser extends NonterminalSet {
 		return false;
 	}
 	
-	private void symbolList(final Production p) throws IOException {
-		boolean defer = false;
+	private void symbolList(Production p) throws IOException {
 		for (;;) {
 			TokenType nextType = peekType();
 			if (nextType == TokenType.IDENTIFIER) {
-				final String name = requireIdentifier();
-				if (!defer) {
-					Nonterminal nt = nonterminals.get(name);
-					if (nt == null) {
-						defer = true;
-					} else {
-						p.add(nt);
-					}
-				}
-				
-				if (defer) {
-					tasks.add(new Task() {
-						@Override
-						public void run() throws ParseException {
-							Nonterminal nt = nonterminals.get(name);
-							if (nt != null) {
-								p.add(nt);
-							} else {
-								StringBuilder err = new StringBuilder();
-								err.append("Nonterminal not found: ");
-								err.append(getTokenName(new Token(TokenType.IDENTIFIER, name)));
-								error(err.toString());
-							}
-						}
-					});
-				}
-				
+				p.add(reference(requireIdentifier()));
 			} else if (nextType == TokenType.LITERAL) {
-				final String name = requireLiteral();
-				if (defer) {
-					tasks.add(new Task() {
-						@Override
-						public void run() {
-							p.add(new Terminal(name));
-						}
-					});
-				} else {
-					p.add(new Terminal(name));
-				}
-				
+				p.add(new Terminal(requireLiteral()));
 			} else {
 				return;
 			}
@@ -398,8 +648,4 @@ public class Parser extends NonterminalSet {
 			throw new ParseException(what, cause);
 		}
 	}
-	
-	private interface Task {
-		void run() throws ParseException;
-	}
 }
@@ -1,5 +1,8 @@
 package com.magicmoremagic.coffee.parser;
 
+import java.math.BigDecimal;
+import java.math.MathContext;
+
 public abstract class StringUtil {
 
 	private static final char[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
@@ -8,20 +11,11 @@ public abstract class StringUtil {
 		if (terminal == null)
 			return null;
 		
-		StringBuilder sb = new StringBuilder((int)(terminal.length() * 1.2f + 2));
-		sb.append('"');
+		if (isPlainLiteral(terminal))
+			return "\"" + terminal + "\"";
 		
-		final int len = terminal.length();
-		char surrogate = 0;
-		for (int i = 0; i < len; ++i) {
-			char cu = terminal.charAt(i);
-			surrogate = tryLiteralEncode(sb, cu, surrogate);
-		}
-		if (surrogate != 0) {
-			encodeUtf16(sb, surrogate);
-		}
-		
-		sb.append('"');
+		StringBuilder sb = new StringBuilder((int)(terminal.length() * 1.2f + 2));
+		appendLiteral(sb, terminal);
 		return sb.toString();
 	}
 	
@@ -29,7 +23,50 @@ public abstract class StringUtil {
 		if (name == null)
 			return null;
 		
+		if (isPlainIdentifier(name))
+			return name;
+		
 		StringBuilder sb = new StringBuilder((int)(name.length() * 1.05f + 1));
+		appendIdentifier(sb, name);
+		return sb.toString();
+	}
+	
+	/**
+	 * Appends the same text as toLiteral() to sb, without any intermediate
+	 * allocation when no escapes are needed.  A null terminal appends "null".
+	 */
+	public static void appendLiteral(StringBuilder sb, String terminal) {
+		if (terminal == null) {
+			sb.append((String)null);
+			return;
+		}
+		
+		sb.append('"');
+		if (isPlainLiteral(terminal)) {
+			sb.append(terminal);
+		} else {
+			final int len = terminal.length();
+			char surrogate = 0;
+			for (int i = 0; i < len; ++i) {
+				char cu = terminal.charAt(i);
+				surrogate = tryLiteralEncode(sb, cu, surrogate);
+			}
+			if (surrogate != 0) {
+				encodeUtf16(sb, surrogate);
+			}
+		}
+		sb.append('"');
+	}
+	
+	/**
+	 * Appends the same text as toIdentifier() to sb, without any intermediate
+	 * allocation when no escapes are needed.  A null name appends "null".
+	 */
+	public static void appendIdentifier(StringBuilder sb, String name) {
+		if (name == null || isPlainIdentifier(name)) {
+			sb.append(name);
+			return;
+		}
 		
 		final int len = name.length();
 		char surrogate = 0;
@@ -40,9 +77,70 @@ public abstract class StringUtil {
 		}
 		if (surrogate != 0) {
 			encodeUtf16(sb, surrogate);
-		}		
+		}
+	}
+	
+	/**
+	 * Returns the double with the shortest decimal form that is within the rounding
+	 * error of computing weight as upperBound minus a lower bound, so
+	 * that a weight given as 0.1 is written as 0.1 rather than 0.10000000000000009.
+	 * A weight equal to its upper bound has no such error and is returned as is.
+	 */
+	public static double trimWeight(double weight, double upperBound) {
+		if (weight == upperBound || Double.isNaN(weight) || Double.isInfinite(weight))
+			return weight;
+
+		double error = Math.ulp(upperBound);
+		BigDecimal exact = new BigDecimal(weight);
+		for (int digits = 1; digits < 17; ++digits) {
+			double rounded = exact.round(new MathContext(digits)).doubleValue();
+			if (Math.abs(rounded - weight) <= error)
+				return rounded;
+		}
+		return weight;
+	}
+	
+	/**
+	 * Returns true if terminal can be written as a literal without any escapes.
+	 */
+	public static boolean isPlainLiteral(String terminal) {
+		final int len = terminal.length();
+		for (int i = 0; i < len; ++i) {
+			char cu = terminal.charAt(i);
+			if (!(cu >= '#' && cu <= '[' ||
+				cu >= ']' && cu <= '~' ||
+				cu == ' ' || cu == '!')) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns true if name can be written as an identifier without any escapes.
+	 */
+	public static boolean isPlainIdentifier(String name) {
+		final int len = name.length();
+		if (len == 0)
+			return true;
 		
-		return sb.toString();
+		char first = name.charAt(0);
+		if (!(first >= 'a' && first <= 'z' ||
+			first >= 'A' && first <= 'Z' ||
+			first == '_' || first == '$')) {
+			return false;
+		}
+		
+		for (int i = 1; i < len; ++i) {
+			char cu = name.charAt(i);
+			if (!(cu >= 'a' && cu <= 'z' ||
+				cu >= 'A' && cu <= 'Z' ||
+				cu >= '0' && cu <= '9' ||
+				cu == '_' || cu == '$')) {
+				return false;
+			}
+		}
+		return true;
 	}
 	
 	private static char tryLiteralEncode(StringBuilder sb, char cu, char surrogate) {
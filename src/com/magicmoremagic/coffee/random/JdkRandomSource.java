@@ -0,0 +1,39 @@
+package com.magicmoremagic.coffee.random;
+
+import java.util.Random;
+
+/**
+ * Adapts a java.util.Random.  Brewing with this produces exactly the same results
+ * as brewing with the Random itself did in earlier versions, so existing seeds
+ * remain reproducible.
+ */
+public class JdkRandomSource implements RandomSource {
+
+	private final Random rnd;
+
+	public JdkRandomSource(Random rnd) {
+		if (rnd == null)
+			throw new NullPointerException();
+
+		this.rnd = rnd;
+	}
+
+	public Random getRandom() {
+		return rnd;
+	}
+
+	@Override
+	public double nextDouble() {
+		return rnd.nextDouble();
+	}
+
+	@Override
+	public int nextInt(int bound) {
+		return rnd.nextInt(bound);
+	}
+
+	@Override
+	public long nextLong() {
+		return rnd.nextLong();
+	}
+}
@@ -0,0 +1,22 @@
+package com.magicmoremagic.coffee.random;
+
+/**
+ * The source of randomness used when brewing.  Implementations need not be
+ * thread-safe unless documented otherwise.
+ */
+public interface RandomSource {
+
+	/**
+	 * Returns a uniformly distributed value in [0, 1).
+	 */
+	double nextDouble();
+
+	/**
+	 * Returns a uniformly distributed value in [0, bound).
+	 *
+	 * @throws IllegalArgumentException if bound is not positive.
+	 */
+	int nextInt(int bound);
+
+	long nextLong();
+}
@@ -0,0 +1,89 @@
+package com.magicmoremagic.coffee.random;
+
+import java.util.Random;
+
+public abstract class RandomSources {
+
+	/**
+	 * Returns a RandomSource backed by rnd.  If rnd is null, the current thread's
+	 * ThreadLocalRandom is used.
+	 */
+	public static RandomSource wrap(Random rnd) {
+		if (rnd == null)
+			return ThreadLocalRandomSource.INSTANCE;
+
+		return new JdkRandomSource(rnd);
+	}
+
+	/**
+	 * Returns the fastest generator available, seeded randomly.  The result is not
+	 * thread-safe.
+	 */
+	public static RandomSource fast() {
+		return new Xoshiro256StarStar();
+	}
+
+	/**
+	 * Returns the fastest generator available, seeded from seed.  The result is not
+	 * thread-safe.
+	 */
+	public static RandomSource fast(long seed) {
+		return new Xoshiro256StarStar(seed);
+	}
+
+	/**
+	 * Returns the generator for result number index of the sequence identified by
+	 * seed.  Each result of the sequence can be generated independently of the
+	 * others, on any thread or machine, with identical output.
+	 */
+	public static RandomSource indexed(long seed, long index) {
+		return new Xoshiro256StarStar(seed, index);
+	}
+
+	public static RandomSource threadLocal() {
+		return ThreadLocalRandomSource.INSTANCE;
+	}
+
+	/**
+	 * Returns a Random backed by rnd, for code written against Random.  A
+	 * RandomSource from wrap() gives back the Random it wraps.
+	 */
+	public static Random asRandom(RandomSource rnd) {
+		if (rnd instanceof JdkRandomSource)
+			return ((JdkRandomSource)rnd).getRandom();
+
+		return new SourceRandom(rnd);
+	}
+
+	@SuppressWarnings("serial")
+	private static final class SourceRandom extends Random {
+
+		private final RandomSource source;
+
+		SourceRandom(RandomSource source) {
+			super(0);
+			this.source = source;
+		}
+
+		@Override
+		protected int next(int bits) {
+			return (int)(source.nextLong() >>> (64 - bits));
+		}
+
+		@Override
+		public double nextDouble() {
+			return source.nextDouble();
+		}
+
+		@Override
+		public int nextInt(int bound) {
+			return source.nextInt(bound);
+		}
+
+		@Override
+		public long nextLong() {
+			return source.nextLong();
+		}
+	}
+
+}
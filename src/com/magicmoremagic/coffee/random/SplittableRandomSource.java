@@ -0,0 +1,46 @@
+package com.magicmoremagic.coffee.random;
+
+import java.util.SplittableRandom;
+
+/**
+ * Adapts a java.util.SplittableRandom.  Not thread-safe; use split() to create
+ * independent generators for other threads.
+ */
+public class SplittableRandomSource implements RandomSource {
+
+	private final SplittableRandom rnd;
+
+	public SplittableRandomSource() {
+		rnd = new SplittableRandom();
+	}
+
+	public SplittableRandomSource(long seed) {
+		rnd = new SplittableRandom(seed);
+	}
+
+	public SplittableRandomSource(SplittableRandom rnd) {
+		if (rnd == null)
+			throw new NullPointerException();
+
+		this.rnd = rnd;
+	}
+
+	public SplittableRandomSource split() {
+		return new SplittableRandomSource(rnd.split());
+	}
+
+	@Override
+	public double nextDouble() {
+		return rnd.nextDouble();
+	}
+
+	@Override
+	public int nextInt(int bound) {
+		return rnd.nextInt(bound);
+	}
+
+	@Override
+	public long nextLong() {
+		return rnd.nextLong();
+	}
+}
@@ -0,0 +1,27 @@
+package com.magicmoremagic.coffee.random;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Uses the current thread's ThreadLocalRandom.  Safe to share between threads, but
+ * cannot be seeded.
+ */
+public enum ThreadLocalRandomSource implements RandomSource {
+
+	INSTANCE;
+
+	@Override
+	public double nextDouble() {
+		return ThreadLocalRandom.current().nextDouble();
+	}
+
+	@Override
+	public int nextInt(int bound) {
+		return ThreadLocalRandom.current().nextInt(bound);
+	}
+
+	@Override
+	public long nextLong() {
+		return ThreadLocalRandom.current().nextLong();
+	}
+}
@@ -0,0 +1,148 @@
+package com.magicmoremagic.coffee.random;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The xoshiro256** generator by David Blackman and Sebastiano Vigna: 256 bits of
+ * state, a period of 2^256 - 1, and a few shifts and rotations per value.  Not
+ * thread-safe; jump() can be used to create non-overlapping streams.
+ */
+public class Xoshiro256StarStar implements RandomSource {
+
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private static final long[] JUMP = {
+		0x180ec6d33cfd0abaL, 0xd5a61266f0c9392cL, 0xa9582618e03fc9aaL, 0x39abdc4529b1661cL
+	};
+
+	private long s0;
+	private long s1;
+	private long s2;
+	private long s3;
+
+	public Xoshiro256StarStar() {
+		this(ThreadLocalRandom.current().nextLong());
+	}
+
+	/**
+	 * Creates a generator whose state is expanded from seed with SplitMix64.
+	 */
+	public Xoshiro256StarStar(long seed) {
+		setSeed(seed);
+	}
+
+	/**
+	 * Creates the generator for result number index of the sequence identified by
+	 * seed.  See setSeed(long, long).
+	 */
+	public Xoshiro256StarStar(long seed, long index) {
+		setSeed(seed, index);
+	}
+
+	public Xoshiro256StarStar(Xoshiro256StarStar other) {
+		s0 = other.s0;
+		s1 = other.s1;
+		s2 = other.s2;
+		s3 = other.s3;
+	}
+
+	public void setSeed(long seed) {
+		s0 = splitMix64(seed += GOLDEN_GAMMA);
+		s1 = splitMix64(seed += GOLDEN_GAMMA);
+		s2 = splitMix64(seed += GOLDEN_GAMMA);
+		s3 = splitMix64(seed + GOLDEN_GAMMA);
+	}
+
+	/**
+	 * Sets the state from a (seed, index) pair, so that any result of a seeded
+	 * sequence can be generated without generating the ones before it.  Distinct
+	 * pairs always produce distinct states: the first two words are bijections of
+	 * seed and index, and the other two mix both.
+	 */
+	public void setSeed(long seed, long index) {
+		s0 = splitMix64(seed + GOLDEN_GAMMA);
+		s1 = splitMix64(index + GOLDEN_GAMMA);
+		s2 = splitMix64((s0 ^ s1) + GOLDEN_GAMMA);
+		s3 = splitMix64(s0 + s1 + 2 * GOLDEN_GAMMA);
+		for (int i = 0; i < 4; ++i) {
+			nextLong();
+		}
+	}
+
+	@Override
+	public long nextLong() {
+		final long result = Long.rotateLeft(s1 * 5, 7) * 9;
+		final long t = s1 << 17;
+
+		s2 ^= s0;
+		s3 ^= s1;
+		s1 ^= s2;
+		s0 ^= s3;
+		s2 ^= t;
+		s3 = Long.rotateLeft(s3, 45);
+
+		return result;
+	}
+
+	@Override
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Uses Lemire's multiply-and-reject method, so results are unbiased.
+	 */
+	@Override
+	public int nextInt(int bound) {
+		if (bound <= 0)
+			throw new IllegalArgumentException("bound must be positive");
+
+		long m = (nextLong() >>> 32) * bound;
+		long low = m & 0xFFFFFFFFL;
+		if (low < bound) {
+			long threshold = (0x100000000L - bound) % bound;
+			while (low < threshold) {
+				m = (nextLong() >>> 32) * bound;
+				low = m & 0xFFFFFFFFL;
+			}
+		}
+		return (int)(m >>> 32);
+	}
+
+	/**
+	 * Advances this generator by 2^128 values, equivalent to that many calls to
+	 * nextLong().  Returns a copy of the state before the jump, which can be used
+	 * as an independent stream.
+	 */
+	public Xoshiro256StarStar jump() {
+		Xoshiro256StarStar before = new Xoshiro256StarStar(this);
+
+		long t0 = 0;
+		long t1 = 0;
+		long t2 = 0;
+		long t3 = 0;
+		for (long jump : JUMP) {
+			for (int b = 0; b < 64; ++b) {
+				if ((jump & (1L << b)) != 0) {
+					t0 ^= s0;
+					t1 ^= s1;
+					t2 ^= s2;
+					t3 ^= s3;
+				}
+				nextLong();
+			}
+		}
+		s0 = t0;
+		s1 = t1;
+		s2 = t2;
+		s3 = t3;
+
+		return before;
+	}
+
+	static long splitMix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,273 @@
+package com.magicmoremagic.coffee.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.magicmoremagic.coffee.Nonterminal;
+import com.magicmoremagic.coffee.NonterminalSet;
+import com.magicmoremagic.coffee.Symbol;
+import com.magicmoremagic.coffee.random.RandomSource;
+import com.magicmoremagic.coffee.random.RandomSources;
+import com.magicmoremagic.coffee.random.Xoshiro256StarStar;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves results from a resident NonterminalSet over HTTP, so that clients don't
+ * pay for JVM startup and grammar parsing on every request.
+ *
+ * Endpoints (GET or HEAD):
+ *    /brew                     results from randomly selected primary nonterminals
+ *    /brew/{nonterminal}       results from the named primary nonterminal
+ *    /nonterminals             the names of the primary nonterminals
+ *
+ * /brew accepts the query parameters count (default 1), seed and skip.  With a
+ * seed, result i of the response is brew(seed, skip + i), exactly as the CLI's
+ * --skip option would produce.  Results are written one per line; large responses
+ * are streamed with chunked transfer encoding as they are generated.
+ *
+ * Each request is handled on its own thread from an unbounded pool, so a slow
+ * client only ties up its own thread.
+ *
+ * The JDK server writes response headers and body separately, so without
+ * TCP_NODELAY a small response stalls ~40ms on the client's delayed ACK.  Set the
+ * NODELAY_PROPERTY system property to "true" before the first HttpServer in the
+ * JVM is created to avoid that; the CLI does.
+ */
+public class BrewServer {
+
+	public static final long MAX_COUNT = 1L << 32;
+	public static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+	private static final int FLUSH_THRESHOLD = 1 << 15;
+
+	private final NonterminalSet nonterminals;
+	private final HttpServer server;
+	private final ExecutorService executor;
+
+	public BrewServer(NonterminalSet nonterminals, InetSocketAddress address) throws IOException {
+		this.nonterminals = nonterminals;
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BrewServer-" + threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		server = HttpServer.create(address, 0);
+		server.setExecutor(executor);
+		server.createContext("/brew", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleBrew(exchange);
+			}
+		});
+		server.createContext("/nonterminals", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				handleNonterminals(exchange);
+			}
+		});
+	}
+
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops accepting requests, waits up to delaySeconds for current exchanges to
+	 * finish, then shuts down the request threads.
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void handleBrew(HttpExchange exchange) throws IOException {
+		try {
+			if (!checkMethod(exchange))
+				return;
+
+			String path = exchange.getRequestURI().getPath();
+			Symbol target = nonterminals;
+			if (!path.equals("/brew") && !path.equals("/brew/")) {
+				if (!path.startsWith("/brew/")) {
+					sendError(exchange, 404, "Not found: " + path);
+					return;
+				}
+
+				String name = URLDecoder.decode(path.substring("/brew/".length()), "UTF-8");
+				Nonterminal nt = nonterminals.get(name);
+				if (nt == null) {
+					sendError(exchange, 404, "Generator not found: " + name);
+					return;
+				}
+				target = nt;
+			}
+
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			long count;
+			long skip;
+			Long seed;
+			try {
+				count = parseLong(query.get("count"), 1);
+				skip = parseLong(query.get("skip"), 0);
+				seed = query.containsKey("seed") ? Long.valueOf(query.get("seed")) : null;
+			} catch (NumberFormatException e) {
+				sendError(exchange, 400, "Invalid number: " + e.getMessage());
+				return;
+			}
+
+			if (count < 0 || count > MAX_COUNT || skip < 0) {
+				sendError(exchange, 400, "count must be between 0 and " + MAX_COUNT + " and skip must not be negative.");
+				return;
+			}
+
+			if (exchange.getRequestMethod().equals("HEAD")) {
+				// the length isn't known without brewing the results
+				sendText(exchange, 200, "");
+				return;
+			}
+
+			brew(exchange, target, count, skip, seed);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleNonterminals(HttpExchange exchange) throws IOException {
+		try {
+			if (!checkMethod(exchange))
+				return;
+
+			StringBuilder sb = new StringBuilder();
+			for (Nonterminal nt : nonterminals) {
+				sb.append(nt.getName()).append('\n');
+			}
+			sendText(exchange, 200, sb.toString());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Sends the results.  Responses that fit in one buffer are sent with a
+	 * Content-Length; larger ones are streamed with chunked encoding.
+	 */
+	private static void brew(HttpExchange exchange, Symbol target, long count, long skip, Long seed) throws IOException {
+		Xoshiro256StarStar indexed = null;
+		RandomSource rnd;
+		if (seed != null) {
+			indexed = new Xoshiro256StarStar();
+			rnd = indexed;
+		} else {
+			rnd = RandomSources.fast();
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		StringBuilder sb = new StringBuilder();
+		Writer w = null;
+		try {
+			for (long i = 0; i < count; ++i) {
+				if (indexed != null) {
+					indexed.setSeed(seed, skip + i);
+				}
+				target.brew(rnd, sb);
+				sb.append('\n');
+
+				if (sb.length() >= FLUSH_THRESHOLD) {
+					if (w == null) {
+						exchange.sendResponseHeaders(200, 0);
+						w = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8);
+					}
+					w.append(sb);
+					w.flush();
+					sb.setLength(0);
+				}
+			}
+
+			if (w == null) {
+				sendText(exchange, 200, sb.toString());
+			} else {
+				w.append(sb);
+			}
+		} finally {
+			if (w != null) {
+				w.close();
+			}
+		}
+	}
+
+	private static boolean checkMethod(HttpExchange exchange) throws IOException {
+		String method = exchange.getRequestMethod();
+		if (method.equals("GET") || method.equals("HEAD"))
+			return true;
+
+		exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+		sendError(exchange, 405, "Method not allowed: " + method);
+		return false;
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		sendText(exchange, status, message + "\n");
+	}
+
+	private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+
+	private static long parseLong(String value, long defaultValue) {
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+
+	private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+		Map<String, String> query = new HashMap<>();
+		if (rawQuery == null)
+			return query;
+
+		for (String param : rawQuery.split("&")) {
+			if (param.isEmpty())
+				continue;
+
+			int eq = param.indexOf('=');
+			String name = eq < 0 ? param : param.substring(0, eq);
+			String value = eq < 0 ? "" : param.substring(eq + 1);
+			query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+		}
+		return query;
+	}
+}
@@ -0,0 +1,421 @@
+package com.magicmoremagic.coffee.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.magicmoremagic.coffee.BrewObserver;
+import com.magicmoremagic.coffee.Nonterminal;
+import com.magicmoremagic.coffee.Production;
+
+/**
+ * Collects statistics about generation while installed as the brew observer:
+ * expansion counts per Nonterminal, hit counts per Production, and histograms of
+ * derivation depth, output length and latency for each top-level brew.  If
+ * timing is enabled, the self time of each Nonterminal (time spent expanding it,
+ * excluding the Nonterminals it references) is recorded as well.
+ *
+ * Counters are LongAdders shared by all threads; each thread finds them through
+ * its own identity-keyed cache, so recording doesn't contend on a lock once a
+ * thread has seen a symbol.  Nothing is recorded (and there is no overhead beyond
+ * a field read per expansion) unless enable() has been called.
+ *
+ * Nonterminals and Productions that have been counted are retained until clear()
+ * is called.
+ */
+public class GenerationStats implements BrewObserver, GenerationStatsMXBean {
+
+	public static final String DEFAULT_OBJECT_NAME = "com.magicmoremagic.coffee:type=GenerationStats";
+
+	private static final int TOP_EXPANSIONS = 20;
+
+	private final Map<Nonterminal, LongAdder> expansions;
+	private final Map<Production, LongAdder> hits;
+	private final Map<Nonterminal, LongAdder> selfTimes;
+	private final LongAdder totalExpansions;
+	private final Histogram depth;
+	private final Histogram length;
+	private final Histogram latency;
+	private final ThreadLocal<Recorder> recorders;
+	private volatile int generation;
+	private volatile boolean timing;
+	private ObjectName objectName;
+
+	public GenerationStats() {
+		expansions = new IdentityHashMap<>();
+		hits = new IdentityHashMap<>();
+		selfTimes = new IdentityHashMap<>();
+		totalExpansions = new LongAdder();
+		depth = new Histogram();
+		length = new Histogram();
+		latency = new Histogram();
+		recorders = new ThreadLocal<Recorder>() {
+			@Override
+			protected Recorder initialValue() {
+				return new Recorder();
+			}
+		};
+	}
+
+	/**
+	 * Installs this as the brew observer, replacing any other observer.
+	 */
+	public void enable() {
+		Nonterminal.setBrewObserver(this);
+	}
+
+	/**
+	 * Removes this as the brew observer, if it is installed.
+	 */
+	public void disable() {
+		if (Nonterminal.getBrewObserver() == this) {
+			Nonterminal.setBrewObserver(null);
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return Nonterminal.getBrewObserver() == this;
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		if (enabled) {
+			enable();
+		} else {
+			disable();
+		}
+	}
+
+	/**
+	 * Enables or disables recording the self time of each Nonterminal.  This costs
+	 * two calls to System.nanoTime() per expansion.  Changes take effect at the
+	 * start of the next top-level brew on each thread.
+	 */
+	public void setTimingEnabled(boolean timing) {
+		this.timing = timing;
+	}
+	
+	public boolean isTimingEnabled() {
+		return timing;
+	}
+
+	/**
+	 * Zeroes all counters and histograms.
+	 */
+	@Override
+	public void reset() {
+		synchronized (expansions) {
+			for (LongAdder counter : expansions.values()) {
+				counter.reset();
+			}
+			for (LongAdder counter : hits.values()) {
+				counter.reset();
+			}
+			for (LongAdder counter : selfTimes.values()) {
+				counter.reset();
+			}
+		}
+		totalExpansions.reset();
+		depth.reset();
+		length.reset();
+		latency.reset();
+	}
+
+	/**
+	 * Zeroes all statistics and releases every Nonterminal and Production that has
+	 * been counted.
+	 */
+	public void clear() {
+		synchronized (expansions) {
+			++generation;
+			expansions.clear();
+			hits.clear();
+			selfTimes.clear();
+		}
+		reset();
+	}
+
+	public long getExpansions(Nonterminal nt) {
+		synchronized (expansions) {
+			LongAdder counter = expansions.get(nt);
+			return counter == null ? 0 : counter.sum();
+		}
+	}
+
+	public long getHits(Production production) {
+		synchronized (expansions) {
+			LongAdder counter = hits.get(production);
+			return counter == null ? 0 : counter.sum();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the expansion count of every Nonterminal that has been
+	 * expanded, keyed by identity.
+	 */
+	public Map<Nonterminal, Long> getExpansionCounts() {
+		synchronized (expansions) {
+			return snapshot(expansions);
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the hit count of every Production that has been
+	 * selected, keyed by identity.
+	 */
+	public Map<Production, Long> getProductionCounts() {
+		synchronized (expansions) {
+			return snapshot(hits);
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the total self time, in nanoseconds, of every Nonterminal
+	 * that has been expanded while timing was enabled, keyed by identity.
+	 */
+	public Map<Nonterminal, Long> getSelfTimes() {
+		synchronized (expansions) {
+			return snapshot(selfTimes);
+		}
+	}
+
+	public Histogram getDepthHistogram() {
+		return depth;
+	}
+
+	public Histogram getLengthHistogram() {
+		return length;
+	}
+
+	/**
+	 * Returns the histogram of top-level brew latencies, in nanoseconds.
+	 */
+	public Histogram getLatencyHistogram() {
+		return latency;
+	}
+
+	@Override
+	public long getResults() {
+		return latency.snapshot().getCount();
+	}
+
+	@Override
+	public long getExpansions() {
+		return totalExpansions.sum();
+	}
+
+	@Override
+	public double getMeanDepth() {
+		return depth.snapshot().getMean();
+	}
+
+	@Override
+	public long getMaxDepth() {
+		return depth.snapshot().getMax();
+	}
+
+	@Override
+	public double getMeanLength() {
+		return length.snapshot().getMean();
+	}
+
+	@Override
+	public long getLengthP50() {
+		return length.snapshot().getValueAtPercentile(50);
+	}
+
+	@Override
+	public long getLengthP99() {
+		return length.snapshot().getValueAtPercentile(99);
+	}
+
+	@Override
+	public long getMaxLength() {
+		return length.snapshot().getMax();
+	}
+
+	@Override
+	public double getMeanLatencyMicros() {
+		return latency.snapshot().getMean() / 1000.0;
+	}
+
+	@Override
+	public long getLatencyP50Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(latency.snapshot().getValueAtPercentile(50));
+	}
+
+	@Override
+	public long getLatencyP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(latency.snapshot().getValueAtPercentile(99));
+	}
+
+	@Override
+	public long getMaxLatencyMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(latency.snapshot().getMax());
+	}
+
+	@Override
+	public Map<String, Long> getTopExpansions() {
+		List<Map.Entry<Nonterminal, Long>> entries = new ArrayList<>(getExpansionCounts().entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<Nonterminal, Long>>() {
+			@Override
+			public int compare(Map.Entry<Nonterminal, Long> a, Map.Entry<Nonterminal, Long> b) {
+				return Long.compare(b.getValue(), a.getValue());
+			}
+		});
+
+		Map<String, Long> top = new LinkedHashMap<>();
+		for (Map.Entry<Nonterminal, Long> entry : entries) {
+			if (top.size() >= TOP_EXPANSIONS)
+				break;
+
+			top.put(entry.getKey().getName(), entry.getValue());
+		}
+		return top;
+	}
+
+	/**
+	 * Registers this with the platform MBean server under DEFAULT_OBJECT_NAME.
+	 */
+	public ObjectName register() throws JMException {
+		return register(DEFAULT_OBJECT_NAME);
+	}
+
+	public synchronized ObjectName register(String name) throws JMException {
+		if (objectName != null) {
+			unregister();
+		}
+
+		ObjectName on = new ObjectName(name);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+		objectName = on;
+		return on;
+	}
+
+	public synchronized void unregister() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+
+	@Override
+	public void enter(Nonterminal nt, Production production, StringBuilder dest) {
+		Recorder r = recorders.get();
+		if (r.depth == 0) {
+			r.timing = timing;
+			r.maxDepth = 0;
+			r.startLength = dest.length();
+			r.start = System.nanoTime();
+		}
+		if (++r.depth > r.maxDepth) {
+			r.maxDepth = r.depth;
+		}
+
+		r.counter(nt, expansions, r.expansionCache).increment();
+		r.counter(production, hits, r.hitCache).increment();
+		totalExpansions.increment();
+
+		if (r.timing) {
+			r.pushFrame(System.nanoTime());
+		}
+	}
+
+	@Override
+	public void exit(Nonterminal nt, Production production, StringBuilder dest) {
+		Recorder r = recorders.get();
+		if (r.depth == 0)
+			return;
+
+		if (r.timing) {
+			r.counter(nt, selfTimes, r.selfTimeCache).add(r.popFrame(System.nanoTime()));
+		}
+
+		if (--r.depth == 0) {
+			latency.record(System.nanoTime() - r.start);
+			length.record(dest.length() - r.startLength);
+			depth.record(r.maxDepth);
+		}
+	}
+
+	private static <K> Map<K, Long> snapshot(Map<K, LongAdder> counters) {
+		Map<K, Long> map = new IdentityHashMap<>();
+		for (Map.Entry<K, LongAdder> entry : counters.entrySet()) {
+			long value = entry.getValue().sum();
+			if (value > 0) {
+				map.put(entry.getKey(), value);
+			}
+		}
+		return map;
+	}
+
+	private class Recorder {
+
+		private final Map<Nonterminal, LongAdder> expansionCache = new IdentityHashMap<>();
+		private final Map<Production, LongAdder> hitCache = new IdentityHashMap<>();
+		private final Map<Nonterminal, LongAdder> selfTimeCache = new IdentityHashMap<>();
+		private int cacheGeneration;
+		private int depth;
+		private int maxDepth;
+		private int startLength;
+		private long start;
+
+		private boolean timing;
+		private long[] frameStarts = new long[16];
+		private long[] frameChildTimes = new long[16];
+		private int frames;
+
+		public void pushFrame(long now) {
+			if (frames == frameStarts.length) {
+				frameStarts = Arrays.copyOf(frameStarts, frames * 2);
+				frameChildTimes = Arrays.copyOf(frameChildTimes, frames * 2);
+			}
+			frameStarts[frames] = now;
+			frameChildTimes[frames] = 0;
+			++frames;
+		}
+
+		/**
+		 * Pops the innermost frame, charging its elapsed time to its parent, and
+		 * returns its self time.
+		 */
+		public long popFrame(long now) {
+			if (frames == 0)
+				return 0;
+
+			--frames;
+			long elapsed = now - frameStarts[frames];
+			if (frames > 0) {
+				frameChildTimes[frames - 1] += elapsed;
+			}
+			return elapsed - frameChildTimes[frames];
+		}
+
+		public <K> LongAdder counter(K key, Map<K, LongAdder> global, Map<K, LongAdder> cache) {
+			if (cacheGeneration != generation) {
+				expansionCache.clear();
+				hitCache.clear();
+				selfTimeCache.clear();
+				cacheGeneration = generation;
+			}
+
+			LongAdder counter = cache.get(key);
+			if (counter == null) {
+				synchronized (expansions) {
+					counter = global.get(key);
+					if (counter == null) {
+						counter = new LongAdder();
+						global.put(key, counter);
+					}
+				}
+				cache.put(key, counter);
+			}
+			return counter;
+		}
+	}
+}
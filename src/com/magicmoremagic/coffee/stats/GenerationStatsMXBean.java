@@ -0,0 +1,35 @@
+package com.magicmoremagic.coffee.stats;
+
+import java.util.Map;
+
+/**
+ * JMX view of a GenerationStats instance.  Latencies are in microseconds.
+ */
+public interface GenerationStatsMXBean {
+
+	boolean isEnabled();
+	void setEnabled(boolean enabled);
+	void reset();
+
+	long getResults();
+	long getExpansions();
+
+	double getMeanDepth();
+	long getMaxDepth();
+
+	double getMeanLength();
+	long getLengthP50();
+	long getLengthP99();
+	long getMaxLength();
+
+	double getMeanLatencyMicros();
+	long getLatencyP50Micros();
+	long getLatencyP99Micros();
+	long getMaxLatencyMicros();
+
+	/**
+	 * Returns the expansion counts of the most frequently expanded nonterminals,
+	 * keyed by name.
+	 */
+	Map<String, Long> getTopExpansions();
+}